@@ -1,5 +1,6 @@
 package com.codingstory.polaris.cli;
 
+import com.codingstory.polaris.cli.command.BlobBench;
 import com.codingstory.polaris.cli.command.CrawlGitHub;
 import com.codingstory.polaris.cli.command.DevServer;
 import com.codingstory.polaris.cli.command.DumpSequenceFile;
@@ -29,8 +30,8 @@ import static com.codingstory.polaris.cli.CommandUtils.die;
 public class Main {
 
     private static final List<Class<?>> COMMANDS = ImmutableList.<Class<?>>of(
-            CrawlGitHub.class, DevServer.class, DumpSequenceFile.class, FindUsages.class, Index.class,
-            IndexRepoBase.class, Plan.class, Search.class, Source.class);
+            BlobBench.class, CrawlGitHub.class, DevServer.class, DumpSequenceFile.class, FindUsages.class,
+            Index.class, IndexRepoBase.class, Plan.class, Search.class, Source.class);
 
     public static void main(String[] args) {
         if (args.length == 0) {
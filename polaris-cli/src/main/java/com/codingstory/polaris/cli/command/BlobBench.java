@@ -0,0 +1,175 @@
+package com.codingstory.polaris.cli.command;
+
+import com.codingstory.polaris.BlobCodec;
+import com.codingstory.polaris.BlobCodecs;
+import com.codingstory.polaris.cli.Command;
+import com.codingstory.polaris.cli.Help;
+import com.codingstory.polaris.cli.Option;
+import com.codingstory.polaris.cli.Run;
+import com.codingstory.polaris.indexing.IndexPathUtils;
+import com.codingstory.polaris.sourcedb.SourceDbIndexedField;
+import com.codingstory.polaris.typedb.TypeDbIndexedField;
+import com.codingstory.polaris.usagedb.UsageDbIndexedField;
+import com.google.common.collect.Lists;
+import com.google.protobuf.CodedInputStream;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static com.codingstory.polaris.cli.CommandUtils.checkDirectoryExists;
+import static com.codingstory.polaris.cli.CommandUtils.die;
+
+/**
+ * Compares blob codecs on the blobs of an index: the bytes each codec writes, the bytes left after Lucene compresses
+ * stored fields in blocks, and the time to decode a blob.
+ */
+@Command(name = "blobbench")
+public class BlobBench {
+    /** Lucene 4.1+ compresses stored fields of adjacent documents in chunks of about this size, with LZ4. */
+    private static final int STORED_FIELDS_CHUNK_SIZE = 1 << 14;
+    private static final int DECODE_ROUNDS = 5;
+
+    @Option(name = "index", shortName = "i", defaultValue = "index")
+    public String index;
+    @Option(name = "samples", shortName = "n", defaultValue = "10000")
+    public String samples;
+
+    @Run
+    public void run(String[] args) throws IOException {
+        if (args.length > 0) {
+            die("Require no parameters");
+        }
+        File indexDir = new File(index);
+        checkDirectoryExists(indexDir);
+        int maxSamples = Integer.parseInt(samples);
+        bench("TypeDb", IndexPathUtils.getTypeDbPath(indexDir), TypeDbIndexedField.TYPE_DATA, maxSamples);
+        bench("UsageDb", IndexPathUtils.getUsageDbPath(indexDir), UsageDbIndexedField.USAGE_DATA, maxSamples);
+        bench("SourceDb", IndexPathUtils.getSourceDbPath(indexDir), SourceDbIndexedField.SOURCE_DATA, maxSamples);
+        bench("SourceDb", IndexPathUtils.getSourceDbPath(indexDir), SourceDbIndexedField.SOURCE, maxSamples);
+    }
+
+    private static void bench(String db, File path, String field, int maxSamples) throws IOException {
+        List<byte[]> blobs = readBlobs(path, field, maxSamples);
+        long rawBytes = 0;
+        for (byte[] blob : blobs) {
+            rawBytes += blob.length;
+        }
+        System.out.printf("%s %s: %d blobs, %d bytes uncompressed\n", db, field, blobs.size(), rawBytes);
+        System.out.printf("  %-14s %14s %14s %14s\n", "codec", "blob bytes", "stored bytes", "decode ns/blob");
+        for (BlobCodec codec : BlobCodecs.all()) {
+            List<byte[]> encoded = Lists.newArrayListWithCapacity(blobs.size());
+            long encodedBytes = 0;
+            for (byte[] blob : blobs) {
+                byte[] e = BlobCodecs.encode(codec, blob);
+                encoded.add(e);
+                encodedBytes += e.length;
+            }
+            System.out.printf("  %-14s %14d %14d %14d\n", codec.getName(), encodedBytes, storedBytes(encoded),
+                    decodeNanos(encoded));
+        }
+        System.out.println();
+    }
+
+    /** Returns uncompressed blobs of up to {@code maxSamples} live documents. */
+    private static List<byte[]> readBlobs(File path, String field, int maxSamples) throws IOException {
+        DirectoryReader reader = DirectoryReader.open(FSDirectory.open(path));
+        try {
+            List<byte[]> blobs = Lists.newArrayList();
+            Bits liveDocs = MultiFields.getLiveDocs(reader);
+            for (int doc = 0; doc < reader.maxDoc() && blobs.size() < maxSamples; doc++) {
+                if (liveDocs != null && !liveDocs.get(doc)) {
+                    continue;
+                }
+                DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(field);
+                reader.document(doc, visitor);
+                BytesRef value = visitor.getDocument().getBinaryValue(field);
+                if (value == null) {
+                    continue;
+                }
+                CodedInputStream input = BlobCodecs.decode(value.bytes, value.offset, value.length);
+                blobs.add(input.readRawBytes(input.getBytesUntilLimit()));
+            }
+            return blobs;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Estimates the bytes on disk, by compressing consecutive blobs in chunks as Lucene does. */
+    private static long storedBytes(List<byte[]> blobs) throws IOException {
+        Compressor compressor = CompressionMode.FAST.newCompressor();
+        CountingDataOutput output = new CountingDataOutput();
+        byte[] chunk = new byte[STORED_FIELDS_CHUNK_SIZE];
+        int size = 0;
+        for (byte[] blob : blobs) {
+            if (size + blob.length > chunk.length) {
+                if (size > 0) {
+                    compressor.compress(chunk, 0, size, output);
+                    size = 0;
+                }
+                if (blob.length > chunk.length) {
+                    chunk = new byte[blob.length];
+                }
+            }
+            System.arraycopy(blob, 0, chunk, size, blob.length);
+            size += blob.length;
+        }
+        if (size > 0) {
+            compressor.compress(chunk, 0, size, output);
+        }
+        return output.count;
+    }
+
+    /** Returns the average nanoseconds to decode a blob, after one round of warm-up. */
+    private static long decodeNanos(List<byte[]> blobs) throws IOException {
+        if (blobs.isEmpty()) {
+            return 0;
+        }
+        long start = 0;
+        for (int round = 0; round <= DECODE_ROUNDS; round++) {
+            if (round == 1) {
+                start = System.nanoTime();
+            }
+            for (byte[] blob : blobs) {
+                CodedInputStream input = BlobCodecs.decode(blob);
+                input.skipRawBytes(input.getBytesUntilLimit());
+            }
+        }
+        return (System.nanoTime() - start) / DECODE_ROUNDS / blobs.size();
+    }
+
+    private static class CountingDataOutput extends DataOutput {
+        private long count = 0;
+
+        @Override
+        public void writeByte(byte b) {
+            count++;
+        }
+
+        @Override
+        public void writeBytes(byte[] b, int offset, int length) {
+            count += length;
+        }
+    }
+
+    @Help
+    public void help() {
+        System.out.println("Usage:\n" +
+                "  polaris blobbench [--index=<dir>] [--samples=<n>]\n" +
+                "\n" +
+                "Options:\n" +
+                HelpMessages.INDEX +
+                "  -n, --samples=<n>        blobs to read from each DB, default: 10000\n" +
+                "\n");
+    }
+}
@@ -54,9 +54,12 @@ public class DevServer {
         private final File webDir;
         private final CodeSearchImpl searcher;
 
-        public MyServlet(File indexDir, File webDir) throws IOException {
+        public MyServlet(File indexDir, File webDir, long refreshSecs, long cacheBytes) throws IOException {
             this.webDir = Preconditions.checkNotNull(webDir);
-            this.searcher = new CodeSearchImpl(indexDir);
+            this.searcher = new CodeSearchImpl(indexDir, cacheBytes);
+            if (refreshSecs > 0) {
+                searcher.startRefreshing(refreshSecs * 1000);
+            }
         }
 
         @Override
@@ -214,6 +217,10 @@ public class DevServer {
     public String webRoot;
     @Option(name = "index-dir", shortName = "i", defaultValue = "index")
     public String indexDir;
+    @Option(name = "refresh-secs", shortName = "s", defaultValue = "10")
+    public String refreshSecs;
+    @Option(name = "cache-mb", shortName = "c", defaultValue = "128")
+    public String cacheMb;
 
     @Run
     public void run(String[] args) throws Exception {
@@ -226,7 +233,8 @@ public class DevServer {
         checkDirectoryExists(webDir);
         Server webServer = new Server(Integer.parseInt(portStr));
         ServletContextHandler contextHandler = new ServletContextHandler();
-        contextHandler.addServlet(new ServletHolder(new MyServlet(indexDir, webDir)), "/*");
+        MyServlet servlet = new MyServlet(indexDir, webDir, Long.parseLong(refreshSecs), Long.parseLong(cacheMb) << 20);
+        contextHandler.addServlet(new ServletHolder(servlet), "/*");
         webServer.setHandler(contextHandler);
         webServer.start();
         LOG.info("Listening on " + portStr);
@@ -236,12 +244,15 @@ public class DevServer {
     @Help
     public void help() {
         System.out.println("Usage:\n" +
-                "  polaris devserver [--port PORT] [--web-root DIR] [--index-dir DIR]\n" +
+                "  polaris devserver [--port PORT] [--web-root DIR] [--index-dir DIR] [--refresh-secs SECS]\n" +
+                "                   [--cache-mb MB]\n" +
                 "\n" +
                 "Options:\n" +
                 "  -p, --port       port to listen on, default: 8080\n" +
                 "  -r, --web-root   dir for static contents, default: polaris-web\n" +
                 "  -i, --index-dir  index dir, default: index\n" +
+                "  -s, --refresh-secs  interval to pick up new index commits, 0 to disable, default: 10\n" +
+                "  -c, --cache-mb   memory for decoded types and sources, 0 to disable, default: 128\n" +
                 "\n");
     }
 
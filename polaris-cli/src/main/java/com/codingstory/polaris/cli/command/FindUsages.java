@@ -41,21 +41,26 @@ public class FindUsages {
                     .build();
             GetTypeResponse getTypeResp = searcher.getType(NoOpController.getInstance(), getTypeReq);
             checkStatus(getTypeResp.getStatus());
-            ListUsagesRequest listUsageReq = ListUsagesRequest.newBuilder()
-                    .setKind(Usage.Kind.TYPE)
-                    .setId(getTypeResp.getClassType().getHandle().getId())
-                    .build();
-            ListUsagesResponse listUsageResp = searcher.listUsages(NoOpController.getInstance(), listUsageReq);
-            checkStatus(listUsageResp.getStatus());
-            for (Usage usage : listUsageResp.getUsagesList()) {
-                if (usage.getKind() == Usage.Kind.TYPE) {
-                    JumpTarget target = usage.getJumpTarget();
-                    FileHandle file = target.getFile();
-                    Position position = target.getSpan().getFrom();
-                    System.out.println(usage.getType().getKind().name() + ": file #" + file.getId()
-                            + " " + file.getPath() + " (" + position.getLine() + "," + position.getColumn() + ")");
+            String cursor = "";
+            do {
+                ListUsagesRequest listUsageReq = ListUsagesRequest.newBuilder()
+                        .setKind(Usage.Kind.TYPE)
+                        .setId(getTypeResp.getClassType().getHandle().getId())
+                        .setCursor(cursor)
+                        .build();
+                ListUsagesResponse listUsageResp = searcher.listUsages(NoOpController.getInstance(), listUsageReq);
+                checkStatus(listUsageResp.getStatus());
+                for (Usage usage : listUsageResp.getUsagesList()) {
+                    if (usage.getKind() == Usage.Kind.TYPE) {
+                        JumpTarget target = usage.getJumpTarget();
+                        FileHandle file = target.getFile();
+                        Position position = target.getSpan().getFrom();
+                        System.out.println(usage.getType().getKind().name() + ": file #" + file.getId()
+                                + " " + file.getPath() + " (" + position.getLine() + "," + position.getColumn() + ")");
+                    }
                 }
-            }
+                cursor = listUsageResp.getNextCursor();
+            } while (!cursor.isEmpty());
         } finally {
             IOUtils.closeQuietly(searcher);
         }
@@ -1,9 +1,11 @@
 package com.codingstory.polaris.cli.command;
 
+import com.codingstory.polaris.BlobCodecs;
 import com.codingstory.polaris.cli.Command;
 import com.codingstory.polaris.cli.Help;
 import com.codingstory.polaris.cli.Option;
 import com.codingstory.polaris.cli.Run;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
 import com.codingstory.polaris.pipeline.IndexPipeline;
 import org.apache.commons.io.FileUtils;
 
@@ -16,6 +18,22 @@ import static com.codingstory.polaris.cli.CommandUtils.die;
 public class Index {
     @Option(name = "index", shortName = "i", defaultValue = "index")
     public String index;
+    @Option(name = "inprocess", shortName = "p")
+    public boolean inProcess;
+    @Option(name = "threads", shortName = "t", defaultValue = "0")
+    public String threads;
+    @Option(name = "incremental", shortName = "n")
+    public boolean incremental;
+    @Option(name = "rambuffer", shortName = "r", defaultValue = "0")
+    public String ramBuffer;
+    @Option(name = "maxsegments", shortName = "m", defaultValue = "0")
+    public String maxSegments;
+    @Option(name = "typecodec", defaultValue = "snappy")
+    public String typeCodec;
+    @Option(name = "sourcecodec", defaultValue = "snappy")
+    public String sourceCodec;
+    @Option(name = "usagecodec", defaultValue = "snappy")
+    public String usageCodec;
 
     @Run
     public void run(String[] args) throws IOException {
@@ -23,9 +41,27 @@ public class Index {
             die("Expect one or more projects to index");
         }
         File indexDir = new File(index);
-        FileUtils.deleteQuietly(indexDir);
+        if (!incremental) {
+            FileUtils.deleteQuietly(indexDir);
+        }
         FileUtils.forceMkdir(indexDir);
         IndexPipeline pipeline = new IndexPipeline();
+        pipeline.setInProcess(inProcess);
+        pipeline.setIncremental(incremental);
+        if (Integer.parseInt(threads) > 0) {
+            pipeline.setParallelism(Integer.parseInt(threads));
+        }
+        IndexWriterOptions indexWriterOptions = new IndexWriterOptions();
+        if (Double.parseDouble(ramBuffer) > 0) {
+            indexWriterOptions.setRamBufferSizeMB(Double.parseDouble(ramBuffer));
+        }
+        if (Integer.parseInt(maxSegments) > 0) {
+            indexWriterOptions.setMaxSegmentCount(Integer.parseInt(maxSegments));
+        }
+        indexWriterOptions.setTypeBlobCodec(BlobCodecs.forName(typeCodec));
+        indexWriterOptions.setSourceBlobCodec(BlobCodecs.forName(sourceCodec));
+        indexWriterOptions.setUsageBlobCodec(BlobCodecs.forName(usageCodec));
+        pipeline.setIndexWriterOptions(indexWriterOptions);
         for (String arg : args) {
             pipeline.addProjectDirectory(new File(arg));
         }
@@ -37,10 +73,20 @@ public class Index {
     @Help
     public void help() {
         System.out.println("Usage:\n" +
-                "  polaris index [--clean] [--index=<index-dir>] project1 project2..\n" +
+                "  polaris index [--clean] [--index=<index-dir>] [--inprocess|--incremental] [--threads=<n>] [--rambuffer=<mb>] [--maxsegments=<n>]\n" +
+                "      [--typecodec=<codec>] [--sourcecodec=<codec>] [--usagecodec=<codec>] project1 project2..\n" +
                 "\n" +
                 "Options:\n" +
                 "  -i, --index          output index directory: default: ./index\n" +
+                "  -p, --inprocess      run in memory on a thread pool instead of local MapReduce\n" +
+                "  -n, --incremental    only re-index what changed since last incremental run on <index-dir>\n" +
+                "  -t, --threads        number of worker threads, default: number of cores\n" +
+                "  -r, --rambuffer      RAM buffer of each index writer in MB, default: 16\n" +
+                "  -m, --maxsegments    merge each index down to this many segments, default: 10\n" +
+                "      --typecodec      codec of stored types, default: snappy\n" +
+                "      --sourcecodec    codec of stored sources, default: snappy\n" +
+                "      --usagecodec     codec of stored usages, default: snappy\n" +
+                "                       codecs: none, snappy, deflate, deflate-usage, deflate-type\n" +
                 "\n");
     }
 }
@@ -0,0 +1,43 @@
+package com.codingstory.polaris;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+
+/**
+ * Compresses stored blobs of DB documents, such as types, sources and usages. {@link BlobCodecs} lists the codecs,
+ * and encodes blobs so that a reader can decode them without knowing which codec wrote them.
+ */
+public abstract class BlobCodec {
+    private final int id;
+    private final String name;
+
+    protected BlobCodec(int id, String name) {
+        Preconditions.checkArgument(id >= 0 && id <= Byte.MAX_VALUE);
+        this.id = id;
+        this.name = Preconditions.checkNotNull(name);
+    }
+
+    /** Returns the id written into blobs. It must never be reused by another codec. */
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the most bytes which {@link #compress} may write for {@code length} bytes of input. */
+    public abstract int maxCompressedLength(int length);
+
+    /** Compresses {@code length} bytes of {@code in} into {@code out}, and returns the number of bytes written. */
+    public abstract int compress(byte[] in, int offset, int length, byte[] out, int outOffset);
+
+    /** Uncompresses {@code length} bytes of {@code in} into the first {@code outLength} bytes of {@code out}. */
+    public abstract void uncompress(byte[] in, int offset, int length, byte[] out, int outLength) throws IOException;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
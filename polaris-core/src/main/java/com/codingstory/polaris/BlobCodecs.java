@@ -0,0 +1,319 @@
+package com.codingstory.polaris;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codecs of stored blobs, and the blob format shared by all of them.
+ *
+ * <p>A {@link #SNAPPY} blob is a bare Snappy stream, as written before codecs were pluggable. Any other blob is
+ * framed as {@code 0x00, codec id, varint of uncompressed length, compressed bytes}. A Snappy stream starts with the
+ * varint of its uncompressed length, which is {@code 0x00} only for the one-byte stream of nothing, so the two never
+ * clash. Blobs of all codecs may be mixed in one index, e.g. after shards written with different codecs are merged.
+ *
+ * <p>Lucene already compresses stored fields in blocks of adjacent documents, which saves little on blobs which are
+ * compressed one by one. {@link #NONE} leaves blobs to the block compression, which suits small records.
+ * {@link #DEFLATE_USAGE} and {@link #DEFLATE_TYPE} compress each blob with a preset dictionary of strings common to
+ * usages and types, so that even a small record finds matches. Dictionaries are part of the format: to change one,
+ * add a codec with a new id.
+ */
+public final class BlobCodecs {
+    private static final byte FRAME_MARK = 0;
+
+    public static final BlobCodec NONE = new BlobCodec(0, "none") {
+        @Override
+        public int maxCompressedLength(int length) {
+            return length;
+        }
+
+        @Override
+        public int compress(byte[] in, int offset, int length, byte[] out, int outOffset) {
+            System.arraycopy(in, offset, out, outOffset, length);
+            return length;
+        }
+
+        @Override
+        public void uncompress(byte[] in, int offset, int length, byte[] out, int outLength) throws IOException {
+            if (length != outLength) {
+                throw new IOException("Bad length: " + length + ", expected: " + outLength);
+            }
+            System.arraycopy(in, offset, out, 0, length);
+        }
+    };
+
+    public static final BlobCodec SNAPPY = new BlobCodec(1, "snappy") {
+        @Override
+        public int maxCompressedLength(int length) {
+            return Snappy.maxCompressedLength(length);
+        }
+
+        @Override
+        public int compress(byte[] in, int offset, int length, byte[] out, int outOffset) {
+            return Snappy.compress(in, offset, length, out, outOffset);
+        }
+
+        @Override
+        public void uncompress(byte[] in, int offset, int length, byte[] out, int outLength) throws IOException {
+            try {
+                int n = Snappy.uncompress(in, offset, length, out, 0);
+                if (n != outLength) {
+                    throw new IOException("Bad length: " + n + ", expected: " + outLength);
+                }
+            } catch (CorruptionException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    public static final BlobCodec DEFLATE = new DeflateCodec(2, "deflate", null);
+    public static final BlobCodec DEFLATE_USAGE = new DeflateCodec(3, "deflate-usage", BlobDictionaries.USAGE);
+    public static final BlobCodec DEFLATE_TYPE = new DeflateCodec(4, "deflate-type", BlobDictionaries.TYPE);
+
+    private static final List<BlobCodec> CODECS = ImmutableList.of(NONE, SNAPPY, DEFLATE, DEFLATE_USAGE, DEFLATE_TYPE);
+    private static final BlobCodec[] CODECS_BY_ID = new BlobCodec[Byte.MAX_VALUE + 1];
+    static {
+        for (BlobCodec codec : CODECS) {
+            Preconditions.checkState(CODECS_BY_ID[codec.getId()] == null, "Duplicate id: " + codec.getId());
+            CODECS_BY_ID[codec.getId()] = codec;
+        }
+    }
+
+    private static final ScratchBuffer SERIALIZED = new ScratchBuffer();
+    private static final ScratchBuffer ENCODED = new ScratchBuffer();
+    private static final ScratchBuffer DECODED = new ScratchBuffer();
+
+    private BlobCodecs() {}
+
+    public static List<BlobCodec> all() {
+        return CODECS;
+    }
+
+    public static BlobCodec forName(String name) {
+        Preconditions.checkNotNull(name);
+        for (BlobCodec codec : CODECS) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec: " + name);
+    }
+
+    public static byte[] encode(BlobCodec codec, byte[] in) {
+        return encode(codec, in, 0, in.length);
+    }
+
+    public static byte[] encode(BlobCodec codec, byte[] in, int offset, int length) {
+        Preconditions.checkNotNull(codec);
+        if (codec == SNAPPY) {
+            return SnappyUtils.compress(in, offset, length);
+        }
+        byte[] out = ENCODED.get(2 + CodedOutputStream.computeRawVarint32Size(length)
+                + codec.maxCompressedLength(length));
+        out[0] = FRAME_MARK;
+        out[1] = (byte) codec.getId();
+        int pos = writeVarint32(length, out, 2);
+        pos += codec.compress(in, offset, length, out, pos);
+        return Arrays.copyOf(out, pos);
+    }
+
+    /** Encodes the serialized form of a message, without building the serialized array. */
+    public static byte[] encode(BlobCodec codec, MessageLite message) {
+        int size = message.getSerializedSize();
+        byte[] serialized = SERIALIZED.get(size);
+        CodedOutputStream output = CodedOutputStream.newInstance(serialized, 0, size);
+        try {
+            message.writeTo(output);
+        } catch (IOException e) {
+            throw new AssertionError(e); // writing to an array of the exact size
+        }
+        output.checkNoSpaceLeft();
+        return encode(codec, serialized, 0, size);
+    }
+
+    public static byte[] encode(BlobCodec codec, String s) {
+        return encode(codec, s.getBytes(Charsets.UTF_8));
+    }
+
+    public static CodedInputStream decode(byte[] in) throws IOException {
+        return decode(in, 0, in.length);
+    }
+
+    /**
+     * Decodes a blob of any codec, and returns a stream reading it. The stream may read a scratch buffer of this
+     * thread, so it must be used up, usually by parsing a message from it, before decoding another blob.
+     */
+    public static CodedInputStream decode(byte[] in, int offset, int length) throws IOException {
+        Slice slice = decodeToSlice(in, offset, length);
+        return CodedInputStream.newInstance(slice.bytes, slice.offset, slice.length);
+    }
+
+    /** Decodes a blob of any codec as a string. */
+    public static String decodeToString(byte[] in, Charset charset) throws IOException {
+        Slice slice = decodeToSlice(in, 0, in.length);
+        return new String(slice.bytes, slice.offset, slice.length, charset);
+    }
+
+    /** Returns the codec which wrote a blob. */
+    public static BlobCodec codecOf(byte[] in, int offset, int length) throws IOException {
+        return isFramed(in, offset, length) ? codecOf(in, offset) : SNAPPY;
+    }
+
+    /** Bytes of a decoded blob, either in the blob itself or in a scratch buffer. */
+    private static class Slice {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+
+        private Slice(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static Slice decodeToSlice(byte[] in, int offset, int length) throws IOException {
+        if (!isFramed(in, offset, length)) {
+            try {
+                byte[] out = DECODED.get(Snappy.getUncompressedLength(in, offset));
+                return new Slice(out, 0, Snappy.uncompress(in, offset, length, out, 0));
+            } catch (CorruptionException e) {
+                throw new IOException(e);
+            }
+        }
+        BlobCodec codec = codecOf(in, offset);
+        int pos = offset + 2;
+        int end = offset + length;
+        int decodedLength = readVarint32(in, pos, end);
+        pos += CodedOutputStream.computeRawVarint32Size(decodedLength);
+        if (codec == NONE) {
+            if (end - pos != decodedLength) {
+                throw new IOException("Bad length: " + (end - pos) + ", expected: " + decodedLength);
+            }
+            return new Slice(in, pos, decodedLength);
+        }
+        byte[] out = DECODED.get(decodedLength);
+        codec.uncompress(in, pos, end - pos, out, decodedLength);
+        return new Slice(out, 0, decodedLength);
+    }
+
+    private static boolean isFramed(byte[] in, int offset, int length) {
+        return length > 1 && in[offset] == FRAME_MARK;
+    }
+
+    private static BlobCodec codecOf(byte[] in, int offset) throws IOException {
+        BlobCodec codec = in[offset + 1] >= 0 ? CODECS_BY_ID[in[offset + 1]] : null;
+        if (codec == null) {
+            throw new IOException("Unknown codec id: " + in[offset + 1]);
+        }
+        return codec;
+    }
+
+    private static int writeVarint32(int value, byte[] out, int pos) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int readVarint32(byte[] in, int pos, int end) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos == end) {
+                throw new IOException("Truncated blob");
+            }
+            byte b = in[pos++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed length");
+    }
+
+    /** Raw Deflate, optionally with a preset dictionary. */
+    private static class DeflateCodec extends BlobCodec {
+        private final byte[] dictionary; // null if none
+        private final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+        };
+        private final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+            @Override
+            protected Inflater initialValue() {
+                return new Inflater(true);
+            }
+        };
+
+        private DeflateCodec(int id, String name, byte[] dictionary) {
+            super(id, name);
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            // Bound of zlib's deflateBound(), plus room for the final empty block.
+            return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 8;
+        }
+
+        @Override
+        public int compress(byte[] in, int offset, int length, byte[] out, int outOffset) {
+            Deflater d = deflater.get();
+            d.reset();
+            if (dictionary != null) {
+                d.setDictionary(dictionary);
+            }
+            d.setInput(in, offset, length);
+            d.finish();
+            int pos = outOffset;
+            while (!d.finished()) {
+                int n = d.deflate(out, pos, out.length - pos);
+                Preconditions.checkState(n > 0 || d.finished(), "Output buffer is too small");
+                pos += n;
+            }
+            return pos - outOffset;
+        }
+
+        @Override
+        public void uncompress(byte[] in, int offset, int length, byte[] out, int outLength) throws IOException {
+            Inflater i = inflater.get();
+            i.reset();
+            if (dictionary != null) {
+                i.setDictionary(dictionary);
+            }
+            i.setInput(in, offset, length);
+            int pos = 0;
+            try {
+                while (pos < outLength) {
+                    int n = i.inflate(out, pos, outLength - pos);
+                    if (n == 0 && (i.finished() || i.needsInput())) {
+                        break;
+                    }
+                    pos += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            if (pos != outLength) {
+                throw new IOException("Bad length: " + pos + ", expected: " + outLength);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.codingstory.polaris;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+
+/**
+ * Preset Deflate dictionaries of {@link BlobCodecs}. Deflate finds matches in the dictionary as if it preceded each
+ * blob, and encodes near matches cheaper, so the most common strings come last.
+ *
+ * <p>Blobs can only be decoded with the dictionary they were encoded with. Never edit a dictionary.
+ */
+final class BlobDictionaries {
+    private static final String JAVA_COMMON = Joiner.on('\n').join(
+            "java.util.concurrent.",
+            "java.io.IOException",
+            "java.io.File",
+            "java.util.Collection",
+            "java.util.Iterator",
+            "java.util.Set",
+            "java.util.Map",
+            "java.util.List",
+            "java.lang.Integer",
+            "java.lang.Long",
+            "java.lang.Class",
+            "java.lang.Exception",
+            "java.lang.RuntimeException",
+            "java.lang.Object",
+            "java.lang.String",
+            "org.apache.",
+            "com.google.",
+            "/src/test/java/",
+            "/src/main/java/org/",
+            "/src/main/java/com/",
+            "Test.java",
+            "Impl.java",
+            "Utils.java",
+            ".java");
+
+    /** Strings of usages, whose snippets are lines of code. */
+    static final byte[] USAGE = (JAVA_COMMON + "\n" + Joiner.on('\n').join(
+            "import static ",
+            "@Override",
+            "throw new ",
+            "catch (",
+            "try {",
+            "} else {",
+            "for (int i = 0; i < ",
+            "while (",
+            ".size()",
+            ".length",
+            ".get(",
+            ".add(",
+            ".put(",
+            "new ",
+            "null",
+            "true",
+            "false",
+            "boolean ",
+            "long ",
+            "int ",
+            "void ",
+            "String ",
+            "this.",
+            "final ",
+            "static ",
+            "protected ",
+            "private ",
+            "public ",
+            "return ",
+            "if (",
+            " = ",
+            "();",
+            "import ")).getBytes(Charsets.UTF_8);
+
+    /** Strings of types: names, signatures and javadoc. */
+    static final byte[] TYPE = (JAVA_COMMON + "\n" + Joiner.on('\n').join(
+            "serialVersionUID",
+            "equals",
+            "hashCode",
+            "toString",
+            "close",
+            "size",
+            "create",
+            "build",
+            "<init>",
+            "@throws ",
+            "@return ",
+            "@param ",
+            "Returns the ",
+            " * ",
+            "/**",
+            "*/",
+            "boolean",
+            "long",
+            "int",
+            "void",
+            "is",
+            "set",
+            "get")).getBytes(Charsets.UTF_8);
+
+    private BlobDictionaries() {}
+}
@@ -0,0 +1,44 @@
+package com.codingstory.polaris;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+/**
+ * Derives ids from identities of entities, e.g. project, path and full name, so that processes indexing different
+ * shards agree on ids without coordination, and an entity keeps its id when it is indexed again.
+ *
+ * <p>An id is the lower 63 bits of the 128-bit murmur3 hash of the identity. It depends on nothing but the identity,
+ * so the generator keeps no state. Two identities hashing to the same id are only expected after billions of
+ * entities. They are not resolved here, since that would make ids depend on the order identities are seen, but
+ * {@link com.codingstory.polaris.pipeline.ParallelIndexer} reports them while building the index.
+ */
+public class HashIdGenerator implements IdGenerator {
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    /** Generates an id for an entity without a stable identity. */
+    @Override
+    public long next() {
+        return next(UUID.randomUUID().toString());
+    }
+
+    @Override
+    public long next(String identity) {
+        Preconditions.checkNotNull(identity);
+        for (int salt = 0; ; salt++) {
+            String salted = (salt == 0 ? identity : identity + "#" + salt);
+            ByteBuffer hash = ByteBuffer.wrap(HASH_FUNCTION.hashString(salted, Charsets.UTF_8).asBytes())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            long id = hash.getLong(0) & Long.MAX_VALUE;
+            if (id > MAX_RESERVED_ID) {
+                return id;
+            }
+            // Rehashes with a salt. It depends only on the identity, so the id is still stable.
+        }
+    }
+}
@@ -3,4 +3,7 @@ package com.codingstory.polaris;
 public interface IdGenerator {
     static final long MAX_RESERVED_ID = 10000;
     long next();
+
+    /** Generates an id for the entity identified by {@code identity}, e.g. "type:project:/A.java:pkg.A". */
+    long next(String identity);
 }
@@ -1,5 +1,7 @@
 package com.codingstory.polaris;
 
+import com.google.common.base.Joiner;
+
 public class IdUtils {
     private IdUtils() {}
 
@@ -13,4 +15,9 @@ public class IdUtils {
     public static boolean isValid(long id) {
         return id > 0;
     }
+
+    /** Joins parts of an identity for {@link IdGenerator#next(String)}, e.g. kind, project, path and name. */
+    public static String identityOf(Object... parts) {
+        return Joiner.on(':').join(parts);
+    }
 }
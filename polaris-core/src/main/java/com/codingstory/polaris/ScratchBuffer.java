@@ -0,0 +1,27 @@
+package com.codingstory.polaris;
+
+/**
+ * A per-thread byte array reused across calls. Larger buffers than {@link #MAX_RETAINED_SIZE} are not kept after use,
+ * so that a huge blob does not pin its memory in every thread.
+ */
+class ScratchBuffer extends ThreadLocal<byte[]> {
+    private static final int MAX_RETAINED_SIZE = 1 << 20;
+
+    @Override
+    protected byte[] initialValue() {
+        return new byte[4096];
+    }
+
+    /** Returns a buffer of at least {@code size} bytes, which is valid until the next call in this thread. */
+    public byte[] get(int size) {
+        byte[] buffer = get();
+        if (buffer.length >= size) {
+            return buffer;
+        }
+        buffer = new byte[Math.max(size, Math.min(buffer.length * 2, MAX_RETAINED_SIZE))];
+        if (buffer.length <= MAX_RETAINED_SIZE) {
+            set(buffer);
+        }
+        return buffer;
+    }
+}
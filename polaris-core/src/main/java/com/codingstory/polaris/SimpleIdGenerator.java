@@ -1,12 +1,30 @@
 package com.codingstory.polaris;
 
-import java.io.IOException;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SimpleIdGenerator implements IdGenerator {
-    private long n = MAX_RESERVED_ID + 1;
+    private final AtomicLong n;
+
+    public SimpleIdGenerator() {
+        this(MAX_RESERVED_ID + 1);
+    }
+
+    /** Starts from {@code first}, e.g. to continue numbering of an existing index. */
+    public SimpleIdGenerator(long first) {
+        Preconditions.checkArgument(first > MAX_RESERVED_ID);
+        n = new AtomicLong(first);
+    }
 
     @Override
     public long next() {
-        return n++;
+        return n.getAndIncrement();
+    }
+
+    /** Ignores the identity, so ids only depend on the order of calls. */
+    @Override
+    public long next(String identity) {
+        return next();
     }
 }
@@ -4,12 +4,22 @@ import org.iq80.snappy.Snappy;
 
 import java.util.Arrays;
 
+/**
+ * Snappy compression of stored blobs. Compressed bytes go to a per-thread scratch buffer, so that compressing a blob
+ * allocates only the result. Blobs are usually written and read through {@link BlobCodecs}.
+ */
 public class SnappyUtils {
+    private static final ScratchBuffer COMPRESSED = new ScratchBuffer();
+
     private SnappyUtils() {}
 
     public static byte[] compress(byte[] in) {
-        byte[] out = new byte[Snappy.maxCompressedLength(in.length)];
-        int len = Snappy.compress(in, 0, in.length, out, 0);
+        return compress(in, 0, in.length);
+    }
+
+    public static byte[] compress(byte[] in, int offset, int length) {
+        byte[] out = COMPRESSED.get(Snappy.maxCompressedLength(length));
+        int len = Snappy.compress(in, offset, length, out, 0);
         return Arrays.copyOf(out, len);
     }
 
@@ -18,7 +28,7 @@ public class SnappyUtils {
     }
 
     public static byte[] uncompress(byte[] in, int offset, int length) {
-        byte[] out = new byte[Snappy.getUncompressedLength(in, 0)];
+        byte[] out = new byte[Snappy.getUncompressedLength(in, offset)];
         Snappy.uncompress(in, offset, length, out, 0);
         return out;
     }
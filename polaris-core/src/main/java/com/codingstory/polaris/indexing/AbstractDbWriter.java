@@ -0,0 +1,123 @@
+package com.codingstory.polaris.indexing;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Manages the Lucene index writer of a DB. {@link #flush()} commits added documents, and then merges segments only
+ * if there are more than {@link IndexWriterOptions#getMaxSegmentCount()}, so that a small update costs little. The
+ * merge may run in background. It is not committed then, since the caller may be adding or deleting documents
+ * meanwhile: merged segments become visible with the next {@link #flush()} or {@link #close()}, together with the
+ * documents flushed by the caller.
+ */
+public abstract class AbstractDbWriter implements DbWriter {
+    private static final Log LOG = LogFactory.getLog(AbstractDbWriter.class);
+
+    protected final IndexWriter writer;
+    private final IndexWriterOptions options;
+    private final ExecutorService mergeExecutor;
+    private Future<Void> pendingMerge;
+
+    protected AbstractDbWriter(File path, Analyzer analyzer, IndexWriterOptions options) throws IOException {
+        Preconditions.checkNotNull(path);
+        Preconditions.checkNotNull(analyzer);
+        this.options = Preconditions.checkNotNull(options);
+        this.writer = new IndexWriter(FSDirectory.open(path), options.createConfig(analyzer));
+        this.mergeExecutor = options.isBackgroundMerge() ? Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("polaris-merger-%d")
+                        .setDaemon(true)
+                        .build()) : null;
+    }
+
+    @Override
+    public void addIndexes(List<File> paths) throws IOException {
+        Preconditions.checkNotNull(paths);
+        Directory[] dirs = new Directory[paths.size()];
+        try {
+            for (int i = 0; i < dirs.length; i++) {
+                dirs[i] = FSDirectory.open(paths.get(i));
+            }
+            writer.addIndexes(dirs);
+        } finally {
+            IOUtils.closeWhileHandlingException(dirs);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        waitForPendingMerge();
+        writer.commit();
+        Callable<Void> merge = new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                StopWatch stopWatch = new StopWatch();
+                stopWatch.start();
+                // No-op if the merge policy already keeps segments within the budget.
+                writer.forceMerge(options.getMaxSegmentCount());
+                LOG.debug("Merged segments in " + stopWatch.getTime() + " ms");
+                return null;
+            }
+        };
+        if (mergeExecutor != null) {
+            pendingMerge = mergeExecutor.submit(merge);
+        } else {
+            try {
+                merge.call();
+            } catch (Exception e) {
+                Throwables.propagateIfInstanceOf(e, IOException.class);
+                throw Throwables.propagate(e);
+            }
+            writer.commit(); // nothing else was added meanwhile
+        }
+    }
+
+    /** Waits for the background merge started by the last {@link #flush()}, if any. */
+    public void waitForPendingMerge() throws IOException {
+        if (pendingMerge == null) {
+            return;
+        }
+        try {
+            pendingMerge.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Merge is interrupted");
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            pendingMerge = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            waitForPendingMerge();
+        } finally {
+            if (mergeExecutor != null) {
+                mergeExecutor.shutdown();
+            }
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.codingstory.polaris.indexing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/** Operations shared by writers of TypeDb, SourceDb and UsageDb. */
+public interface DbWriter extends Closeable {
+    /** Adds all documents of other indexes of the same kind, e.g. shards built in parallel. */
+    void addIndexes(List<File> paths) throws IOException;
+
+    void flush() throws IOException;
+    void close() throws IOException;
+}
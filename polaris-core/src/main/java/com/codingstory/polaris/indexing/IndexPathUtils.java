@@ -16,4 +16,12 @@ public class IndexPathUtils {
     public static File getSourceDbPath(File base) {
         return new File(base, "sourcedb");
     }
+
+    public static File getSuggesterPath(File base) {
+        return new File(base, "suggester");
+    }
+
+    public static File getIndexStatePath(File base) {
+        return new File(base, "state");
+    }
 }
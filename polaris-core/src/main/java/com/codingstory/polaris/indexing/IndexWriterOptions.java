@@ -0,0 +1,104 @@
+package com.codingstory.polaris.indexing;
+
+import com.codingstory.polaris.BlobCodec;
+import com.codingstory.polaris.BlobCodecs;
+import com.google.common.base.Preconditions;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.util.Version;
+
+/** Tunes the Lucene index writers of TypeDb, SourceDb and UsageDb. */
+public class IndexWriterOptions {
+    private double ramBufferSizeMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+    private double segmentsPerTier = 10;
+    private int maxSegmentCount = 10;
+    private boolean backgroundMerge = false;
+    private BlobCodec typeBlobCodec = BlobCodecs.SNAPPY;
+    private BlobCodec sourceBlobCodec = BlobCodecs.SNAPPY;
+    private BlobCodec usageBlobCodec = BlobCodecs.SNAPPY;
+
+    public double getRamBufferSizeMB() {
+        return ramBufferSizeMB;
+    }
+
+    /** Sets how much RAM each writer uses to buffer documents before it flushes a segment to disk. */
+    public IndexWriterOptions setRamBufferSizeMB(double ramBufferSizeMB) {
+        Preconditions.checkArgument(ramBufferSizeMB > 0);
+        this.ramBufferSizeMB = ramBufferSizeMB;
+        return this;
+    }
+
+    public double getSegmentsPerTier() {
+        return segmentsPerTier;
+    }
+
+    /** Sets how many segments of about the same size the tiered merge policy allows before merging them. */
+    public IndexWriterOptions setSegmentsPerTier(double segmentsPerTier) {
+        Preconditions.checkArgument(segmentsPerTier >= 2);
+        this.segmentsPerTier = segmentsPerTier;
+        return this;
+    }
+
+    public int getMaxSegmentCount() {
+        return maxSegmentCount;
+    }
+
+    /** Sets the number of segments above which a flush merges the index down. 1 fully merges on every flush. */
+    public IndexWriterOptions setMaxSegmentCount(int maxSegmentCount) {
+        Preconditions.checkArgument(maxSegmentCount > 0);
+        this.maxSegmentCount = maxSegmentCount;
+        return this;
+    }
+
+    public boolean isBackgroundMerge() {
+        return backgroundMerge;
+    }
+
+    /** Lets a flush return before the merge it starts is done. The merge is committed by the next flush or close. */
+    public IndexWriterOptions setBackgroundMerge(boolean backgroundMerge) {
+        this.backgroundMerge = backgroundMerge;
+        return this;
+    }
+
+    public BlobCodec getTypeBlobCodec() {
+        return typeBlobCodec;
+    }
+
+    /** Sets the codec of types stored in TypeDb. */
+    public IndexWriterOptions setTypeBlobCodec(BlobCodec typeBlobCodec) {
+        this.typeBlobCodec = Preconditions.checkNotNull(typeBlobCodec);
+        return this;
+    }
+
+    public BlobCodec getSourceBlobCodec() {
+        return sourceBlobCodec;
+    }
+
+    /** Sets the codec of file records and sources stored in SourceDb. */
+    public IndexWriterOptions setSourceBlobCodec(BlobCodec sourceBlobCodec) {
+        this.sourceBlobCodec = Preconditions.checkNotNull(sourceBlobCodec);
+        return this;
+    }
+
+    public BlobCodec getUsageBlobCodec() {
+        return usageBlobCodec;
+    }
+
+    /** Sets the codec of usages stored in UsageDb. */
+    public IndexWriterOptions setUsageBlobCodec(BlobCodec usageBlobCodec) {
+        this.usageBlobCodec = Preconditions.checkNotNull(usageBlobCodec);
+        return this;
+    }
+
+    public IndexWriterConfig createConfig(Analyzer analyzer) {
+        Preconditions.checkNotNull(analyzer);
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        config.setRAMBufferSizeMB(ramBufferSizeMB);
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(segmentsPerTier);
+        config.setMergePolicy(mergePolicy);
+        return config;
+    }
+}
@@ -0,0 +1,118 @@
+package com.codingstory.polaris.indexing.analysis;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Splits identifiers into subwords at camel-case humps and at '.', '_' and '$'. Each token is kept, and followed by
+ * its subwords at the same position: "java.util.ArrayList" is followed by "java", "util", "Array" and "List". In
+ * suffix mode, it is followed by the suffixes starting at each subword instead: "util.ArrayList", "ArrayList" and
+ * "List", so that edge n-grams of them complete any subword.
+ *
+ * <p>A run of capitals is one subword, except its last capital if a lowercase letter follows: "HTTPServer" splits into
+ * "HTTP" and "Server". Digits stay with the subword before them.
+ */
+public final class CamelCaseFilter extends TokenFilter {
+    private final boolean suffixes;
+    private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAttribute = addAttribute(OffsetAttribute.class);
+    private final PositionIncrementAttribute positionIncrementAttribute =
+            addAttribute(PositionIncrementAttribute.class);
+    private State state;
+    private char[] term = new char[16];
+    private int termLength;
+    private int[] starts = new int[8]; // of subwords
+    private int count;
+    private int next;
+
+    public CamelCaseFilter(TokenStream input, boolean suffixes) {
+        super(input);
+        this.suffixes = suffixes;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        while (next < count) {
+            int start = starts[next];
+            int end = suffixes || next + 1 == count ? termLength : starts[next + 1];
+            next++;
+            while (end > start && isSeparator(term[end - 1])) {
+                end--;
+            }
+            if (end == start || (start == 0 && end == termLength)) {
+                continue; // e.g. a leading '_', or the token itself
+            }
+            restoreState(state);
+            termAttribute.copyBuffer(term, start, end - start);
+            positionIncrementAttribute.setPositionIncrement(0);
+            int startOffset = offsetAttribute.startOffset();
+            if (offsetAttribute.endOffset() - startOffset == termLength) {
+                offsetAttribute.setOffset(startOffset + start, startOffset + end);
+            }
+            return true;
+        }
+        if (!input.incrementToken()) {
+            return false;
+        }
+        termLength = termAttribute.length();
+        if (term.length < termLength) {
+            term = new char[termLength];
+        }
+        System.arraycopy(termAttribute.buffer(), 0, term, 0, termLength);
+        findSubwords();
+        state = count > 1 ? captureState() : null;
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        state = null;
+        count = 0;
+        next = 0;
+    }
+
+    private void findSubwords() {
+        count = 0;
+        next = suffixes ? 1 : 0; // the first suffix is the token itself
+        for (int i = 0; i < termLength; i++) {
+            if (i == 0 || isBoundary(i)) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i;
+            }
+        }
+        if (count <= 1) {
+            count = 0; // nothing to split
+        }
+    }
+
+    private boolean isBoundary(int i) {
+        char previous = term[i - 1];
+        char current = term[i];
+        if (!Character.isLetterOrDigit(current)) {
+            return false;
+        }
+        if (isSeparator(previous)) {
+            return true;
+        }
+        if (!Character.isUpperCase(current)) {
+            return false;
+        }
+        if (Character.isLowerCase(previous) || Character.isDigit(previous)) {
+            return true;
+        }
+        return Character.isUpperCase(previous) && i + 1 < termLength && Character.isLowerCase(term[i + 1]);
+    }
+
+    private static boolean isSeparator(char ch) {
+        return ch == '.' || ch == '_' || ch == '$';
+    }
+}
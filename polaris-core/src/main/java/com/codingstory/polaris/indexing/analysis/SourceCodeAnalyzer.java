@@ -3,6 +3,7 @@ package com.codingstory.polaris.indexing.analysis;
 import com.codingstory.polaris.sourcedb.SourceDbIndexedField;
 import com.google.common.collect.ImmutableSet;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.core.KeywordTokenizer;
 import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.util.Version;
@@ -10,28 +11,49 @@ import org.apache.lucene.util.Version;
 import java.io.Reader;
 import java.util.Set;
 
+/**
+ * Analyzes sources and paths. The index-time analyzer also indexes subwords of identifiers, so that "Stream" matches
+ * "InputStream". The query-time analyzer leaves identifiers whole, so that "InputStream" does not match "Input".
+ */
 public final class SourceCodeAnalyzer extends Analyzer {
 
-    private static final SourceCodeAnalyzer INSTANCE = new SourceCodeAnalyzer();
+    private static final SourceCodeAnalyzer INSTANCE = new SourceCodeAnalyzer(true);
+    private static final SourceCodeAnalyzer QUERY_INSTANCE = new SourceCodeAnalyzer(false);
     private static final Set<String> ANALYZED_FIELDS = ImmutableSet.of(
             SourceDbIndexedField.PROJECT_RAW,
             SourceDbIndexedField.PATH,
             SourceDbIndexedField.SOURCE_TEXT);
+    private static final Set<String> SUBWORD_FIELDS = ImmutableSet.of(
+            SourceDbIndexedField.PATH,
+            SourceDbIndexedField.SOURCE_TEXT);
+
+    private final boolean subwords;
 
-    private SourceCodeAnalyzer() {
+    private SourceCodeAnalyzer(boolean subwords) {
+        super(new PerFieldReuseStrategy()); // fields have different token streams
+        this.subwords = subwords;
     }
 
     @Override
     protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
         if (ANALYZED_FIELDS.contains(fieldName)) {
-            return new TokenStreamComponents(new StandardTokenizer(Version.LUCENE_43, reader));
+            Tokenizer source = new StandardTokenizer(Version.LUCENE_43, reader);
+            if (subwords && SUBWORD_FIELDS.contains(fieldName)) {
+                return new TokenStreamComponents(source, new CamelCaseFilter(source, false));
+            }
+            return new TokenStreamComponents(source);
         } else {
             return new TokenStreamComponents(new KeywordTokenizer(reader));
         }
     }
 
+    /** Returns the analyzer of documents. */
     public static SourceCodeAnalyzer getInstance() {
         return INSTANCE;
     }
-}
 
+    /** Returns the analyzer of queries. */
+    public static SourceCodeAnalyzer getQueryInstance() {
+        return QUERY_INSTANCE;
+    }
+}
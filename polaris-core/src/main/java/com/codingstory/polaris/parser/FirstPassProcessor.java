@@ -1,6 +1,7 @@
 package com.codingstory.polaris.parser;
 
 import com.codingstory.polaris.IdGenerator;
+import com.codingstory.polaris.IdUtils;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
@@ -8,10 +9,15 @@ import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
 import com.codingstory.polaris.parser.ParserProtos.Span;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import japa.parser.ast.CompilationUnit;
 import japa.parser.ast.PackageDeclaration;
 import japa.parser.ast.body.AnnotationDeclaration;
 import japa.parser.ast.body.ClassOrInterfaceDeclaration;
+import japa.parser.ast.body.ConstructorDeclaration;
 import japa.parser.ast.body.EnumDeclaration;
+import japa.parser.ast.body.InitializerDeclaration;
+import japa.parser.ast.body.MethodDeclaration;
+import japa.parser.ast.expr.ObjectCreationExpr;
 import japa.parser.ast.visitor.VoidVisitorAdapter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -20,6 +26,8 @@ import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
+import static com.codingstory.polaris.parser.ParserUtils.localClassKeyOf;
+import static com.codingstory.polaris.parser.ParserUtils.localTypeIdentityOf;
 import static com.codingstory.polaris.parser.ParserUtils.makeTypeName;
 import static com.codingstory.polaris.parser.ParserUtils.nodeSpan;
 
@@ -51,6 +59,8 @@ public class FirstPassProcessor {
         private final FileHandle file;
         private final IdGenerator idGenerator;
         private final LinkedList<String> typeStack = Lists.newLinkedList();
+        private final LinkedList<String> localClassKeys = Lists.newLinkedList(); // of anonymous or local classes
+        private int methodDepth = 0;
         private final List<ClassType> discoveredClasses = Lists.newArrayList();
 
         private FirstPassVisitor(FileHandle file, IdGenerator idGenerator) {
@@ -68,7 +78,7 @@ public class FirstPassProcessor {
         public void visit(AnnotationDeclaration ast, Void arg) {
             processTypeAndPushStack(ast.getName(), ClassType.Kind.ANNOTATION, nodeSpan(ast.getNameExpr()));
             super.visit(ast, arg);
-            typeStack.removeLast();
+            popType();
         }
 
         @Override
@@ -78,20 +88,57 @@ public class FirstPassProcessor {
                     ast.isInterface() ? ClassType.Kind.INTERFACE : ClassType.Kind.CLASS,
                     nodeSpan(ast.getNameExpr()));
             super.visit(ast, arg);
-            typeStack.removeLast();
+            popType();
         }
 
         @Override
         public void visit(EnumDeclaration ast, Void arg) {
             processTypeAndPushStack(ast.getName(), ClassType.Kind.ENUM, nodeSpan(ast.getNameExpr()));
             super.visit(ast, arg);
-            typeStack.removeLast();
+            popType();
+        }
+
+        @Override
+        public void visit(MethodDeclaration ast, Void arg) {
+            methodDepth++;
+            super.visit(ast, arg);
+            methodDepth--;
+        }
+
+        @Override
+        public void visit(ConstructorDeclaration ast, Void arg) {
+            methodDepth++;
+            super.visit(ast, arg);
+            methodDepth--;
+        }
+
+        @Override
+        public void visit(InitializerDeclaration ast, Void arg) {
+            methodDepth++;
+            super.visit(ast, arg);
+            methodDepth--;
+        }
+
+        @Override
+        public void visit(ObjectCreationExpr ast, Void arg) {
+            if (ast.getAnonymousClassBody() == null) {
+                super.visit(ast, arg);
+                return;
+            }
+            localClassKeys.addLast(localClassKeyOf(nodeSpan(ast.getType())));
+            super.visit(ast, arg);
+            localClassKeys.removeLast();
         }
 
         private void processTypeAndPushStack(String simpleName, ClassType.Kind kind, Span span) {
             String fullName = makeTypeName(pkg, typeStack, simpleName);
+            if (methodDepth > 0) {
+                // Declared in a method body, so another local class may have the same name.
+                localClassKeys.addLast(localClassKeyOf(span));
+            }
+            String identity = localTypeIdentityOf(fullName, localClassKeys);
             ClassTypeHandle handle = ClassTypeHandle.newBuilder()
-                    .setId(idGenerator.next())
+                    .setId(idGenerator.next(IdUtils.identityOf("type", file.getProject(), file.getPath(), identity)))
                     .setName(fullName)
                     .setResolved(true)
                     .build();
@@ -109,6 +156,13 @@ public class FirstPassProcessor {
             discoveredClasses.add(clazz);
         }
 
+        private void popType() {
+            typeStack.removeLast();
+            if (methodDepth > 0) {
+                localClassKeys.removeLast();
+            }
+        }
+
         public Result getResult() {
             return new Result(pkg, discoveredClasses);
         }
@@ -118,10 +172,17 @@ public class FirstPassProcessor {
             FileHandle file,
             String source,
             IdGenerator idGenerator) throws IOException {
+        return process(file, ParserUtils.parse(source), idGenerator);
+    }
+
+    public static Result process(
+            FileHandle file,
+            CompilationUnit compilationUnit,
+            IdGenerator idGenerator) throws IOException {
         FirstPassVisitor visitor = new FirstPassVisitor(
                 Preconditions.checkNotNull(file),
                 Preconditions.checkNotNull(idGenerator));
-        ParserUtils.safeVisit(source, visitor);
+        ParserUtils.safeVisit(compilationUnit, visitor);
         return visitor.getResult();
     }
 }
@@ -1,6 +1,7 @@
 package com.codingstory.polaris.parser;
 
 import com.google.common.collect.Lists;
+import japa.parser.ast.CompilationUnit;
 import japa.parser.ast.ImportDeclaration;
 import japa.parser.ast.PackageDeclaration;
 import japa.parser.ast.visitor.VoidVisitorAdapter;
@@ -66,8 +67,12 @@ public class ImportExtractor {
     }
 
     public static Result findImports(String source) throws IOException {
+        return findImports(ParserUtils.parse(source));
+    }
+
+    public static Result findImports(CompilationUnit compilationUnit) throws IOException {
         ImportExtractVisitor visitor = new ImportExtractVisitor();
-        ParserUtils.safeVisit(source, visitor);
+        ParserUtils.safeVisit(compilationUnit, visitor);
         return visitor.getResult();
     }
 }
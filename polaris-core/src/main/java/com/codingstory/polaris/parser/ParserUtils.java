@@ -24,16 +24,36 @@ import static com.codingstory.polaris.parser.TypeUtils.positionOf;
 import static com.codingstory.polaris.parser.TypeUtils.spanOf;
 
 public final class ParserUtils {
+    static {
+        // By default JavaParser reuses one static ASTParser for all callers, which races when several threads
+        // parse at once. Without the cache every call gets its own parser, and ASTParser keeps no other shared
+        // mutable state, so parsing needs no lock.
+        JavaParser.setCacheParser(false);
+    }
+
     private ParserUtils() {}
 
     public static void safeVisit(String s, VoidVisitor<?> visitor) throws IOException {
+        safeVisit(parse(s), visitor);
+    }
+
+    /** Visits an already parsed compilation unit, so that several passes can share one parse. */
+    public static void safeVisit(CompilationUnit compilationUnit, VoidVisitor<?> visitor) throws IOException {
+        Preconditions.checkNotNull(compilationUnit);
         try {
-            CompilationUnit compilationUnit;
-            synchronized (ParserUtils.class) {
-                // Walk around race condition bug in JavaParser. TODO: Fix it upstream.
-                compilationUnit = JavaParser.parse(new StringReader(s));
-            }
             visitor.visit(compilationUnit, null);
+        } catch (StackOverflowError e) {
+            throw new IOException(e); // See issue #2.
+        } catch (SkipCheckingExceptionWrapper e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /** Parses a compilation unit. Thread-safe. */
+    public static CompilationUnit parse(String s) throws IOException {
+        Preconditions.checkNotNull(s);
+        try {
+            return JavaParser.parse(new StringReader(s));
         } catch (ParseException e) {
             throw new IOException(e);
         } catch (TokenMgrError e) {
@@ -44,8 +64,6 @@ public final class ParserUtils {
         } catch (Error e) {
             // The parser may throw java.lang.Error, e.g. at JavaCharStream.java:347.
             throw new IOException(e);
-        } catch (SkipCheckingExceptionWrapper e) {
-            throw (IOException) e.getCause();
         }
     }
 
@@ -75,6 +93,25 @@ public final class ParserUtils {
         return Joiner.on(".").join(parts);
     }
 
+    /** Returns the key of an anonymous class or a class declared in a method body: the position of its name. */
+    public static String localClassKeyOf(Span span) {
+        Preconditions.checkNotNull(span);
+        return span.getFrom().getLine() + ":" + span.getFrom().getColumn();
+    }
+
+    /**
+     * Qualifies a type name with the keys of enclosing anonymous and local classes, outermost first, since their names
+     * do not tell them apart. Ids of types and of their members are derived from it.
+     */
+    public static String localTypeIdentityOf(String typeName, List<String> localClassKeys) {
+        Preconditions.checkNotNull(typeName);
+        StringBuilder identity = new StringBuilder(typeName);
+        for (String key : localClassKeys) {
+            identity.append('@').append(key);
+        }
+        return identity.toString();
+    }
+
     /** Drops any generic types from a type name. For example, it returns "List" if passing "List<Integer>". */
     public static String dropGenericTypes(String typeName) {
         int p = typeName.indexOf('<');
@@ -1,6 +1,7 @@
 package com.codingstory.polaris.parser;
 
 import com.codingstory.polaris.IdGenerator;
+import com.codingstory.polaris.IdUtils;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
@@ -16,10 +17,12 @@ import com.codingstory.polaris.parser.ParserProtos.Variable;
 import com.codingstory.polaris.parser.ParserProtos.VariableHandle;
 import com.codingstory.polaris.parser.ParserProtos.VariableUsage;
 import com.codingstory.polaris.parser.ParserProtos.Span;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import japa.parser.ast.CompilationUnit;
 import japa.parser.ast.ImportDeclaration;
 import japa.parser.ast.TypeParameter;
 import japa.parser.ast.body.AnnotationDeclaration;
@@ -29,6 +32,7 @@ import japa.parser.ast.body.InitializerDeclaration;
 import japa.parser.ast.body.Parameter;
 import japa.parser.ast.body.VariableDeclarator;
 import japa.parser.ast.expr.NameExpr;
+import japa.parser.ast.expr.ObjectCreationExpr;
 import japa.parser.ast.type.ClassOrInterfaceType;
 import japa.parser.ast.visitor.VoidVisitorAdapter;
 
@@ -39,8 +43,11 @@ import java.util.List;
 
 import static com.codingstory.polaris.CollectionUtils.nullToEmptyList;
 import static com.codingstory.polaris.parser.ParserUtils.dropGenericTypes;
+import static com.codingstory.polaris.parser.ParserUtils.localClassKeyOf;
+import static com.codingstory.polaris.parser.ParserUtils.localTypeIdentityOf;
 import static com.codingstory.polaris.parser.ParserUtils.makeTypeName;
 import static com.codingstory.polaris.parser.ParserUtils.nodeJumpTarget;
+import static com.codingstory.polaris.parser.ParserUtils.nodeSpan;
 import static com.codingstory.polaris.parser.TypeUtils.createTypeUsage;
 import static com.codingstory.polaris.parser.TypeUtils.getSimpleName;
 import static com.codingstory.polaris.parser.TypeUtils.handleOf;
@@ -81,6 +88,7 @@ public final class SecondPassProcessor {
         private final String pkg;
         private final LinkedList<ClassType> typeStack = Lists.newLinkedList();
         private final LinkedList<Method> methodStack = Lists.newLinkedList();
+        private final LinkedList<String> localClassKeys = Lists.newLinkedList(); // of anonymous or local classes
         private final List<ImportDeclaration> imports = Lists.newArrayList();
         private final IdGenerator idGenerator;
         private final String[] lines;
@@ -180,11 +188,31 @@ public final class SecondPassProcessor {
                     TypeUsage.Kind.TYPE_DECLARATION,
                     jumpTarget,
                     snippetLine(lines, jumpTarget)));
+            boolean local = !methodStack.isEmpty(); // declared in a method body
+            if (local) {
+                localClassKeys.addLast(localClassKeyOf(jumpTarget.getSpan()));
+            }
             symbolTable.enterScope();
             typeStack.push(clazz);
             visitChildren.run();
             discoveredClasses.add(typeStack.pop());
             symbolTable.leaveScope();
+            if (local) {
+                localClassKeys.removeLast();
+            }
+        }
+
+        @Override
+        public void visit(ObjectCreationExpr node, Object arg) {
+            Preconditions.checkNotNull(node);
+            if (node.getAnonymousClassBody() == null) {
+                super.visit(node, arg);
+                return;
+            }
+            // Members of an anonymous class are added to the enclosing type.
+            localClassKeys.addLast(localClassKeyOf(nodeSpan(node.getType())));
+            super.visit(node, arg);
+            localClassKeys.removeLast();
         }
 
         @Override
@@ -288,6 +316,9 @@ public final class SecondPassProcessor {
                         returnJumpTarget,
                         snippetLine(lines, returnJumpTarget)));
             }
+            String fullMemberName = currentTypeName() + "." + methodName;
+            String methodIdentity = IdUtils.identityOf("method", file.getProject(), file.getPath(),
+                    memberIdentityOf(methodName) + signatureOf(methodParameters, jumpTarget));
             List<Variable> parameters = Lists.newArrayList();
             List<TypeHandle> parameterTypes = Lists.newArrayList();
             for (Parameter parameter : nullToEmptyList(methodParameters)) {
@@ -303,7 +334,7 @@ public final class SecondPassProcessor {
                         snippetLine(lines, parameterTypeJumpTarget)));
                 parameterTypes.add(parameterTypeHandle);
                 VariableHandle handle = VariableHandle.newBuilder()
-                        .setId(idGenerator.next())
+                        .setId(idGenerator.next(IdUtils.identityOf(methodIdentity, parameter.getId().getName())))
                         .setName(parameter.getId().getName())
                         .build();
                 JumpTarget parameterJumpTarget = nodeJumpTarget(file, parameter.getId());
@@ -332,9 +363,8 @@ public final class SecondPassProcessor {
                         snippetLine(lines, throwJumpTarget)));
                 exceptions.add(exceptionTypeHandle);
             }
-            String fullMemberName = currentTypeName() + "." + methodName;
             MethodHandle methodHandle = MethodHandle.newBuilder()
-                    .setId(idGenerator.next())
+                    .setId(idGenerator.next(methodIdentity))
                     .setName(fullMemberName)
                     .addAllParameters(parameterTypes)
                     .build();
@@ -355,6 +385,23 @@ public final class SecondPassProcessor {
             methodStack.pop();
         }
 
+        /** Returns parameter types, or the position for static initializers, which have no name of their own. */
+        private String signatureOf(List<Parameter> methodParameters, JumpTarget jumpTarget) {
+            if (methodParameters == null && jumpTarget.getSpan().hasFrom()) {
+                return "@" + jumpTarget.getSpan().getFrom().getLine();
+            }
+            List<String> parameterTypeNames = Lists.newArrayList();
+            for (Parameter parameter : nullToEmptyList(methodParameters)) {
+                parameterTypeNames.add(parameter.getType().toString());
+            }
+            return "(" + Joiner.on(',').join(parameterTypeNames) + ")";
+        }
+
+        /** Returns the name of a member of the current type, qualified like the type in the first pass. */
+        private String memberIdentityOf(String memberName) {
+            return localTypeIdentityOf(currentTypeName(), localClassKeys) + "." + memberName;
+        }
+
         private void addMethodToCurrentType(Method method) {
             ClassType top = typeStack.pop();
             typeStack.push(top.toBuilder()
@@ -379,7 +426,8 @@ public final class SecondPassProcessor {
                 JumpTarget fieldTarget = nodeJumpTarget(file, varDecl.getId());
                 String fullMemberName = currentTypeName() + "." + varDecl.getId().getName();
                 VariableHandle fieldHandle = VariableHandle.newBuilder()
-                        .setId(idGenerator.next())
+                        .setId(idGenerator.next(IdUtils.identityOf("field", file.getProject(), file.getPath(),
+                                memberIdentityOf(varDecl.getId().getName()))))
                         .setName(fullMemberName)
                         .build();
                 Variable field = Variable.newBuilder()
@@ -447,6 +495,18 @@ public final class SecondPassProcessor {
             SymbolTable symbolTable,
             IdGenerator idGenerator,
             String pkg) throws IOException {
+        Preconditions.checkNotNull(source);
+        return extract(project, file, source, ParserUtils.parse(source), symbolTable, idGenerator, pkg);
+    }
+
+    /** Same as above, but reuses a compilation unit which has been parsed from {@code source}. */
+    public static Result extract(String project,
+            FileHandle file,
+            String source,
+            CompilationUnit compilationUnit,
+            SymbolTable symbolTable,
+            IdGenerator idGenerator,
+            String pkg) throws IOException {
         Preconditions.checkNotNull(project);
         Preconditions.checkNotNull(file);
         Preconditions.checkNotNull(source);
@@ -454,7 +514,7 @@ public final class SecondPassProcessor {
         Preconditions.checkNotNull(idGenerator);
         symbolTable.enterCompilationUnit(pkg);
         ASTVisitor visitor = new ASTVisitor(project, file, source, symbolTable, idGenerator, pkg);
-        ParserUtils.safeVisit(source, visitor);
+        ParserUtils.safeVisit(compilationUnit, visitor);
         symbolTable.leaveCompilationUnit();
         return new Result(visitor.getClassTypes(), visitor.getUsages());
     }
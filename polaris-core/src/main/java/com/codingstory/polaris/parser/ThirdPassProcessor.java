@@ -1,12 +1,14 @@
 package com.codingstory.polaris.parser;
 
 import com.codingstory.polaris.IdGenerator;
+import com.codingstory.polaris.IdUtils;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
 import com.codingstory.polaris.parser.ParserProtos.Method;
 import com.codingstory.polaris.parser.ParserProtos.MethodUsage;
+import com.codingstory.polaris.parser.ParserProtos.Position;
 import com.codingstory.polaris.parser.ParserProtos.Span;
 import com.codingstory.polaris.parser.ParserProtos.Type;
 import com.codingstory.polaris.parser.ParserProtos.TypeHandle;
@@ -20,6 +22,7 @@ import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import japa.parser.ast.CompilationUnit;
 import japa.parser.ast.ImportDeclaration;
 import japa.parser.ast.body.AnnotationDeclaration;
 import japa.parser.ast.body.ClassOrInterfaceDeclaration;
@@ -161,8 +164,10 @@ public class ThirdPassProcessor {
             for (VariableDeclarator decl : node.getVars()) {
                 JumpTarget variableJumpTarget = nodeJumpTarget(file, decl.getId());
                 String variableName = decl.getId().getName();
+                Position from = variableJumpTarget.getSpan().getFrom();
                 VariableHandle variableHandle = VariableHandle.newBuilder()
-                        .setId(idGenerator.next())
+                        .setId(idGenerator.next(IdUtils.identityOf("local", file.getProject(), file.getPath(),
+                                from.getLine(), from.getColumn(), variableName)))
                         .setName(variableName)
                         .build();
                 Variable variable = Variable.newBuilder()
@@ -292,13 +297,25 @@ public class ThirdPassProcessor {
             SymbolTable symbolTable,
             String pkg,
             IdGenerator idGenerator) throws IOException {
+        Preconditions.checkNotNull(source);
+        return extract(file, source, ParserUtils.parse(source), symbolTable, pkg, idGenerator);
+    }
+
+    /** Same as above, but reuses a compilation unit which has been parsed from {@code source}. */
+    public static List<Usage> extract(
+            FileHandle file,
+            String source,
+            CompilationUnit compilationUnit,
+            SymbolTable symbolTable,
+            String pkg,
+            IdGenerator idGenerator) throws IOException {
         Preconditions.checkNotNull(file);
         Preconditions.checkNotNull(source);
         Preconditions.checkNotNull(pkg);
         Preconditions.checkNotNull(idGenerator);
         symbolTable.enterCompilationUnit(pkg);
         ThirdPassVisitor visitor = new ThirdPassVisitor(file, source, symbolTable, idGenerator);
-        ParserUtils.safeVisit(source, visitor);
+        ParserUtils.safeVisit(compilationUnit, visitor);
         symbolTable.leaveCompilationUnit();
         return visitor.getUsages();
     }
@@ -84,6 +84,19 @@ public final class TypeUtils {
         return fullName.substring(lastDot + 1);
     }
 
+    /** Gets capitals of a name, e.g. "ISR" of "InputStreamReader". */
+    public static String getAcronym(String name) {
+        Preconditions.checkNotNull(name);
+        StringBuilder acronym = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (Character.isUpperCase(ch)) {
+                acronym.append(ch);
+            }
+        }
+        return acronym.toString();
+    }
+
     /** Gets package from a fully qualified name. */
     public static Object getPackage(String fullName) {
         Preconditions.checkNotNull(fullName);
@@ -0,0 +1,419 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.HashIdGenerator;
+import com.codingstory.polaris.IdGenerator;
+import com.codingstory.polaris.IdUtils;
+import com.codingstory.polaris.indexing.IndexPathUtils;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.SourceFile;
+import com.codingstory.polaris.pipeline.PipelineProtos.FileContent;
+import com.codingstory.polaris.pipeline.PipelineProtos.IndexState;
+import com.codingstory.polaris.pipeline.PipelineProtos.IndexedFile;
+import com.codingstory.polaris.pipeline.PipelineProtos.IndexedProject;
+import com.codingstory.polaris.repo.GitUtils;
+import com.codingstory.polaris.repo.Repository;
+import com.codingstory.polaris.search.Suggester;
+import com.codingstory.polaris.sourcedb.SourceDb;
+import com.codingstory.polaris.sourcedb.SourceDbImpl;
+import com.codingstory.polaris.sourcedb.SourceDbWriter;
+import com.codingstory.polaris.sourcedb.SourceDbWriterImpl;
+import com.codingstory.polaris.typedb.TypeDb;
+import com.codingstory.polaris.typedb.TypeDbImpl;
+import com.codingstory.polaris.typedb.TypeDbWriter;
+import com.codingstory.polaris.typedb.TypeDbWriterImpl;
+import com.codingstory.polaris.usagedb.UsageDb;
+import com.codingstory.polaris.usagedb.UsageDbImpl;
+import com.codingstory.polaris.usagedb.UsageDbWriter;
+import com.codingstory.polaris.usagedb.UsageDbWriterImpl;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Brings an index up to date with its projects. Along with the index it keeps an {@link IndexState}, which records
+ * the indexed commit of each repository and enough about each file to rebuild the import graph. Only files changed
+ * since then, found by diffing Git trees, and files importing them are parsed again. The first run on an empty index
+ * directory indexes everything.
+ */
+public class IncrementalIndexer {
+
+    private static final Log LOG = LogFactory.getLog(IncrementalIndexer.class);
+    private static final String JAVA_SUFFIX = ".java";
+
+    private final File indexDir;
+    private final int parallelism;
+    private final List<Repository> repos = Lists.newArrayList();
+    private final List<File> dirs = Lists.newArrayList();
+    private IndexWriterOptions indexWriterOptions = new IndexWriterOptions();
+
+    // Changes found since last run.
+    private IdGenerator idGenerator;
+    private SourceDb sourceDbReader;
+    private final List<FileContent> changedFiles = Lists.newArrayList();
+    private final List<Long> deletedFileIds = Lists.newArrayList();
+    private final List<FileHandle> addedDirectories = Lists.newArrayList();
+    private final List<Long> deletedDirectoryIds = Lists.newArrayList();
+    private final Map<String, IndexedProject> projects = Maps.newTreeMap();
+
+    public IncrementalIndexer(File indexDir, int parallelism) {
+        Preconditions.checkArgument(parallelism > 0);
+        this.indexDir = Preconditions.checkNotNull(indexDir);
+        this.parallelism = parallelism;
+    }
+
+    public void addRepository(Repository repo) {
+        repos.add(Preconditions.checkNotNull(repo));
+    }
+
+    public void addProjectDirectory(File dir) {
+        dirs.add(Preconditions.checkNotNull(dir));
+    }
+
+    public void setIndexWriterOptions(IndexWriterOptions indexWriterOptions) {
+        this.indexWriterOptions = Preconditions.checkNotNull(indexWriterOptions);
+    }
+
+    public void run() throws IOException {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        File statePath = IndexPathUtils.getIndexStatePath(indexDir);
+        IndexState oldState;
+        List<IndexedFile> oldFiles = Lists.newArrayList();
+        if (statePath.exists()) {
+            oldState = readState(statePath, oldFiles);
+        } else {
+            if (IndexPathUtils.getTypeDbPath(indexDir).exists()) {
+                throw new IOException("Index " + indexDir + " has no state of incremental indexing. " +
+                        "Rebuild it into an empty directory.");
+            }
+            oldState = IndexState.getDefaultInstance();
+        }
+        boolean firstRun = !statePath.exists();
+        idGenerator = new HashIdGenerator();
+
+        TypeDb typeDbReader = null;
+        UsageDb usageDbReader = null;
+        try {
+            if (!firstRun) {
+                typeDbReader = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+                sourceDbReader = new SourceDbImpl(IndexPathUtils.getSourceDbPath(indexDir));
+                usageDbReader = new UsageDbImpl(IndexPathUtils.getUsageDbPath(indexDir));
+            }
+            findChanges(oldState, oldFiles);
+            LOG.info(String.format("Found %d changed file(s) and %d deleted file(s)",
+                    changedFiles.size(), deletedFileIds.size()));
+
+            List<IndexedFile> indexedFiles = ImmutableList.of();
+            if (!changedFiles.isEmpty() || !deletedFileIds.isEmpty() || !addedDirectories.isEmpty()
+                    || !deletedDirectoryIds.isEmpty()) {
+                indexedFiles = updateIndex(firstRun, oldFiles, typeDbReader, usageDbReader);
+            }
+            Suggester.build(indexDir); // only of new segments
+            writeState(statePath, mergeFiles(oldFiles, indexedFiles));
+        } finally {
+            IOUtils.closeQuietly(typeDbReader);
+            IOUtils.closeQuietly(sourceDbReader);
+            IOUtils.closeQuietly(usageDbReader);
+            sourceDbReader = null;
+        }
+
+        long secs = stopWatch.getTime() / 1000;
+        LOG.info(String.format("Incremental indexing completes in %d min %d s", secs / 60, secs % 60));
+    }
+
+    private List<IndexedFile> updateIndex(
+            boolean firstRun,
+            List<IndexedFile> oldFiles,
+            TypeDb typeDbReader,
+            UsageDb usageDbReader) throws IOException {
+        TypeDbWriter typeDb = null;
+        SourceDbWriter sourceDb = null;
+        UsageDbWriter usageDb = null;
+        try {
+            typeDb = new TypeDbWriterImpl(IndexPathUtils.getTypeDbPath(indexDir), indexWriterOptions);
+            sourceDb = new SourceDbWriterImpl(IndexPathUtils.getSourceDbPath(indexDir), indexWriterOptions);
+            usageDb = new UsageDbWriterImpl(IndexPathUtils.getUsageDbPath(indexDir), indexWriterOptions);
+            ParallelIndexer indexer = new ParallelIndexer(idGenerator, parallelism);
+            List<IndexedFile> indexedFiles;
+            if (firstRun) {
+                indexedFiles = indexer.run(changedFiles, addedDirectories, typeDb, sourceDb, usageDb);
+            } else {
+                indexedFiles = indexer.update(changedFiles, deletedFileIds, oldFiles,
+                        typeDbReader, sourceDbReader, usageDbReader, typeDb, sourceDb, usageDb);
+                for (long dirId : deletedDirectoryIds) {
+                    sourceDb.deleteFile(dirId);
+                }
+                for (FileHandle dir : addedDirectories) {
+                    sourceDb.writeDirectory(dir);
+                }
+            }
+            typeDb.flush();
+            sourceDb.flush();
+            usageDb.flush();
+            return indexedFiles;
+        } finally {
+            IOUtils.closeQuietly(typeDb);
+            IOUtils.closeQuietly(sourceDb);
+            IOUtils.closeQuietly(usageDb);
+        }
+    }
+
+    private void findChanges(IndexState oldState, List<IndexedFile> oldFiles) throws IOException {
+        Map<String, IndexedProject> oldProjects = Maps.newHashMap();
+        for (IndexedProject project : oldState.getProjectsList()) {
+            oldProjects.put(project.getName(), project);
+        }
+        Map<String, Map<String, IndexedFile>> oldFilesByProject = Maps.newHashMap();
+        for (IndexedFile file : oldFiles) {
+            String project = file.getFile().getProject();
+            Map<String, IndexedFile> filesByPath = oldFilesByProject.get(project);
+            if (filesByPath == null) {
+                filesByPath = Maps.newHashMap();
+                oldFilesByProject.put(project, filesByPath);
+            }
+            filesByPath.put(file.getFile().getPath(), file);
+        }
+
+        for (Repository repo : repos) {
+            String name = repo.getName();
+            findRepositoryChanges(repo, oldProjects.remove(name), nullToEmptyMap(oldFilesByProject.get(name)));
+        }
+        for (File dir : dirs) {
+            String name = dir.getName();
+            findProjectDirectoryChanges(
+                    dir, oldProjects.remove(name), nullToEmptyMap(oldFilesByProject.get(name)));
+        }
+        for (IndexedProject removed : oldProjects.values()) {
+            LOG.info("Project " + removed.getName() + " is removed");
+            for (IndexedFile file : nullToEmptyMap(oldFilesByProject.get(removed.getName())).values()) {
+                deletedFileIds.add(file.getFile().getId());
+            }
+            for (FileHandle dir : removed.getDirectoriesList()) {
+                deletedDirectoryIds.add(dir.getId());
+            }
+        }
+    }
+
+    private void findRepositoryChanges(
+            Repository repo,
+            IndexedProject oldProject,
+            final Map<String, IndexedFile> oldFiles) throws IOException {
+        final String name = repo.getName();
+        String head = GitUtils.getHeadCommit(repo);
+        if (head == null) {
+            LOG.warn("Skip empty repository: " + repo);
+            if (oldProject != null) {
+                projects.put(name, oldProject);
+            }
+            return;
+        }
+        String from = null;
+        if (oldProject != null && oldProject.hasCommit() && GitUtils.hasCommit(repo, oldProject.getCommit())) {
+            from = oldProject.getCommit();
+        }
+        if (Objects.equal(from, head)) {
+            LOG.info("Repository " + name + " is up to date at " + head);
+            projects.put(name, oldProject);
+            return;
+        }
+
+        LOG.info("Scanning repository " + name + " from " + (from == null ? "scratch" : from) + " to " + head);
+        // Without a base commit, every file is reported as changed. Files which are gone are deleted.
+        final Set<String> unseenPaths = Sets.newHashSet();
+        if (from == null) {
+            unseenPaths.addAll(oldFiles.keySet());
+        }
+        GitUtils.diff(repo, from, head, JAVA_SUFFIX, new GitUtils.ChangeVisitor() {
+            @Override
+            public void visitChangedFile(String path, byte[] content) {
+                if (ParallelIngester.isHidden(path)) {
+                    return;
+                }
+                unseenPaths.remove(path);
+                addChangedFile(name, path, new String(content), oldFiles.get(path));
+            }
+
+            @Override
+            public void visitDeletedFile(String path) {
+                IndexedFile file = oldFiles.get(path);
+                if (file != null) {
+                    deletedFileIds.add(file.getFile().getId());
+                }
+            }
+        });
+        for (String path : unseenPaths) {
+            deletedFileIds.add(oldFiles.get(path).getFile().getId());
+        }
+
+        List<String> dirPaths = Lists.newArrayList();
+        for (String path : GitUtils.listDirectories(repo, head)) {
+            if (!ParallelIngester.isHidden(path)) {
+                dirPaths.add(path);
+            }
+        }
+        projects.put(name, IndexedProject.newBuilder()
+                .setName(name)
+                .setCommit(head)
+                .addAllDirectories(findDirectoryChanges(name, dirPaths, oldProject))
+                .build());
+    }
+
+    private void findProjectDirectoryChanges(
+            File dir,
+            IndexedProject oldProject,
+            Map<String, IndexedFile> oldFiles) throws IOException {
+        String name = dir.getName();
+        LOG.info("Scanning project root: " + name);
+        List<File> sourceDirs = Lists.newArrayList();
+        List<File> sourceFiles = Lists.newArrayList();
+        ParallelIngester.listProjectDirectory(dir, sourceDirs, sourceFiles);
+
+        Set<String> unseenPaths = Sets.newHashSet(oldFiles.keySet());
+        for (File sourceFile : sourceFiles) {
+            String path = StringUtils.removeStart(sourceFile.getPath(), dir.getPath());
+            String content = ParallelIngester.readFile(sourceFile);
+            IndexedFile oldFile = oldFiles.get(path);
+            unseenPaths.remove(path);
+            if (oldFile != null && sourceDbReader != null) {
+                // Without a commit to diff against, compare with the indexed source.
+                SourceFile oldSource = sourceDbReader.querySourceById(oldFile.getFile().getId());
+                if (oldSource != null && Objects.equal(oldSource.getSource(), content)) {
+                    continue;
+                }
+            }
+            addChangedFile(name, path, content, oldFile);
+        }
+        for (String path : unseenPaths) {
+            deletedFileIds.add(oldFiles.get(path).getFile().getId());
+        }
+
+        List<String> dirPaths = Lists.newArrayList();
+        for (File sourceDir : sourceDirs) {
+            dirPaths.add(StringUtils.removeStart(sourceDir.getPath(), dir.getPath()) + "/");
+        }
+        projects.put(name, IndexedProject.newBuilder()
+                .setName(name)
+                .addAllDirectories(findDirectoryChanges(name, dirPaths, oldProject))
+                .build());
+    }
+
+    private void addChangedFile(String project, String path, String content, IndexedFile oldFile) {
+        FileHandle handle = FileHandle.newBuilder()
+                .setKind(FileHandle.Kind.NORMAL_FILE)
+                .setId(oldFile == null
+                        ? idGenerator.next(IdUtils.identityOf("file", project, path)) : oldFile.getFile().getId())
+                .setProject(project)
+                .setPath(path)
+                .build();
+        changedFiles.add(FileContent.newBuilder()
+                .setFile(handle)
+                .setContent(content)
+                .build());
+    }
+
+    /** Keeps ids of existing directories and returns handles of all current directories. */
+    private List<FileHandle> findDirectoryChanges(String project, List<String> paths, IndexedProject oldProject) {
+        Map<String, FileHandle> oldDirs = Maps.newHashMap();
+        if (oldProject != null) {
+            for (FileHandle dir : oldProject.getDirectoriesList()) {
+                oldDirs.put(dir.getPath(), dir);
+            }
+        }
+        List<FileHandle> dirs = Lists.newArrayListWithCapacity(paths.size());
+        for (String path : paths) {
+            FileHandle dir = oldDirs.remove(path);
+            if (dir == null) {
+                dir = FileHandle.newBuilder()
+                        .setKind(FileHandle.Kind.DIRECTORY)
+                        .setId(idGenerator.next(IdUtils.identityOf("directory", project, path)))
+                        .setProject(project)
+                        .setPath(path)
+                        .build();
+                addedDirectories.add(dir);
+            }
+            dirs.add(dir);
+        }
+        for (FileHandle dir : oldDirs.values()) {
+            deletedDirectoryIds.add(dir.getId());
+        }
+        return dirs;
+    }
+
+    private List<IndexedFile> mergeFiles(Collection<IndexedFile> oldFiles, Collection<IndexedFile> indexedFiles) {
+        Map<Long, IndexedFile> files = Maps.newLinkedHashMap();
+        for (IndexedFile file : oldFiles) {
+            files.put(file.getFile().getId(), file);
+        }
+        for (long fileId : deletedFileIds) {
+            files.remove(fileId);
+        }
+        for (IndexedFile file : indexedFiles) {
+            files.put(file.getFile().getId(), file);
+        }
+        return Lists.newArrayList(files.values());
+    }
+
+    private static IndexState readState(File path, List<IndexedFile> files) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(path));
+        try {
+            IndexState state = IndexState.parseDelimitedFrom(in);
+            if (state == null) {
+                throw new IOException("Corrupted index state: " + path);
+            }
+            IndexedFile file;
+            while ((file = IndexedFile.parseDelimitedFrom(in)) != null) {
+                files.add(file);
+            }
+            return state;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void writeState(File path, List<IndexedFile> files) throws IOException {
+        IndexState state = IndexState.newBuilder()
+                .addAllProjects(projects.values())
+                .build();
+        File temp = new File(path.getPath() + ".tmp");
+        FileUtils.forceMkdir(path.getParentFile());
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+        try {
+            state.writeDelimitedTo(out);
+            for (IndexedFile file : files) {
+                file.writeDelimitedTo(out);
+            }
+        } finally {
+            out.close();
+        }
+        FileUtils.deleteQuietly(path);
+        FileUtils.moveFile(temp, path);
+        LOG.info("Saved state of " + files.size() + " file(s) to " + path);
+    }
+
+    private static <K, V> Map<K, V> nullToEmptyMap(Map<K, V> map) {
+        return map == null ? Maps.<K, V>newHashMap() : map;
+    }
+}
@@ -1,9 +1,10 @@
 package com.codingstory.polaris.pipeline;
 
+import com.codingstory.polaris.HashIdGenerator;
 import com.codingstory.polaris.IdGenerator;
-import com.codingstory.polaris.SimpleIdGenerator;
-import com.codingstory.polaris.indexing.DirectoryTranverser;
+import com.codingstory.polaris.indexing.DbWriter;
 import com.codingstory.polaris.indexing.IndexPathUtils;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
 import com.codingstory.polaris.parser.FirstPassProcessor;
 import com.codingstory.polaris.parser.ImportExtractor;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
@@ -15,11 +16,13 @@ import com.codingstory.polaris.parser.SecondPassProcessor;
 import com.codingstory.polaris.parser.SourceAnnotator;
 import com.codingstory.polaris.parser.SymbolTable;
 import com.codingstory.polaris.parser.ThirdPassProcessor;
+import com.codingstory.polaris.pipeline.PipelineProtos.DuplicateFile;
 import com.codingstory.polaris.pipeline.PipelineProtos.FileContent;
 import com.codingstory.polaris.pipeline.PipelineProtos.FileImports;
 import com.codingstory.polaris.pipeline.PipelineProtos.ParsedFile;
 import com.codingstory.polaris.repo.GitUtils;
 import com.codingstory.polaris.repo.Repository;
+import com.codingstory.polaris.search.Suggester;
 import com.codingstory.polaris.sourcedb.SourceDbWriter;
 import com.codingstory.polaris.sourcedb.SourceDbWriterImpl;
 import com.codingstory.polaris.typedb.TypeDbWriter;
@@ -28,14 +31,14 @@ import com.codingstory.polaris.usagedb.UsageDbWriter;
 import com.codingstory.polaris.usagedb.UsageDbWriterImpl;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.StopWatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -64,13 +67,20 @@ import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.SequenceFile;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import static com.codingstory.polaris.CollectionUtils.nullToEmptyCollection;
@@ -85,7 +95,7 @@ import static org.apache.crunch.types.writable.Writables.triples;
 public class IndexPipeline implements Serializable {
 
     private static final Log LOG = LogFactory.getLog(IndexPipeline.class);
-    private static final IdGenerator ID_GENERATOR = new SimpleIdGenerator(); // Just OK for local MR.
+    private static final IdGenerator ID_GENERATOR = new HashIdGenerator(); // Same ids in every task.
     private static final WritableTypeFamily TYPE_FAMILY = WritableTypeFamily.getInstance();
     private static final PType<ParsedFile> PARSED_FILE_PTYPE = protos(ParsedFile.class, TYPE_FAMILY);
     private static final PType<FileContent> FILE_CONTENT_PTYPE = protos(FileContent.class, TYPE_FAMILY);
@@ -98,8 +108,20 @@ public class IndexPipeline implements Serializable {
     private final transient Configuration conf; // "transient" No need to access it from MR tasks.
     private final transient FileSystem fs;
     private static final int MAX_IMPORTED_CLASSES = 1000; // prevent OOM
+    private static final int INGESTION_QUEUE_CAPACITY = 1000;
+    private static final String SOURCES_INPUT_FILE = "sources";
+    private static final String DIRECTORIES_INPUT_FILE = "dirs";
+    private static final String DUPLICATES_INPUT_FILE = "duplicates";
     private transient List<Repository> repos = Lists.newArrayList();
     private transient List<File> dirs = Lists.newArrayList();
+    private transient List<FileContent> inProcessFiles = Lists.newArrayList();
+    private transient List<FileHandle> inProcessDirs = Lists.newArrayList();
+    private transient List<DuplicateFile> inProcessDuplicates = Lists.newArrayList();
+    private boolean inProcess = false;
+    private boolean incremental = false;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int ingestionParallelism = Runtime.getRuntime().availableProcessors();
+    private transient IndexWriterOptions indexWriterOptions = new IndexWriterOptions();
     private File workingDir;
     private File inputDir1;
     private File inputDir2;
@@ -139,29 +161,98 @@ public class IndexPipeline implements Serializable {
         indexDir = Preconditions.checkNotNull(dir);
     }
 
+    /**
+     * Runs all passes in memory on a thread pool instead of local MapReduce jobs. It requires the whole corpus to fit
+     * in RAM.
+     */
+    public void setInProcess(boolean inProcess) {
+        this.inProcess = inProcess;
+    }
+
+    /**
+     * Only re-indexes files changed since last incremental run on the same index directory, and files importing
+     * them. It runs in process. See {@link IncrementalIndexer}.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /** Sets the number of worker threads used by in-process or incremental indexing, or by building the index. */
+    public void setParallelism(int parallelism) {
+        Preconditions.checkArgument(parallelism > 0);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the number of projects read at the same time. Reading is mostly I/O, so it may exceed the number of
+     * cores.
+     */
+    public void setIngestionParallelism(int ingestionParallelism) {
+        Preconditions.checkArgument(ingestionParallelism > 0);
+        this.ingestionParallelism = ingestionParallelism;
+    }
+
+    /** Sets the RAM buffer and merging of Lucene index writers, including writers of index shards. */
+    public void setIndexWriterOptions(IndexWriterOptions indexWriterOptions) {
+        this.indexWriterOptions = Preconditions.checkNotNull(indexWriterOptions);
+    }
+
     public void run() throws IOException {
+        Preconditions.checkState(indexDir != null, "Index directory is not set");
+        if (incremental) {
+            IncrementalIndexer indexer = new IncrementalIndexer(indexDir, parallelism);
+            indexer.setIndexWriterOptions(indexWriterOptions);
+            for (Repository repo : repos) {
+                indexer.addRepository(repo);
+            }
+            for (File dir : dirs) {
+                indexer.addProjectDirectory(dir);
+            }
+            indexer.run();
+            return;
+        }
+
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
 
+        // The index is no longer what the state of incremental indexing describes.
+        FileUtils.deleteQuietly(IndexPathUtils.getIndexStatePath(indexDir));
         setUpInputAndOutputDirs();
-        for (Repository repo : repos) {
-            readRepo(repo);
+        readProjects();
+
+        if (inProcess) {
+            LOG.info("About to run in-process indexer with " + parallelism + " thread(s)");
+            buildIndexInProcess();
+        } else {
+            MRPipeline pipeline = setUpPipeline();
+            LOG.info("About to run indexing pipeline");
+            checkPipelineResult(pipeline.run());
+            LOG.info("Pipeline completes");
+
+            buildIndexFromPipelineOutput();
         }
-        for (File dir : dirs) {
-            readProjectDir(dir);
-        }
-
-        MRPipeline pipeline = setUpPipeline();
-        LOG.info("About to run indexing pipeline");
-        checkPipelineResult(pipeline.run());
-        LOG.info("Pipeline completes");
-
-        buildIndexFromPipelineOutput();
+        Suggester.build(indexDir);
 
         long secs = stopWatch.getTime() / 1000;
         LOG.info(String.format("Elapsed time: %d min %d s", secs / 60, secs % 60));
     }
 
+    private void readProjects() throws IOException {
+        ParallelIngester ingester = new ParallelIngester(ID_GENERATOR, ingestionParallelism, INGESTION_QUEUE_CAPACITY);
+        for (Repository repo : repos) {
+            ingester.addRepository(repo);
+        }
+        for (File dir : dirs) {
+            ingester.addProjectDirectory(dir);
+        }
+        InputSink sink = openInputSink();
+        try {
+            ingester.run(sink);
+        } finally {
+            sink.close();
+        }
+    }
+
     public String plan() throws IOException {
         setUpInputAndOutputDirs();
         MRPipeline pipeline = setUpPipeline();
@@ -297,82 +388,66 @@ public class IndexPipeline implements Serializable {
         LOG.info("Temporary working dirctory: " + workingDir);
     }
 
-    private void readRepo(Repository repo) throws IOException {
-        Preconditions.checkNotNull(repo);
-        LOG.info("Scanning repository: " + repo.getName());
-        File workingTree = checkOutWorkTree(repo);
-        doReadProjectDir(repo.getName(), workingTree);
-        FileUtils.deleteDirectory(workingTree);
+    /** Receives source files and directories of all projects. */
+    private interface InputSink extends ParallelIngester.Sink, Closeable {
     }
 
-    private void readProjectDir(File dir) throws IOException {
-        LOG.info("Scanning project root: " + dir.getName());
-        doReadProjectDir(dir.getName(), dir);
-    }
+    private InputSink openInputSink() throws IOException {
+        if (inProcess) {
+            return new InputSink() {
+                @Override
+                public void writeFile(FileContent file) {
+                    inProcessFiles.add(file);
+                }
 
-    private void doReadProjectDir(String project, File dir) throws IOException {
-        Preconditions.checkNotNull(project);
-        Preconditions.checkNotNull(dir);
-        SequenceFile.Writer w1 = SequenceFile.createWriter(fs, conf,
-                new Path(new File(inputDir1, "sources-of-" + project).getPath()),
+                @Override
+                public void writeDirectory(FileHandle dir) {
+                    inProcessDirs.add(dir);
+                }
+
+                @Override
+                public void writeDuplicateFile(DuplicateFile file) {
+                    inProcessDuplicates.add(file);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        final SequenceFile.Writer w1 = SequenceFile.createWriter(fs, conf,
+                new Path(new File(inputDir1, SOURCES_INPUT_FILE).getPath()),
                 NullWritable.class, BytesWritable.class);
-        SequenceFile.Writer w2 = SequenceFile.createWriter(fs, conf,
-                new Path(new File(inputDir2, "dirs-of-" + project).getPath()),
+        final SequenceFile.Writer w2 = SequenceFile.createWriter(fs, conf,
+                new Path(new File(inputDir2, DIRECTORIES_INPUT_FILE).getPath()),
                 NullWritable.class, BytesWritable.class);
+        final SequenceFile.Writer w3 = SequenceFile.createWriter(fs, conf,
+                new Path(new File(inputDir2, DUPLICATES_INPUT_FILE).getPath()),
+                NullWritable.class, BytesWritable.class);
+        return new InputSink() {
+            @Override
+            public void writeFile(FileContent file) throws IOException {
+                w1.append(NullWritable.get(), new BytesWritable(file.toByteArray()));
+            }
 
-        final List<File> sourceDirs = Lists.newArrayList();
-        final List<File> sourceFiles = Lists.newArrayList();
-        DirectoryTranverser.traverse(dir, new DirectoryTranverser.Visitor() {
             @Override
-            public void visit(File file) {
-                if (file.isHidden()) {
-                    return;
-                }
-                if (file.isDirectory()) {
-                    sourceDirs.add(file);
-                } else if (file.getName().endsWith(".java")) {
-                    sourceFiles.add(file);
-                }
+            public void writeDirectory(FileHandle dir) throws IOException {
+                w2.append(NullWritable.get(), new BytesWritable(dir.toByteArray()));
             }
-        });
 
-        LOG.info("Found " + sourceFiles.size() + " file(s)");
-        long count = 0;
-        for (File sourceFile : sourceFiles) {
-            FileHandle handle = FileHandle.newBuilder()
-                    .setKind(FileHandle.Kind.NORMAL_FILE)
-                    .setId(ID_GENERATOR.next())
-                    .setProject(project)
-                    .setPath(StringUtils.removeStart(sourceFile.getPath(), dir.getPath()))
-                    .build();
-            FileContent in = FileContent.newBuilder()
-                    .setFile(handle)
-                    .setContent(FileUtils.readFileToString(sourceFile))
-                    .build();
-            w1.append(NullWritable.get(), new BytesWritable(in.toByteArray()));
-            count++;
-            if (count % 5000 == 0) {
-                LOG.info("Processed " + count + " files");
+            @Override
+            public void writeDuplicateFile(DuplicateFile file) throws IOException {
+                w3.append(NullWritable.get(), new BytesWritable(file.toByteArray()));
             }
-        }
-        w1.close();
-
-        for (File sourceDir : sourceDirs) {
-            FileHandle f = FileHandle.newBuilder()
-                    .setKind(FileHandle.Kind.DIRECTORY)
-                    .setId(ID_GENERATOR.next())
-                    .setProject(project)
-                    .setPath(StringUtils.removeStart(sourceDir.getPath(), dir.getPath()) + "/")
-                    .build();
-            w2.append(NullWritable.get(), new BytesWritable(f.toByteArray()));
-        }
-        w2.close();
-    }
 
-    private File checkOutWorkTree(Repository repo) throws IOException {
-        File tempDir = Files.createTempDir();
-        GitUtils.checkoutWorkTree(repo, tempDir);
-        return tempDir;
+            @Override
+            public void close() throws IOException {
+                w1.close();
+                w2.close();
+                w3.close();
+            }
+        };
     }
 
     private PTable<Long, Long> guessImportGraphByImportedClasses(
@@ -604,72 +679,242 @@ public class IndexPipeline implements Serializable {
         }, ptype);
     }
 
-    private void buildIndexFromPipelineOutput() throws IOException {
-        // TODO: Build index in pipeline.
+    private void buildIndexInProcess() throws IOException {
         TypeDbWriter typeDb = null;
         SourceDbWriter sourceDb = null;
         UsageDbWriter usageDb = null;
         try {
-            typeDb = new TypeDbWriterImpl(IndexPathUtils.getTypeDbPath(indexDir));
-            sourceDb = new SourceDbWriterImpl(IndexPathUtils.getSourceDbPath(indexDir));
-            usageDb = new UsageDbWriterImpl(IndexPathUtils.getUsageDbPath(indexDir));
+            typeDb = new TypeDbWriterImpl(IndexPathUtils.getTypeDbPath(indexDir), indexWriterOptions);
+            sourceDb = new SourceDbWriterImpl(IndexPathUtils.getSourceDbPath(indexDir), indexWriterOptions);
+            usageDb = new UsageDbWriterImpl(IndexPathUtils.getUsageDbPath(indexDir), indexWriterOptions);
+            ParallelIndexer indexer = new ParallelIndexer(ID_GENERATOR, parallelism);
+            indexer.run(inProcessFiles, inProcessDirs, typeDb, sourceDb, usageDb);
+            inProcessFiles.clear();
+            inProcessDirs.clear();
+            for (DuplicateFile duplicate : inProcessDuplicates) {
+                sourceDb.writeDuplicateFile(duplicate.getFile(), duplicate.getOriginalFileId());
+            }
+            inProcessDuplicates.clear();
 
-            // Process pipeline output.
-            BytesWritable value = new BytesWritable();
-            for (File file : nullToEmptyCollection(classOutputDir.listFiles())) {
-                if (!isMapReduceOutputFile(file)) {
-                    continue;
-                }
-                SequenceFile.Reader r = openLocalSequenceFile(file);
-                while (r.next(NullWritable.get(), value)) {
-                    typeDb.write(ClassType.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength())));
+            LOG.info("Index files are written to " + indexDir);
+            typeDb.flush();
+            sourceDb.flush();
+            usageDb.flush();
+        } finally {
+            IOUtils.closeQuietly(typeDb);
+            IOUtils.closeQuietly(sourceDb);
+            IOUtils.closeQuietly(usageDb);
+        }
+    }
+
+    /**
+     * Builds a shard of each DB per output partition on a thread pool, and then adds shards of the three DBs into
+     * the index at the same time.
+     */
+    private void buildIndexFromPipelineOutput() throws IOException {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        File shardDir = new File(workingDir, "shards");
+        List<File> typeDbShards = Lists.newArrayList();
+        List<File> usageDbShards = Lists.newArrayList();
+        List<File> sourceDbShards = Lists.newArrayList();
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (final File file : listMapReduceOutputFiles(classOutputDir)) {
+            final File shard = new File(shardDir, "typedb-" + file.getName());
+            typeDbShards.add(shard);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    buildTypeDbShard(file, shard);
+                    return null;
                 }
-            }
-            for (File file : nullToEmptyCollection(usageOutputDir.listFiles())) {
-                if (!isMapReduceOutputFile(file)) {
-                    continue;
+            });
+        }
+        for (final File file : listMapReduceOutputFiles(usageOutputDir)) {
+            final File shard = new File(shardDir, "usagedb-" + file.getName());
+            usageDbShards.add(shard);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    buildUsageDbShard(file, shard);
+                    return null;
                 }
-                SequenceFile.Reader r = openLocalSequenceFile(file);
-                while (r.next(NullWritable.get(), value)) {
-                    Usage usage = Usage.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength()));
-                    if (usage.getKind() != Usage.Kind.TYPE ||
-                            usage.getType().getType().getClazz().getResolved()) {
-                        usageDb.write(usage);
-                    }
+            });
+        }
+        for (final File file : listMapReduceOutputFiles(sourceOutputDir)) {
+            final File shard = new File(shardDir, "sourcedb-" + file.getName());
+            sourceDbShards.add(shard);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    buildSourceDbShard(file, shard);
+                    return null;
                 }
+            });
+        }
+        final File layoutShard = new File(shardDir, "sourcedb-layout");
+        sourceDbShards.add(layoutShard);
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                buildLayoutShard(layoutShard);
+                return null;
             }
-            for (File file : nullToEmptyCollection(sourceOutputDir.listFiles())) {
-                if (!isMapReduceOutputFile(file)) {
-                    continue;
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("polaris-index-builder-%d")
+                .setDaemon(true)
+                .build());
+        try {
+            LOG.info("Building " + tasks.size() + " index shard(s) with " + parallelism + " thread(s)");
+            invokeAll(executor, tasks);
+            LOG.info("Built index shards in " + stopWatch.getTime() + " ms");
+
+            tasks.clear();
+            tasks.add(new MergeShardsTask(typeDbShards) {
+                @Override
+                protected DbWriter openWriter() throws IOException {
+                    return new TypeDbWriterImpl(IndexPathUtils.getTypeDbPath(indexDir), indexWriterOptions);
                 }
-                SequenceFile.Reader r = openLocalSequenceFile(file);
-                while (r.next(NullWritable.get(), value)) {
-                    sourceDb.writeSourceFile(SourceFile.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength())));
+            });
+            tasks.add(new MergeShardsTask(usageDbShards) {
+                @Override
+                protected DbWriter openWriter() throws IOException {
+                    return new UsageDbWriterImpl(IndexPathUtils.getUsageDbPath(indexDir), indexWriterOptions);
                 }
+            });
+            tasks.add(new MergeShardsTask(sourceDbShards) {
+                @Override
+                protected DbWriter openWriter() throws IOException {
+                    return new SourceDbWriterImpl(IndexPathUtils.getSourceDbPath(indexDir), indexWriterOptions);
+                }
+            });
+            invokeAll(executor, tasks);
+            LOG.info("Index files are written to " + indexDir + " in " + stopWatch.getTime() + " ms");
+        } finally {
+            executor.shutdownNow();
+            FileUtils.deleteQuietly(shardDir);
+        }
+    }
+
+    private void buildTypeDbShard(File file, File shard) throws IOException {
+        TypeDbWriter typeDb = new TypeDbWriterImpl(shard, indexWriterOptions);
+        SequenceFile.Reader r = null;
+        try {
+            r = openLocalSequenceFile(file);
+            BytesWritable value = new BytesWritable();
+            while (r.next(NullWritable.get(), value)) {
+                typeDb.write(ClassType.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength())));
             }
+        } finally {
+            IOUtils.closeQuietly(r);
+            typeDb.close();
+        }
+    }
 
-            // Process repository layout.
-            for (File file : nullToEmptyCollection(inputDir2.listFiles())) {
-                if (!file.getName().startsWith("dirs-of-")) {
-                    continue;
-                }
-                SequenceFile.Reader r = openLocalSequenceFile(file);
-                while (r.next(NullWritable.get(), value)) {
-                    FileHandle f = FileHandle.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength()));
-                    sourceDb.writeDirectory(f);
+    private void buildUsageDbShard(File file, File shard) throws IOException {
+        UsageDbWriter usageDb = new UsageDbWriterImpl(shard, indexWriterOptions);
+        SequenceFile.Reader r = null;
+        try {
+            r = openLocalSequenceFile(file);
+            BytesWritable value = new BytesWritable();
+            while (r.next(NullWritable.get(), value)) {
+                Usage usage = Usage.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength()));
+                if (usage.getKind() != Usage.Kind.TYPE ||
+                        usage.getType().getType().getClazz().getResolved()) {
+                    usageDb.write(usage);
                 }
             }
+        } finally {
+            IOUtils.closeQuietly(r);
+            usageDb.close();
+        }
+    }
 
-            LOG.info("Index files are written to " + indexDir);
+    private void buildSourceDbShard(File file, File shard) throws IOException {
+        SourceDbWriter sourceDb = new SourceDbWriterImpl(shard, indexWriterOptions);
+        SequenceFile.Reader r = null;
+        try {
+            r = openLocalSequenceFile(file);
+            BytesWritable value = new BytesWritable();
+            while (r.next(NullWritable.get(), value)) {
+                sourceDb.writeSourceFile(SourceFile.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength())));
+            }
+        } finally {
+            IOUtils.closeQuietly(r);
+            sourceDb.close();
+        }
+    }
 
-          typeDb.flush();
-          sourceDb.flush();
-          usageDb.flush();
+    /** Writes directories and duplicate files of all projects. */
+    private void buildLayoutShard(File shard) throws IOException {
+        SourceDbWriter sourceDb = new SourceDbWriterImpl(shard, indexWriterOptions);
+        SequenceFile.Reader r = null;
+        try {
+            BytesWritable value = new BytesWritable();
+            r = openLocalSequenceFile(new File(inputDir2, DIRECTORIES_INPUT_FILE));
+            while (r.next(NullWritable.get(), value)) {
+                FileHandle f = FileHandle.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength()));
+                sourceDb.writeDirectory(f);
+            }
+            r.close();
+            r = openLocalSequenceFile(new File(inputDir2, DUPLICATES_INPUT_FILE));
+            while (r.next(NullWritable.get(), value)) {
+                DuplicateFile f = DuplicateFile.parseFrom(Arrays.copyOf(value.getBytes(), value.getLength()));
+                sourceDb.writeDuplicateFile(f.getFile(), f.getOriginalFileId());
+            }
         } finally {
-            IOUtils.closeQuietly(typeDb);
-            IOUtils.closeQuietly(sourceDb);
-            IOUtils.closeQuietly(usageDb);
+            IOUtils.closeQuietly(r);
+            sourceDb.close();
+        }
+    }
+
+    /** Adds shards into a DB. */
+    private static abstract class MergeShardsTask implements Callable<Void> {
+        private final List<File> shards;
+
+        private MergeShardsTask(List<File> shards) {
+            this.shards = shards;
+        }
+
+        protected abstract DbWriter openWriter() throws IOException;
+
+        @Override
+        public Void call() throws IOException {
+            DbWriter writer = openWriter();
+            try {
+                writer.addIndexes(shards);
+                writer.flush();
+            } finally {
+                writer.close();
+            }
+            return null;
+        }
+    }
+
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) throws IOException {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Building index is interrupted");
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private List<File> listMapReduceOutputFiles(File dir) {
+        List<File> files = Lists.newArrayList();
+        for (File file : nullToEmptyCollection(dir.listFiles())) {
+            if (isMapReduceOutputFile(file)) {
+                files.add(file);
+            }
         }
+        return files;
     }
 
     private boolean isMapReduceOutputFile(File file) {
@@ -0,0 +1,695 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.IdGenerator;
+import com.codingstory.polaris.IdUtils;
+import com.codingstory.polaris.parser.FirstPassProcessor;
+import com.codingstory.polaris.parser.ImportExtractor;
+import com.codingstory.polaris.parser.ParserProtos.ClassType;
+import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.Method;
+import com.codingstory.polaris.parser.ParserProtos.SourceFile;
+import com.codingstory.polaris.parser.ParserProtos.Usage;
+import com.codingstory.polaris.parser.ParserProtos.Variable;
+import com.codingstory.polaris.parser.ParserUtils;
+import com.codingstory.polaris.parser.SecondPassProcessor;
+import com.codingstory.polaris.parser.SourceAnnotator;
+import com.codingstory.polaris.parser.SymbolTable;
+import com.codingstory.polaris.parser.ThirdPassProcessor;
+import com.codingstory.polaris.pipeline.PipelineProtos.FileContent;
+import com.codingstory.polaris.pipeline.PipelineProtos.IndexedFile;
+import com.codingstory.polaris.sourcedb.SourceDb;
+import com.codingstory.polaris.sourcedb.SourceDbWriter;
+import com.codingstory.polaris.typedb.TypeDb;
+import com.codingstory.polaris.typedb.TypeDbWriter;
+import com.codingstory.polaris.usagedb.UsageDb;
+import com.codingstory.polaris.usagedb.UsageDbWriter;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import japa.parser.ast.CompilationUnit;
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the same passes as the MapReduce jobs of {@link IndexPipeline}, but in memory on a thread pool. It is much
+ * faster than local MapReduce as long as the corpus fits in RAM.
+ */
+public class ParallelIndexer {
+
+    private static final Log LOG = LogFactory.getLog(ParallelIndexer.class);
+    private static final int MAX_IMPORTED_CLASSES = 1000; // prevent OOM
+    private static final int MAX_TYPES_PER_FILE = 10000;
+
+    /** Intermediate results of a single source file. */
+    private static class FileState {
+        private final FileHandle file;
+        private FileContent content; // null if the file is not (re-)indexed, but only provides imported classes
+        private CompilationUnit compilationUnit; // parsed once, released after the 3rd pass
+        private boolean parsed;
+        private String pkg;
+        private List<String> declaredClasses = ImmutableList.of();
+        private List<String> importedClasses = ImmutableList.of();
+        private List<ClassType> classes1stPass;
+        private List<FileState> importedFiles;
+        private List<ClassType> classes2ndPass;
+        private List<Usage> usages2ndPass;
+        private List<Usage> usages3rdPass;
+
+        private FileState(FileContent content) {
+            this.content = Preconditions.checkNotNull(content);
+            this.file = content.getFile();
+        }
+
+        /** Restores a file indexed before, without its content. */
+        private FileState(IndexedFile indexed) {
+            Preconditions.checkNotNull(indexed);
+            this.file = indexed.getFile();
+            this.parsed = indexed.hasPackage();
+            this.pkg = indexed.getPackage();
+            this.declaredClasses = indexed.getDeclaredClassesList();
+            this.importedClasses = indexed.getImportedClassesList();
+        }
+
+        private FileHandle getFile() {
+            return file;
+        }
+
+        private boolean isParsed() {
+            return parsed;
+        }
+
+        private IndexedFile toIndexedFile() {
+            IndexedFile.Builder builder = IndexedFile.newBuilder()
+                    .setFile(file);
+            if (parsed) {
+                builder.setPackage(pkg)
+                        .addAllDeclaredClasses(declaredClasses)
+                        .addAllImportedClasses(importedClasses);
+            }
+            return builder.build();
+        }
+    }
+
+    private interface FileTask {
+        void process(FileState file) throws IOException;
+    }
+
+    private final IdGenerator idGenerator;
+    private final int parallelism;
+
+    public ParallelIndexer(IdGenerator idGenerator, int parallelism) {
+        Preconditions.checkArgument(parallelism > 0);
+        this.idGenerator = Preconditions.checkNotNull(idGenerator);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Indexes all files from scratch.
+     *
+     * @return what a later call to {@link #update} needs to know about the files
+     */
+    public List<IndexedFile> run(
+            Collection<FileContent> fileContents,
+            Collection<FileHandle> directories,
+            final TypeDbWriter typeDb,
+            final SourceDbWriter sourceDb,
+            final UsageDbWriter usageDb) throws IOException {
+        Preconditions.checkNotNull(fileContents);
+        Preconditions.checkNotNull(directories);
+        Preconditions.checkNotNull(typeDb);
+        Preconditions.checkNotNull(sourceDb);
+        Preconditions.checkNotNull(usageDb);
+
+        List<FileState> files = Lists.newArrayListWithCapacity(fileContents.size());
+        for (FileContent fileContent : fileContents) {
+            files.add(new FileState(fileContent));
+        }
+
+        ExecutorService executor = newExecutor();
+        try {
+            discoverClasses(executor, files);
+            buildImportGraph(files, files);
+            discoverMembersAndMethodCalls(executor, files);
+            checkIdCollisions(files);
+            final ConcurrentMap<Long, AtomicLong> useCounts = countClassUsages(files);
+            forEachFile(executor, "Output", files, new FileTask() {
+                @Override
+                public void process(FileState file) throws IOException {
+                    writeOutput(file, useCounts, typeDb, sourceDb, usageDb);
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (FileHandle directory : directories) {
+            sourceDb.writeDirectory(directory);
+        }
+        return toIndexedFiles(files);
+    }
+
+    /**
+     * Re-indexes changed files, together with unchanged files importing them, since their references may resolve
+     * differently now. Everything indexed before for these files and for deleted files is removed, and use counts
+     * of types declared elsewhere are adjusted.
+     *
+     * <p>Types, methods and fields declared in re-indexed files keep their ids if the id generator derives ids from
+     * identities, like {@link com.codingstory.polaris.HashIdGenerator}, so files which are not re-indexed still
+     * refer to them correctly. Otherwise they get new ids, which other files pick up when they change themselves.
+     *
+     * @param changedFiles added or modified files. A modified file must keep its file id.
+     * @param deletedFileIds ids of deleted files
+     * @param indexedFiles all files indexed before, as returned by {@link #run} or {@link #update}
+     * @return what the next call to {@link #update} needs to know about re-indexed files
+     */
+    public List<IndexedFile> update(
+            Collection<FileContent> changedFiles,
+            Collection<Long> deletedFileIds,
+            Collection<IndexedFile> indexedFiles,
+            final TypeDb typeDbReader,
+            final SourceDb sourceDbReader,
+            UsageDb usageDbReader,
+            final TypeDbWriter typeDb,
+            final SourceDbWriter sourceDb,
+            final UsageDbWriter usageDb) throws IOException {
+        Preconditions.checkNotNull(changedFiles);
+        Preconditions.checkNotNull(deletedFileIds);
+        Preconditions.checkNotNull(indexedFiles);
+        Preconditions.checkNotNull(typeDbReader);
+        Preconditions.checkNotNull(sourceDbReader);
+        Preconditions.checkNotNull(usageDbReader);
+        Preconditions.checkNotNull(typeDb);
+        Preconditions.checkNotNull(sourceDb);
+        Preconditions.checkNotNull(usageDb);
+
+        List<FileState> changed = Lists.newArrayListWithCapacity(changedFiles.size());
+        Set<Long> obsoleteFileIds = Sets.newHashSet(deletedFileIds);
+        for (FileContent fileContent : changedFiles) {
+            changed.add(new FileState(fileContent));
+            obsoleteFileIds.add(fileContent.getFile().getId());
+        }
+        List<FileState> obsolete = Lists.newArrayList();
+        List<FileState> unchanged = Lists.newArrayList();
+        for (IndexedFile indexedFile : indexedFiles) {
+            if (obsoleteFileIds.contains(indexedFile.getFile().getId())) {
+                obsolete.add(new FileState(indexedFile));
+            } else {
+                unchanged.add(new FileState(indexedFile));
+            }
+        }
+
+        ExecutorService executor = newExecutor();
+        try {
+            discoverClasses(executor, changed);
+
+            // Both old and new declarations of changed files matter. An importer of an old class may now refer to
+            // something else.
+            List<FileState> importers = findImporters(unchanged, Iterables.concat(obsolete, changed));
+            forEachFile(executor, "LoadImporters", importers, new FileTask() {
+                @Override
+                public void process(FileState file) throws IOException {
+                    SourceFile source = sourceDbReader.querySourceById(file.getFile().getId());
+                    if (source == null) {
+                        LOG.warn("Missing source of " + file.getFile());
+                        return;
+                    }
+                    file.content = FileContent.newBuilder()
+                            .setFile(file.getFile())
+                            .setContent(source.getSource())
+                            .build();
+                }
+            });
+
+            List<FileState> files = Lists.newArrayList(changed);
+            List<FileState> dependencies = Lists.newArrayList();
+            for (FileState file : unchanged) {
+                if (file.content != null) {
+                    files.add(file);
+                    obsoleteFileIds.add(file.getFile().getId());
+                } else {
+                    dependencies.add(file);
+                }
+            }
+            LOG.info(String.format("%d changed file(s), %d deleted file(s), %d importer(s) to re-index",
+                    changed.size(), deletedFileIds.size(), files.size() - changed.size()));
+            discoverClasses(executor, files.subList(changed.size(), files.size()));
+
+            buildImportGraph(files, Iterables.concat(files, dependencies));
+            Set<FileState> imported = Sets.newIdentityHashSet();
+            for (FileState file : files) {
+                if (file.isParsed()) {
+                    imported.addAll(file.importedFiles);
+                }
+            }
+            List<FileState> importedDependencies = Lists.newArrayList();
+            for (FileState file : imported) {
+                if (file.content == null) {
+                    importedDependencies.add(file);
+                }
+            }
+            forEachFile(executor, "LoadDependencies", importedDependencies, new FileTask() {
+                @Override
+                public void process(FileState file) throws IOException {
+                    loadClasses(file, typeDbReader);
+                }
+            });
+
+            discoverMembersAndMethodCalls(executor, files);
+            checkIdCollisions(files);
+            final ConcurrentMap<Long, AtomicLong> useCounts = countClassUsages(files);
+            updateUseCounts(files, obsoleteFileIds, useCounts, typeDbReader, usageDbReader, typeDb);
+
+            for (long fileId : obsoleteFileIds) {
+                typeDb.deleteFile(fileId);
+                sourceDb.deleteFile(fileId);
+                usageDb.deleteFile(fileId);
+            }
+            forEachFile(executor, "Output", files, new FileTask() {
+                @Override
+                public void process(FileState file) throws IOException {
+                    writeOutput(file, useCounts, typeDb, sourceDb, usageDb);
+                }
+            });
+            return toIndexedFiles(files);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ExecutorService newExecutor() {
+        return Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("polaris-indexer-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    private void discoverClasses(ExecutorService executor, List<FileState> files) throws IOException {
+        forEachFile(executor, "FirstPass", files, new FileTask() {
+            @Override
+            public void process(FileState file) throws IOException {
+                discoverClasses(file);
+            }
+        });
+    }
+
+    private void discoverMembersAndMethodCalls(ExecutorService executor, List<FileState> files) throws IOException {
+        forEachFile(executor, "SecondPass", files, new FileTask() {
+            @Override
+            public void process(FileState file) throws IOException {
+                if (file.isParsed()) {
+                    discoverMembers(file);
+                }
+            }
+        });
+
+        forEachFile(executor, "ThirdPass", files, new FileTask() {
+            @Override
+            public void process(FileState file) throws IOException {
+                if (file.isParsed()) {
+                    discoverMethodCalls(file);
+                }
+            }
+        });
+    }
+
+    private void discoverClasses(FileState file) {
+        try {
+            CompilationUnit compilationUnit = ParserUtils.parse(file.content.getContent());
+            FirstPassProcessor.Result result = FirstPassProcessor.process(
+                    file.getFile(), compilationUnit, idGenerator);
+            ImportExtractor.Result imports = ImportExtractor.findImports(compilationUnit);
+            file.compilationUnit = compilationUnit;
+            file.pkg = result.getPackage();
+            file.importedClasses = imports.getImportedClasses();
+            file.classes1stPass = result.getDiscoveredClasses();
+            List<String> declaredClasses = Lists.newArrayList();
+            for (ClassType clazz : file.classes1stPass) {
+                declaredClasses.add(clazz.getHandle().getName());
+            }
+            file.declaredClasses = declaredClasses;
+            file.parsed = true;
+        } catch (IOException e) {
+            file.parsed = false;
+            file.declaredClasses = ImmutableList.of();
+            file.importedClasses = ImmutableList.of();
+            LOG.warn("Failed to parse " + file.getFile());
+            LOG.debug("Exception", e);
+        }
+    }
+
+    /** Finds files which import any class declared in {@code targets}, or are in the same package. */
+    private static List<FileState> findImporters(List<FileState> files, Iterable<FileState> targets) {
+        Set<String> classes = Sets.newHashSet();
+        Set<String> packages = Sets.newHashSet();
+        for (FileState target : targets) {
+            if (target.isParsed()) {
+                classes.addAll(target.declaredClasses);
+                packages.add(target.pkg);
+            }
+        }
+        List<FileState> importers = Lists.newArrayList();
+        for (FileState file : files) {
+            if (file.isParsed() && (packages.contains(file.pkg) || containsAny(classes, file.importedClasses))) {
+                importers.add(file);
+            }
+        }
+        return importers;
+    }
+
+    private static boolean containsAny(Set<String> set, List<String> values) {
+        for (String value : values) {
+            if (set.contains(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Guesses A imports B if A imports any class declared in B, or A and B are in the same package. It fills
+     * imported files of {@code files}, looking for them among {@code targets}.
+     */
+    private void buildImportGraph(List<FileState> files, Iterable<FileState> targets) {
+        Multimap<String, FileState> filesByDeclaredClass = HashMultimap.create();
+        Multimap<String, FileState> filesByPackage = HashMultimap.create();
+        for (FileState target : targets) {
+            if (!target.isParsed()) {
+                continue;
+            }
+            for (String clazz : target.declaredClasses) {
+                filesByDeclaredClass.put(clazz, target);
+            }
+            filesByPackage.put(target.pkg, target);
+        }
+        for (FileState file : files) {
+            if (!file.isParsed()) {
+                continue;
+            }
+            Set<FileState> imported = Sets.newLinkedHashSet();
+            for (String importedClass : file.importedClasses) {
+                imported.addAll(filesByDeclaredClass.get(importedClass));
+            }
+            imported.addAll(filesByPackage.get(file.pkg));
+            file.importedFiles = ImmutableList.copyOf(imported);
+        }
+    }
+
+    /** Loads classes of a file which is not re-indexed from {@code TypeDb}. */
+    private void loadClasses(FileState file, TypeDb typeDb) throws IOException {
+        List<ClassType> classes = typeDb.getTypesInFile(file.getFile().getId(), MAX_TYPES_PER_FILE);
+        List<ClassType> classes1stPass = Lists.newArrayListWithCapacity(classes.size());
+        for (ClassType clazz : classes) {
+            classes1stPass.add(ClassType.newBuilder()
+                    .setHandle(clazz.getHandle())
+                    .setKind(clazz.getKind())
+                    .setJumpTarget(clazz.getJumpTarget())
+                    .build());
+        }
+        file.classes1stPass = classes1stPass;
+        file.classes2ndPass = classes;
+    }
+
+    private void discoverMembers(FileState file) throws IOException {
+        List<ClassType> importedClasses = Lists.newArrayList();
+        for (FileState importedFile : file.importedFiles) {
+            importedClasses.addAll(importedFile.classes1stPass);
+        }
+        FileHandle fileHandle = file.getFile();
+        SecondPassProcessor.Result result = SecondPassProcessor.extract(
+                fileHandle.getProject(),
+                fileHandle,
+                file.content.getContent(),
+                file.compilationUnit,
+                createSymbolTable(file, file.classes1stPass, importedClasses),
+                idGenerator,
+                file.pkg);
+        file.classes2ndPass = result.getClassTypes();
+        file.usages2ndPass = result.getUsages();
+    }
+
+    private void discoverMethodCalls(FileState file) throws IOException {
+        List<ClassType> importedClasses = Lists.newArrayList();
+        for (FileState importedFile : file.importedFiles) {
+            importedClasses.addAll(importedFile.classes2ndPass);
+        }
+        file.usages3rdPass = ThirdPassProcessor.extract(
+                file.getFile(),
+                file.content.getContent(),
+                file.compilationUnit,
+                createSymbolTable(file, file.classes2ndPass, importedClasses),
+                file.pkg,
+                idGenerator);
+        file.compilationUnit = null;
+    }
+
+    /**
+     * Reports types, fields and methods of different entities with the same id among {@code files}. Ids derived from
+     * identities are not resolved, so that they stay the same in every run, but a collision makes lookups by id
+     * return either entity. The map of ids lives only as long as this call.
+     */
+    private static void checkIdCollisions(List<FileState> files) {
+        Map<Long, Object> entities = Maps.newHashMap(); // by id
+        int collisions = 0;
+        for (FileState file : files) {
+            if (file.classes2ndPass == null) {
+                continue;
+            }
+            for (ClassType clazz : file.classes2ndPass) {
+                ClassTypeHandle handle = clazz.getHandle();
+                collisions += checkIdCollision(entities, handle.getId(),
+                        ImmutableList.<Object>of(file.getFile().getId(), handle.getName()), handle.getName());
+                for (Variable field : clazz.getFieldsList()) {
+                    collisions += checkIdCollision(entities, field.getHandle().getId(),
+                            ImmutableList.<Object>of(handle.getId(), field.getHandle().getName()),
+                            handle.getName() + "." + field.getHandle().getName());
+                }
+                for (Method method : clazz.getMethodsList()) {
+                    collisions += checkIdCollision(entities, method.getHandle().getId(),
+                            ImmutableList.<Object>of(handle.getId(), method.getHandle().toBuilder().clearId().build()),
+                            handle.getName() + "." + method.getHandle().getName());
+                }
+            }
+        }
+        if (collisions > 0) {
+            LOG.warn("Found " + collisions + " id collision(s)");
+        }
+    }
+
+    /** Returns 1 if {@code id} belongs to another entity than {@code entity}, or 0 otherwise. */
+    private static int checkIdCollision(Map<Long, Object> entities, long id, Object entity, String name) {
+        Object existing = entities.put(id, entity);
+        if (existing == null || existing.equals(entity)) {
+            return 0;
+        }
+        LOG.warn("Id collision on " + id + ": " + name);
+        return 1;
+    }
+
+    private SymbolTable createSymbolTable(
+            FileState file, List<ClassType> currentClasses, List<ClassType> importedClasses) {
+        if (importedClasses.size() > MAX_IMPORTED_CLASSES) {
+            LOG.warn(file.getFile().getPath() + " has " + importedClasses.size() +
+                    " imports, which is too many. Only keep first " + MAX_IMPORTED_CLASSES);
+            importedClasses = importedClasses.subList(0, MAX_IMPORTED_CLASSES);
+        }
+        SymbolTable symbolTable = new SymbolTable();
+        for (ClassType clazz : currentClasses) {
+            symbolTable.registerClassType(clazz);
+        }
+        for (ClassType clazz : importedClasses) {
+            symbolTable.registerClassType(clazz);
+        }
+        return symbolTable;
+    }
+
+    private ConcurrentMap<Long, AtomicLong> countClassUsages(List<FileState> files) {
+        ConcurrentMap<Long, AtomicLong> useCounts = Maps.newConcurrentMap();
+        for (FileState file : files) {
+            for (Usage usage : getUsages(file)) {
+                if (usage.getKind() == Usage.Kind.TYPE) {
+                    long classId = usage.getType().getType().getClazz().getId();
+                    AtomicLong count = useCounts.get(classId);
+                    if (count == null) {
+                        count = new AtomicLong();
+                        useCounts.put(classId, count);
+                    }
+                    count.incrementAndGet();
+                }
+            }
+        }
+        return useCounts;
+    }
+
+    /**
+     * Adjusts use counts of types which are declared in files not being re-indexed, but used by files being
+     * re-indexed or deleted.
+     */
+    private void updateUseCounts(
+            List<FileState> files,
+            Set<Long> obsoleteFileIds,
+            Map<Long, AtomicLong> newUseCounts,
+            TypeDb typeDbReader,
+            UsageDb usageDbReader,
+            TypeDbWriter typeDb) throws IOException {
+        Set<Long> reindexedClasses = Sets.newHashSet();
+        for (FileState file : files) {
+            if (file.classes2ndPass != null) {
+                for (ClassType clazz : file.classes2ndPass) {
+                    reindexedClasses.add(clazz.getHandle().getId());
+                }
+            }
+        }
+        Map<Long, Long> deltas = Maps.newHashMap();
+        for (long fileId : obsoleteFileIds) {
+            for (Usage usage : usageDbReader.findUsagesInFile(fileId)) {
+                if (usage.getKind() == Usage.Kind.TYPE) {
+                    addDelta(deltas, usage.getType().getType().getClazz().getId(), -1);
+                }
+            }
+        }
+        for (Map.Entry<Long, AtomicLong> entry : newUseCounts.entrySet()) {
+            addDelta(deltas, entry.getKey(), entry.getValue().get());
+        }
+        int updated = 0;
+        for (Map.Entry<Long, Long> entry : deltas.entrySet()) {
+            long classId = entry.getKey();
+            long delta = entry.getValue();
+            if (delta == 0 || !IdUtils.isValid(classId) || reindexedClasses.contains(classId)) {
+                continue;
+            }
+            ClassType clazz = typeDbReader.getTypeById(classId);
+            if (clazz == null || obsoleteFileIds.contains(clazz.getJumpTarget().getFile().getId())) {
+                continue;
+            }
+            typeDb.update(clazz.toBuilder()
+                    .setUseCount(Math.max(0, clazz.getUseCount() + delta))
+                    .build());
+            updated++;
+        }
+        LOG.info("Updated use counts of " + updated + " type(s)");
+    }
+
+    private static void addDelta(Map<Long, Long> deltas, long key, long delta) {
+        Long value = deltas.get(key);
+        deltas.put(key, (value == null ? 0 : value) + delta);
+    }
+
+    private void writeOutput(
+            FileState file,
+            Map<Long, AtomicLong> useCounts,
+            TypeDbWriter typeDb,
+            SourceDbWriter sourceDb,
+            UsageDbWriter usageDb) throws IOException {
+        if (file.classes2ndPass != null) {
+            for (ClassType clazz : file.classes2ndPass) {
+                AtomicLong useCount = useCounts.get(clazz.getHandle().getId());
+                typeDb.write(clazz.toBuilder()
+                        .setUseCount(useCount == null ? 0 : useCount.get())
+                        .build());
+            }
+        }
+
+        List<Usage> usages = getUsages(file);
+        for (Usage usage : usages) {
+            if (usage.getKind() != Usage.Kind.TYPE || usage.getType().getType().getClazz().getResolved()) {
+                usageDb.write(usage);
+            }
+        }
+
+        String content = file.content.getContent();
+        String annotated = SourceAnnotator.annotate(new ByteArrayInputStream(content.getBytes()), usages);
+        sourceDb.writeSourceFile(SourceFile.newBuilder()
+                .setHandle(file.getFile())
+                .setSource(content)
+                .setAnnotatedSource(annotated)
+                .build());
+    }
+
+    private List<Usage> getUsages(FileState file) {
+        List<Usage> usages = Lists.newArrayList();
+        if (file.usages2ndPass != null) {
+            usages.addAll(file.usages2ndPass);
+        }
+        if (file.usages3rdPass != null) {
+            usages.addAll(file.usages3rdPass);
+        }
+        return usages;
+    }
+
+    private static List<IndexedFile> toIndexedFiles(List<FileState> files) {
+        List<IndexedFile> indexedFiles = Lists.newArrayListWithCapacity(files.size());
+        for (FileState file : files) {
+            indexedFiles.add(file.toIndexedFile());
+        }
+        return indexedFiles;
+    }
+
+    /**
+     * Applies {@code task} to every file. Workers pull files from a shared counter, so a worker stuck on a huge file
+     * does not hold back others.
+     */
+    private void forEachFile(
+            ExecutorService executor,
+            String phase,
+            final List<FileState> files,
+            final FileTask task) throws IOException {
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        LOG.info("Running " + phase + " on " + files.size() + " file(s)");
+        final AtomicInteger next = new AtomicInteger();
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < parallelism; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    int i;
+                    while ((i = next.getAndIncrement()) < files.size()) {
+                        task.process(files.get(i));
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(phase + " is interrupted");
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+        LOG.info(phase + " completes in " + stopWatch.getTime() + " ms");
+    }
+}
@@ -0,0 +1,427 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.IdGenerator;
+import com.codingstory.polaris.IdUtils;
+import com.codingstory.polaris.indexing.DirectoryTranverser;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.pipeline.PipelineProtos.DuplicateFile;
+import com.codingstory.polaris.pipeline.PipelineProtos.FileContent;
+import com.codingstory.polaris.repo.GitUtils;
+import com.codingstory.polaris.repo.Repository;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads source files and directories of projects on a thread pool, one project per task. Records are handed to a
+ * single {@link Sink} through a bounded queue, so readers block when the sink falls behind instead of buffering the
+ * whole corpus. Files are identified by their Git blob ids. In each project, only one file of each content is
+ * written as a source file, and the others are written as {@link DuplicateFile}s, so vendored copies are parsed once.
+ * Copies in different projects are parsed on their own, since types and usages are indexed by the project of the
+ * parsed file.
+ *
+ * <p>The original of a content is the file of the lowest path in its project, no matter in which order files are
+ * read. Projects are scanned for blob ids before they are read, so that originals are known before any file is
+ * written.
+ */
+public class ParallelIngester {
+
+    /** Receives source files and directories found in projects. It is only called from one thread. */
+    public interface Sink {
+        void writeFile(FileContent file) throws IOException;
+        void writeDirectory(FileHandle dir) throws IOException;
+        void writeDuplicateFile(DuplicateFile file) throws IOException;
+    }
+
+    private static final Log LOG = LogFactory.getLog(ParallelIngester.class);
+    private static final String JAVA_SUFFIX = ".java";
+
+    private static final Comparator<FileHandle> FILE_ORDER = new Comparator<FileHandle>() {
+        @Override
+        public int compare(FileHandle left, FileHandle right) {
+            return left.getPath().compareTo(right.getPath());
+        }
+    };
+
+    /** An element of the queue: a file, a directory, a duplicate file, or the end of a task. */
+    private static class Record {
+        private FileContent file;
+        private FileHandle dir;
+        private DuplicateFile duplicate;
+        private boolean end;
+        private Throwable error; // Set when a task stops, null if it succeeds.
+    }
+
+    private final IdGenerator idGenerator;
+    private final int parallelism;
+    private final int queueCapacity;
+    private final List<Repository> repos = Lists.newArrayList();
+    private final List<File> dirs = Lists.newArrayList();
+    private final ConcurrentMap<String, FileHandle> originalFiles = Maps.newConcurrentMap(); // by contentKeyOf()
+
+    public ParallelIngester(IdGenerator idGenerator, int parallelism, int queueCapacity) {
+        Preconditions.checkArgument(parallelism > 0);
+        Preconditions.checkArgument(queueCapacity > 0);
+        this.idGenerator = Preconditions.checkNotNull(idGenerator);
+        this.parallelism = parallelism;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void addRepository(Repository repo) {
+        repos.add(Preconditions.checkNotNull(repo));
+    }
+
+    public void addProjectDirectory(File dir) {
+        dirs.add(Preconditions.checkNotNull(dir));
+    }
+
+    public void run(Sink sink) throws IOException {
+        Preconditions.checkNotNull(sink);
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(queueCapacity);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("polaris-ingester-%d")
+                .setDaemon(true)
+                .build());
+        List<Future<Void>> futures = Lists.newArrayList();
+        try {
+            findOriginalFiles(executor);
+            LOG.info("Found " + originalFiles.size() + " distinct file(s) in " + stopWatch.getTime() + " ms");
+            for (final Repository repo : repos) {
+                futures.add(executor.submit(new IngestTask(queue) {
+                    @Override
+                    protected void ingest() throws IOException {
+                        readRepo(repo, this);
+                    }
+                }));
+            }
+            for (final File dir : dirs) {
+                futures.add(executor.submit(new IngestTask(queue) {
+                    @Override
+                    protected void ingest() throws IOException {
+                        readProjectDir(dir, this);
+                    }
+                }));
+            }
+
+            long files = 0;
+            long duplicates = 0;
+            int remaining = futures.size();
+            while (remaining > 0) {
+                Record record = queue.take();
+                if (record.end) {
+                    if (record.error != null) {
+                        Throwables.propagateIfInstanceOf(record.error, IOException.class);
+                        throw Throwables.propagate(record.error);
+                    }
+                    remaining--;
+                } else if (record.file != null) {
+                    sink.writeFile(record.file);
+                    files++;
+                    if (files % 5000 == 0) {
+                        LOG.info("Ingested " + files + " files");
+                    }
+                } else if (record.dir != null) {
+                    sink.writeDirectory(record.dir);
+                } else {
+                    sink.writeDuplicateFile(record.duplicate);
+                    duplicates++;
+                }
+            }
+            LOG.info("Ingested " + files + " file(s) and " + duplicates + " duplicate(s) of " + futures.size()
+                    + " project(s) in " + stopWatch.getTime() + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Ingestion is interrupted");
+        } finally {
+            // Wakes up readers blocked on the full queue if the sink fails.
+            executor.shutdownNow();
+        }
+    }
+
+    /** Scans all projects in parallel, and picks the original file of each blob id in each project. */
+    private void findOriginalFiles(ExecutorService executor) throws IOException, InterruptedException {
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (final Repository repo : repos) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    scanRepo(repo);
+                    return null;
+                }
+            });
+        }
+        for (final File dir : dirs) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    scanProjectDir(dir);
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+    }
+
+    private void scanRepo(Repository repo) throws IOException {
+        String head = GitUtils.getHeadCommit(repo);
+        if (head == null) {
+            return;
+        }
+        final String project = repo.getName();
+        GitUtils.readTree(repo, head, JAVA_SUFFIX, false, new GitUtils.TreeVisitor() {
+            @Override
+            public void visitDirectory(String path) {
+            }
+
+            @Override
+            public void visitFile(String path, String blobId, byte[] content) {
+                if (!isHidden(path)) {
+                    offerOriginalFile(blobId, project, path);
+                }
+            }
+        });
+    }
+
+    private void scanProjectDir(File dir) throws IOException {
+        String project = dir.getName();
+        List<File> sourceFiles = Lists.newArrayList();
+        listProjectDirectory(dir, Lists.<File>newArrayList(), sourceFiles);
+        for (File sourceFile : sourceFiles) {
+            String path = StringUtils.removeStart(sourceFile.getPath(), dir.getPath());
+            offerOriginalFile(GitUtils.getBlobId(readFileToBytes(sourceFile)), project, path);
+        }
+    }
+
+    /** Makes a file the original of its blob id in its project, unless there is one of a lower path. */
+    private void offerOriginalFile(String blobId, String project, String path) {
+        FileHandle file = createFileHandle(project, path);
+        String key = contentKeyOf(project, blobId);
+        while (true) {
+            FileHandle original = originalFiles.putIfAbsent(key, file);
+            if (original == null || FILE_ORDER.compare(original, file) <= 0
+                    || originalFiles.replace(key, original, file)) {
+                return;
+            }
+            // Replaced by another thread in between. Compare with the new one.
+        }
+    }
+
+    private static String contentKeyOf(String project, String blobId) {
+        return IdUtils.identityOf(project, blobId);
+    }
+
+    /** Reads a project and puts what it finds into the queue, followed by an end mark. */
+    private static abstract class IngestTask implements Callable<Void>, Sink {
+        private final BlockingQueue<Record> queue;
+
+        private IngestTask(BlockingQueue<Record> queue) {
+            this.queue = queue;
+        }
+
+        protected abstract void ingest() throws IOException;
+
+        @Override
+        public Void call() throws InterruptedException {
+            Record record = new Record();
+            record.end = true;
+            try {
+                ingest();
+            } catch (Throwable e) {
+                record.error = e;
+            }
+            queue.put(record);
+            return null;
+        }
+
+        @Override
+        public void writeFile(FileContent file) throws IOException {
+            Record record = new Record();
+            record.file = file;
+            put(record);
+        }
+
+        @Override
+        public void writeDirectory(FileHandle dir) throws IOException {
+            Record record = new Record();
+            record.dir = dir;
+            put(record);
+        }
+
+        @Override
+        public void writeDuplicateFile(DuplicateFile duplicate) throws IOException {
+            Record record = new Record();
+            record.duplicate = duplicate;
+            put(record);
+        }
+
+        private void put(Record record) throws IOException {
+            try {
+                queue.put(record);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private void readRepo(Repository repo, final Sink sink) throws IOException {
+        LOG.info("Scanning repository: " + repo.getName());
+        String head = GitUtils.getHeadCommit(repo);
+        if (head == null) {
+            LOG.warn("Skipped empty repository: " + repo.getName());
+            return;
+        }
+
+        // Reads blobs from the object database, instead of checking out a work tree.
+        final String project = repo.getName();
+        GitUtils.readTree(repo, head, JAVA_SUFFIX, new GitUtils.TreeVisitor() {
+            @Override
+            public void visitDirectory(String path) throws IOException {
+                if (!isHidden(path)) {
+                    sink.writeDirectory(createDirectoryHandle(project, path));
+                }
+            }
+
+            @Override
+            public void visitFile(String path, String blobId, byte[] content) throws IOException {
+                if (!isHidden(path)) {
+                    writeFile(sink, project, path, blobId, content);
+                }
+            }
+        });
+    }
+
+    private void readProjectDir(File dir, Sink sink) throws IOException {
+        LOG.info("Scanning project root: " + dir.getName());
+        String project = dir.getName();
+        List<File> sourceDirs = Lists.newArrayList();
+        List<File> sourceFiles = Lists.newArrayList();
+        listProjectDirectory(dir, sourceDirs, sourceFiles);
+        for (File sourceDir : sourceDirs) {
+            String path = StringUtils.removeStart(sourceDir.getPath(), dir.getPath()) + "/";
+            sink.writeDirectory(createDirectoryHandle(project, path));
+        }
+        for (File sourceFile : sourceFiles) {
+            String path = StringUtils.removeStart(sourceFile.getPath(), dir.getPath());
+            byte[] content = readFileToBytes(sourceFile);
+            writeFile(sink, project, path, GitUtils.getBlobId(content), content);
+        }
+    }
+
+    private void writeFile(Sink sink, String project, String path, String blobId, byte[] content)
+            throws IOException {
+        FileHandle original = originalFiles.get(contentKeyOf(project, blobId));
+        if (original == null || original.getPath().equals(path)) {
+            // The original, or a file changed since it was scanned.
+            sink.writeFile(FileContent.newBuilder()
+                    .setFile(original != null ? original : createFileHandle(project, path))
+                    .setContent(new String(content))
+                    .build());
+        } else {
+            sink.writeDuplicateFile(DuplicateFile.newBuilder()
+                    .setFile(createFileHandle(project, path))
+                    .setOriginalFileId(original.getId())
+                    .build());
+        }
+    }
+
+    private FileHandle createFileHandle(String project, String path) {
+        return FileHandle.newBuilder()
+                .setKind(FileHandle.Kind.NORMAL_FILE)
+                .setId(idGenerator.next(IdUtils.identityOf("file", project, path)))
+                .setProject(project)
+                .setPath(path)
+                .build();
+    }
+
+    private FileHandle createDirectoryHandle(String project, String path) {
+        return FileHandle.newBuilder()
+                .setKind(FileHandle.Kind.DIRECTORY)
+                .setId(idGenerator.next(IdUtils.identityOf("directory", project, path)))
+                .setProject(project)
+                .setPath(path)
+                .build();
+    }
+
+    /** Finds directories and Java source files in a project, skipping hidden ones. */
+    static void listProjectDirectory(File dir, final List<File> sourceDirs, final List<File> sourceFiles) {
+        DirectoryTranverser.traverse(dir, new DirectoryTranverser.Visitor() {
+            @Override
+            public void visit(File file) {
+                if (file.isHidden()) {
+                    return;
+                }
+                if (file.isDirectory()) {
+                    sourceDirs.add(file);
+                } else if (file.getName().endsWith(".java")) {
+                    sourceFiles.add(file);
+                }
+            }
+        });
+    }
+
+    /** Tells whether a file or directory is hidden, like {@link File#isHidden()} on Unix. */
+    static boolean isHidden(String path) {
+        String name = StringUtils.substringAfterLast(StringUtils.removeEnd(path, "/"), "/");
+        return name.startsWith(".");
+    }
+
+    /** Reads a file in the default charset. */
+    static String readFile(File file) throws IOException {
+        return new String(readFileToBytes(file));
+    }
+
+    /** Reads a file with one channel read into a buffer of the file's size. */
+    private static byte[] readFileToBytes(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("File truncated: " + file);
+                }
+            }
+            return buffer.array();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -7,6 +7,17 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
 
 import java.io.File;
 import java.io.IOException;
@@ -16,6 +27,26 @@ import java.util.List;
 public class GitUtils {
 
     private static final Log LOG = LogFactory.getLog(GitUtils.class);
+    private static final int MAX_BLOB_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Receives files changed between two commits. Paths start with "/". Contents may be shared with JGit's cache,
+     * so they must not be modified.
+     */
+    public interface ChangeVisitor {
+        /** Called for an added or modified file. */
+        void visitChangedFile(String path, byte[] content) throws IOException;
+        void visitDeletedFile(String path) throws IOException;
+    }
+
+    /**
+     * Receives directories and files of a commit, parents before children. Paths start with "/", and paths of
+     * directories also end with "/". Contents may be shared with JGit's cache, so they must not be modified.
+     */
+    public interface TreeVisitor {
+        void visitDirectory(String path) throws IOException;
+        void visitFile(String path, String blobId, byte[] content) throws IOException;
+    }
 
     public static Repository mirrorOrSync(Repository remote, File repoBase) throws IOException {
         Preconditions.checkNotNull(remote);
@@ -74,18 +105,196 @@ public class GitUtils {
         return repos;
     }
 
-    public static void checkoutWorkTree(Repository repo, File outputDir) throws IOException {
+    /** Returns the commit HEAD points to, or {@code null} if the repository has no commits. */
+    public static String getHeadCommit(Repository repo) throws IOException {
         Preconditions.checkNotNull(repo);
-        Preconditions.checkNotNull(outputDir);
-        Preconditions.checkArgument(outputDir.isDirectory());
-        LOG.info("Cloning " + repo + " into " + outputDir);
+        org.eclipse.jgit.lib.Repository git = openLocal(repo);
         try {
-            Git.cloneRepository()
-                    .setURI(repo.getUrl())
-                    .setDirectory(outputDir)
-                    .call();
-        } catch (GitAPIException e) {
-            throw new IOException(e);
+            ObjectId head = git.resolve(Constants.HEAD);
+            return head == null ? null : head.getName();
+        } finally {
+            git.close();
+        }
+    }
+
+    public static boolean hasCommit(Repository repo, String commit) throws IOException {
+        Preconditions.checkNotNull(repo);
+        Preconditions.checkNotNull(commit);
+        if (!ObjectId.isId(commit)) {
+            return false;
         }
+        org.eclipse.jgit.lib.Repository git = openLocal(repo);
+        try {
+            return git.hasObject(ObjectId.fromString(commit));
+        } finally {
+            git.close();
+        }
+    }
+
+    /**
+     * Visits files whose names end with {@code suffix} and which differ between two commits. Every file of
+     * {@code toCommit} is reported as changed if {@code fromCommit} is {@code null}.
+     */
+    public static void diff(Repository repo, String fromCommit, String toCommit, String suffix,
+            ChangeVisitor visitor) throws IOException {
+        Preconditions.checkNotNull(repo);
+        Preconditions.checkNotNull(toCommit);
+        Preconditions.checkNotNull(suffix);
+        Preconditions.checkNotNull(visitor);
+        org.eclipse.jgit.lib.Repository git = openLocal(repo);
+        ObjectReader reader = git.newObjectReader();
+        RevWalk revWalk = new RevWalk(reader);
+        TreeWalk treeWalk = new TreeWalk(reader);
+        try {
+            if (fromCommit == null) {
+                treeWalk.addTree(new EmptyTreeIterator());
+            } else {
+                treeWalk.addTree(revWalk.parseCommit(ObjectId.fromString(fromCommit)).getTree());
+            }
+            treeWalk.addTree(revWalk.parseCommit(ObjectId.fromString(toCommit)).getTree());
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(PathSuffixFilter.create(suffix));
+            for (DiffEntry diff : DiffEntry.scan(treeWalk)) {
+                switch (diff.getChangeType()) {
+                    case ADD:
+                    case MODIFY:
+                    case COPY:
+                        byte[] content = readBlob(reader, diff.getNewPath(), diff.getNewId().toObjectId());
+                        if (content != null) {
+                            visitor.visitChangedFile("/" + diff.getNewPath(), content);
+                        }
+                        break;
+                    case DELETE:
+                        visitor.visitDeletedFile("/" + diff.getOldPath());
+                        break;
+                    case RENAME:
+                        visitor.visitDeletedFile("/" + diff.getOldPath());
+                        content = readBlob(reader, diff.getNewPath(), diff.getNewId().toObjectId());
+                        if (content != null) {
+                            visitor.visitChangedFile("/" + diff.getNewPath(), content);
+                        }
+                        break;
+                    default:
+                        throw new AssertionError("Unknown change type: " + diff.getChangeType());
+                }
+            }
+        } finally {
+            treeWalk.release();
+            revWalk.release();
+            reader.release();
+            git.close();
+        }
+    }
+
+    /** Lists all directories of a commit, such as "/" and "/src/". */
+    public static List<String> listDirectories(Repository repo, String commit) throws IOException {
+        Preconditions.checkNotNull(repo);
+        Preconditions.checkNotNull(commit);
+        org.eclipse.jgit.lib.Repository git = openLocal(repo);
+        ObjectReader reader = git.newObjectReader();
+        RevWalk revWalk = new RevWalk(reader);
+        TreeWalk treeWalk = new TreeWalk(reader);
+        try {
+            treeWalk.addTree(revWalk.parseCommit(ObjectId.fromString(commit)).getTree());
+            treeWalk.setRecursive(false);
+            List<String> dirs = Lists.newArrayList("/");
+            while (treeWalk.next()) {
+                if (treeWalk.isSubtree()) {
+                    dirs.add("/" + treeWalk.getPathString() + "/");
+                    treeWalk.enterSubtree();
+                }
+            }
+            return dirs;
+        } finally {
+            treeWalk.release();
+            revWalk.release();
+            reader.release();
+            git.close();
+        }
+    }
+
+    /**
+     * Visits directories and files of a commit by reading the object database directly, so no work tree is
+     * needed and bare repositories work. Only files whose names end with {@code suffix} are read.
+     */
+    public static void readTree(Repository repo, String commit, String suffix, TreeVisitor visitor)
+            throws IOException {
+        readTree(repo, commit, suffix, true, visitor);
+    }
+
+    /**
+     * Like {@link #readTree(Repository, String, String, TreeVisitor)}, but reads no blobs if {@code withContent} is
+     * false. Files are then visited with {@code null} contents, skipping those too large to read.
+     */
+    public static void readTree(Repository repo, String commit, String suffix, boolean withContent,
+            TreeVisitor visitor) throws IOException {
+        Preconditions.checkNotNull(repo);
+        Preconditions.checkNotNull(commit);
+        Preconditions.checkNotNull(suffix);
+        Preconditions.checkNotNull(visitor);
+        org.eclipse.jgit.lib.Repository git = openLocal(repo);
+        ObjectReader reader = git.newObjectReader();
+        RevWalk revWalk = new RevWalk(reader);
+        TreeWalk treeWalk = new TreeWalk(reader);
+        try {
+            treeWalk.addTree(revWalk.parseCommit(ObjectId.fromString(commit)).getTree());
+            treeWalk.setRecursive(false);
+            visitor.visitDirectory("/");
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                if (treeWalk.isSubtree()) {
+                    visitor.visitDirectory("/" + path + "/");
+                    treeWalk.enterSubtree();
+                } else if (path.endsWith(suffix) && isRegularFile(treeWalk.getRawMode(0))) {
+                    ObjectId blob = treeWalk.getObjectId(0);
+                    if (!withContent) {
+                        if (reader.getObjectSize(blob, Constants.OBJ_BLOB) <= MAX_BLOB_SIZE) {
+                            visitor.visitFile("/" + path, blob.getName(), null);
+                        }
+                        continue;
+                    }
+                    byte[] content = readBlob(reader, path, blob);
+                    if (content != null) {
+                        visitor.visitFile("/" + path, blob.getName(), content);
+                    }
+                }
+            }
+        } finally {
+            treeWalk.release();
+            revWalk.release();
+            reader.release();
+            git.close();
+        }
+    }
+
+    /** Returns the id Git gives to a blob of {@code content}, which identifies files with identical contents. */
+    public static String getBlobId(byte[] content) {
+        Preconditions.checkNotNull(content);
+        ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+        try {
+            return formatter.idFor(Constants.OBJ_BLOB, content).getName();
+        } finally {
+            formatter.release();
+        }
+    }
+
+    /** Tells whether a tree entry is a regular or an executable file, rather than a symbolic link or submodule. */
+    private static boolean isRegularFile(int mode) {
+        return (mode & FileMode.TYPE_MASK) == FileMode.TYPE_FILE;
+    }
+
+    /** Returns the content of a blob, or {@code null} if it is too large to index. */
+    private static byte[] readBlob(ObjectReader reader, String path, ObjectId blob) throws IOException {
+        try {
+            return reader.open(blob, Constants.OBJ_BLOB).getCachedBytes(MAX_BLOB_SIZE);
+        } catch (LargeObjectException e) {
+            LOG.warn("Skipped large file: " + path);
+            return null;
+        }
+    }
+
+    private static org.eclipse.jgit.lib.Repository openLocal(Repository repo) throws IOException {
+        Preconditions.checkArgument(repo.isLocal(), "Not a local repository: %s", repo);
+        return Git.open(new File(repo.getUrl())).getRepository();
     }
 }
@@ -1,23 +1,29 @@
 package com.codingstory.polaris.search;
 
-import com.codingstory.polaris.indexing.IndexPathUtils;
 import com.codingstory.polaris.parser.ParserProtos;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.Method;
 import com.codingstory.polaris.parser.ParserProtos.SourceFile;
+import com.codingstory.polaris.parser.ParserProtos.Usage;
 import com.codingstory.polaris.parser.ParserProtos.Variable;
 import com.codingstory.polaris.search.SearchProtos.CodeSearch;
 import com.codingstory.polaris.search.SearchProtos.CompleteRequest;
 import com.codingstory.polaris.search.SearchProtos.CompleteResponse;
 import com.codingstory.polaris.search.SearchProtos.GetFieldRequest;
 import com.codingstory.polaris.search.SearchProtos.GetFieldResponse;
+import com.codingstory.polaris.search.SearchProtos.GetFieldsRequest;
+import com.codingstory.polaris.search.SearchProtos.GetFieldsResponse;
 import com.codingstory.polaris.search.SearchProtos.GetFileHandleRequest;
 import com.codingstory.polaris.search.SearchProtos.GetFileHandleResponse;
 import com.codingstory.polaris.search.SearchProtos.GetMethodRequest;
 import com.codingstory.polaris.search.SearchProtos.GetMethodResponse;
+import com.codingstory.polaris.search.SearchProtos.GetMethodsRequest;
+import com.codingstory.polaris.search.SearchProtos.GetMethodsResponse;
 import com.codingstory.polaris.search.SearchProtos.GetTypeRequest;
 import com.codingstory.polaris.search.SearchProtos.GetTypeResponse;
+import com.codingstory.polaris.search.SearchProtos.GetTypesRequest;
+import com.codingstory.polaris.search.SearchProtos.GetTypesResponse;
 import com.codingstory.polaris.search.SearchProtos.Hit;
 import com.codingstory.polaris.search.SearchProtos.ListFilesRequest;
 import com.codingstory.polaris.search.SearchProtos.ListFilesResponse;
@@ -29,18 +35,21 @@ import com.codingstory.polaris.search.SearchProtos.SearchRequest;
 import com.codingstory.polaris.search.SearchProtos.SearchResponse;
 import com.codingstory.polaris.search.SearchProtos.SourceRequest;
 import com.codingstory.polaris.search.SearchProtos.SourceResponse;
+import com.codingstory.polaris.search.SearchProtos.SourcesRequest;
+import com.codingstory.polaris.search.SearchProtos.SourcesResponse;
 import com.codingstory.polaris.search.SearchProtos.StatusCode;
+import com.codingstory.polaris.search.SearchProtos.UsageCount;
 import com.codingstory.polaris.sourcedb.SourceDb;
-import com.codingstory.polaris.sourcedb.SourceDbImpl;
-import com.codingstory.polaris.typedb.TypeDb;
-import com.codingstory.polaris.typedb.TypeDbImpl;
 import com.codingstory.polaris.usagedb.UsageDb;
-import com.codingstory.polaris.usagedb.UsageDbImpl;
+import com.codingstory.polaris.usagedb.UsagePage;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.RpcController;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.time.StopWatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -48,28 +57,66 @@ import org.apache.commons.logging.LogFactory;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
 
     private static final Log LOG = LogFactory.getLog(CodeSearchImpl.class);
-    private final TypeDb typeDb;
-    private final SourceDb sourceDb;
-    private final UsageDb usageDb;
-    private final SearchMixer mixer;
+    private static final int DEFAULT_COMPLETIONS = 20;
+    private static final int MAX_COMPLETIONS = 100;
+    private static final int DEFAULT_USAGES_PER_PAGE = 1000;
+    private static final int MAX_USAGES_PER_PAGE = 10000;
+    private static final int MAX_IDS_PER_BATCH = 1000;
+    private final IndexSnapshotManager snapshots;
+    private ScheduledExecutorService refresher;
 
     public CodeSearchImpl(File indexDirectory) throws IOException {
+        this(indexDirectory, IndexSnapshotManager.DEFAULT_CACHE_BYTES);
+    }
+
+    /** Searches an index, keeping decoded types, sources and usages of about {@code cacheBytes} bytes at most. */
+    public CodeSearchImpl(File indexDirectory, long cacheBytes) throws IOException {
         Preconditions.checkNotNull(indexDirectory);
         Preconditions.checkArgument(indexDirectory.isDirectory());
-        typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDirectory));
-        sourceDb = new SourceDbImpl(IndexPathUtils.getSourceDbPath(indexDirectory));
-        usageDb = new UsageDbImpl(IndexPathUtils.getUsageDbPath(indexDirectory));
-        mixer = new SearchMixer(typeDb, sourceDb);
+        snapshots = new IndexSnapshotManager(indexDirectory, cacheBytes);
+    }
+
+    /** Makes new commits of the index visible to later requests. Returns whether anything changed. */
+    public boolean refresh() throws IOException {
+        return snapshots.maybeRefresh();
+    }
+
+    /** Calls {@link #refresh()} periodically on a background thread until closed. */
+    public synchronized void startRefreshing(long intervalMillis) {
+        Preconditions.checkArgument(intervalMillis > 0);
+        Preconditions.checkState(refresher == null, "Already refreshing");
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("polaris-index-refresher-%d")
+                .setDaemon(true)
+                .build());
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    // E.g. the index is being rebuilt from scratch. Keeps serving the old one.
+                    LOG.warn("Failed to refresh index", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public SearchResponse search(RpcController controller, SearchRequest req) {
         SearchResponse.Builder resp = SearchResponse.newBuilder();
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
         try {
             StopWatch stopWatch = new StopWatch();
             stopWatch.start();
@@ -80,13 +127,17 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
             }
             int from = req.hasRankFrom() ? req.getRankFrom() : 0;
             int to = req.hasRankTo() ? req.getRankTo() : 20;
-            List<Hit> hits = mixer.search(req.getQuery(), to, true);
-            resp.addAllHits(hits.subList(from, Math.min(hits.size(), to)));
+            SearchMixer.Result result = snapshot.getMixer().search(req.getQuery(), to, true);
+            List<Hit> hits = result.getHits();
+            resp.addAllHits(hits.subList(Math.min(from, hits.size()), Math.min(hits.size(), to)));
             resp.setCount(hits.size());
+            resp.setPartial(result.isPartial());
             resp.setLatency(stopWatch.getTime());
         } catch (Exception e) {
             LOG.warn("Caught exception", e);
             resp.setStatus(StatusCode.UNKNOWN_ERROR);
+        } finally {
+            snapshots.release(snapshot);
         }
         return resp.build();
     }
@@ -94,12 +145,13 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
     @Override
     public SourceResponse source(RpcController controller, SourceRequest req) {
         SourceResponse.Builder resp = SourceResponse.newBuilder();
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
         try {
             SourceFile source;
             if (req.hasFileId()) {
-                source = sourceDb.querySourceById(req.getFileId());
+                source = snapshot.getSourceDb().querySourceById(req.getFileId());
             } else if (req.hasProjectName() && req.hasFileName()) {
-                source = sourceDb.querySourceByPath(req.getProjectName(), req.getFileName());
+                source = snapshot.getSourceDb().querySourceByPath(req.getProjectName(), req.getFileName());
             } else {
                 resp.setStatus(StatusCode.MISSING_FIELDS);
                 return resp.build();
@@ -110,10 +162,14 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
             }
             resp.setStatus(StatusCode.OK);
             resp.setSource(source);
-            resp.addAllUsages(usageDb.findUsagesInFile(req.getFileId()));
+            // Usages in a duplicate file are indexed under its original.
+            long originalFileId = snapshot.getSourceDb().findOriginalFileId(source.getHandle().getId());
+            resp.addAllUsages(snapshot.getUsageDb().findUsagesInFile(originalFileId));
         } catch (Exception e) {
             LOG.warn("Caught exception", e);
             resp.setStatus(StatusCode.UNKNOWN_ERROR);
+        } finally {
+            snapshots.release(snapshot);
         }
         return resp.build();
     }
@@ -121,18 +177,31 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
     @Override
     public CompleteResponse complete(RpcController controller, CompleteRequest req) {
         CompleteResponse.Builder resp = CompleteResponse.newBuilder();
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
         try {
             if (!req.hasQuery()) {
                 resp.setStatus(StatusCode.MISSING_FIELDS);
                 return resp.build();
             }
-            int n = req.hasLimit() ? req.getLimit() : 20;
-            List<Hit> hits = mixer.search(req.getQuery(), n, false);
+            int n = req.hasLimit() ? req.getLimit() : DEFAULT_COMPLETIONS;
+            if (n <= 0 || n > MAX_COMPLETIONS) {
+                n = MAX_COMPLETIONS;
+            }
+            Suggester suggester = snapshot.getSuggester();
+            if (suggester != null) {
+                resp.setStatus(StatusCode.OK);
+                resp.addAllHits(suggester.lookup(req.getQuery(), n));
+                return resp.build();
+            }
+            SearchMixer.Result result = snapshot.getMixer().search(req.getQuery(), n, false);
             resp.setStatus(StatusCode.OK);
-            resp.addAllHits(hits);
+            resp.addAllHits(result.getHits());
+            resp.setPartial(result.isPartial());
         } catch (Exception e) {
             LOG.warn("Caught exception", e);
             resp.setStatus(StatusCode.UNKNOWN_ERROR);
+        } finally {
+            snapshots.release(snapshot);
         }
         return resp.build();
     }
@@ -140,12 +209,14 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
     @Override
     public ListFilesResponse listFiles(RpcController controller, ListFilesRequest req) {
         ListFilesResponse.Builder resp = ListFilesResponse.newBuilder();
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
         try {
             if (!req.hasProjectName() || !req.hasDirectoryName()) {
                 resp.setStatus(StatusCode.MISSING_FIELDS);
                 return resp.build();
             }
-            List<ParserProtos.FileHandle> children = sourceDb.listDirectory(req.getProjectName(), req.getDirectoryName());
+            List<ParserProtos.FileHandle> children = snapshot.getSourceDb().listDirectory(
+                    req.getProjectName(), req.getDirectoryName());
             if (children == null) {
                 resp.setStatus(StatusCode.FILE_NOT_FOUND);
                 return resp.build();
@@ -155,6 +226,8 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
         } catch (Exception e) {
             LOG.error("Caught exception", e);
             resp.setStatus(StatusCode.UNKNOWN_ERROR);
+        } finally {
+            snapshots.release(snapshot);
         }
         return resp.build();
     }
@@ -162,13 +235,14 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
     @Override
     public GetTypeResponse getType(RpcController controller, GetTypeRequest req) {
         GetTypeResponse.Builder resp = GetTypeResponse.newBuilder();
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
         try {
             List<ClassType> classes;
             if (req.hasTypeId()) {
-                ClassType clazz = typeDb.getTypeById(req.getTypeId());
+                ClassType clazz = snapshot.getTypeDb().getTypeById(req.getTypeId());
                 classes = (clazz == null ? ImmutableList.<ClassType>of() : ImmutableList.of(clazz));
             } else if (req.hasTypeName()) {
-                classes = typeDb.getTypeByName(
+                classes = snapshot.getTypeDb().getTypeByName(
                         req.getTypeName(),
                         req.hasProject() ? req.getProject() : null,
                         2);
@@ -190,19 +264,23 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
             LOG.error("Caught exception", e);
             resp.setStatus(StatusCode.UNKNOWN_ERROR);
             return resp.build();
+        } finally {
+            snapshots.release(snapshot);
         }
     }
 
     @Override
     public ListTypesInFileResponse listTypesInFile(RpcController controller, ListTypesInFileRequest req) {
         ListTypesInFileResponse.Builder resp = ListTypesInFileResponse.newBuilder();
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
         try {
             if (!req.hasFileId()) {
                 resp.setStatus(StatusCode.MISSING_FIELDS);
                 return resp.build();
             }
             int limit = req.hasLimit() ? req.getLimit() : 20;
-            List<ClassType> classTypes = typeDb.getTypesInFile(req.getFileId(), limit);
+            long originalFileId = snapshot.getSourceDb().findOriginalFileId(req.getFileId());
+            List<ClassType> classTypes = snapshot.getTypeDb().getTypesInFile(originalFileId, limit);
             resp.setStatus(StatusCode.OK);
             resp.addAllClassTypes(classTypes);
             return resp.build();
@@ -210,36 +288,79 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
             LOG.error("Caught exception", e);
             resp.setStatus(StatusCode.UNKNOWN_ERROR);
             return resp.build();
+        } finally {
+            snapshots.release(snapshot);
         }
     }
 
     @Override
     public ListUsagesResponse listUsages(RpcController controller, ListUsagesRequest req) {
         ListUsagesResponse.Builder resp = ListUsagesResponse.newBuilder();
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
         try {
             if (!req.hasKind() || !req.hasId()) {
                 resp.setStatus(StatusCode.MISSING_FIELDS);
                 return resp.build();
             }
+            int limit = req.hasLimit() ? req.getLimit() : DEFAULT_USAGES_PER_PAGE;
+            if (limit <= 0 || limit > MAX_USAGES_PER_PAGE) {
+                limit = MAX_USAGES_PER_PAGE;
+            }
+            UsageDb usageDb = snapshot.getUsageDb();
+            UsagePage page;
+            try {
+                page = usageDb.query(req.getKind(), req.getId(), Strings.emptyToNull(req.getCursor()), limit);
+            } catch (IllegalArgumentException e) {
+                resp.setStatus(StatusCode.INVALID_CURSOR);
+                return resp.build();
+            }
             resp.setStatus(StatusCode.OK);
-            resp.addAllUsages(usageDb.query(req.getKind(), req.getId()));
+            resp.addAllUsages(page.getUsages());
+            if (page.getNextCursor() != null) {
+                resp.setNextCursor(page.getNextCursor());
+            }
+            if (Strings.isNullOrEmpty(req.getCursor())) {
+                // Counting visits all usages, so only the first page does it.
+                long count = 0;
+                for (Map.Entry<String, Long> entry
+                        : usageDb.countUsagesByProject(req.getKind(), req.getId()).entrySet()) {
+                    resp.addProjectCounts(UsageCount.newBuilder()
+                            .setProject(entry.getKey())
+                            .setCount(entry.getValue()));
+                    count += entry.getValue();
+                }
+                resp.setCount(count);
+            }
+            Set<Long> countedFiles = Sets.newHashSet();
+            for (Usage usage : page.getUsages()) {
+                FileHandle file = usage.getJumpTarget().getFile();
+                if (countedFiles.add(file.getId())) {
+                    resp.addFileCounts(UsageCount.newBuilder()
+                            .setProject(file.getProject())
+                            .setFile(file)
+                            .setCount(usageDb.countUsagesInFile(req.getKind(), req.getId(), file.getId())));
+                }
+            }
             return resp.build();
         } catch (Exception e) {
             LOG.error("Caught exception", e);
             resp.setStatus(StatusCode.UNKNOWN_ERROR);
             return resp.build();
+        } finally {
+            snapshots.release(snapshot);
         }
     }
 
     @Override
     public GetFieldResponse getField(RpcController controller, GetFieldRequest req) {
         GetFieldResponse.Builder resp = GetFieldResponse.newBuilder();
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
         try {
             if (!req.hasFieldId()) {
                 resp.setStatus(StatusCode.MISSING_FIELDS);
                 return resp.build();
             }
-            Variable field = typeDb.getFieldById(req.getFieldId());
+            Variable field = snapshot.getTypeDb().getFieldById(req.getFieldId());
             if (field == null) {
                 resp.setStatus(StatusCode.FILE_NOT_FOUND);
                 return resp.build();
@@ -251,18 +372,21 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
             LOG.error("Caught exception", e);
             resp.setStatus(StatusCode.UNKNOWN_ERROR);
             return resp.build();
+        } finally {
+            snapshots.release(snapshot);
         }
     }
 
     @Override
     public GetMethodResponse getMethod(RpcController controller, GetMethodRequest req) {
         GetMethodResponse.Builder resp = GetMethodResponse.newBuilder();
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
         try {
             if (!req.hasMethodId()) {
                 resp.setStatus(StatusCode.MISSING_FIELDS);
                 return resp.build();
             }
-            Method method = typeDb.getMethodById(req.getMethodId());
+            Method method = snapshot.getTypeDb().getMethodById(req.getMethodId());
             if (method == null) {
                 resp.setStatus(StatusCode.FILE_NOT_FOUND);
                 return resp.build();
@@ -274,18 +398,21 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
             LOG.error("Caught exception", e);
             resp.setStatus(StatusCode.UNKNOWN_ERROR);
             return resp.build();
+        } finally {
+            snapshots.release(snapshot);
         }
     }
 
     @Override
     public GetFileHandleResponse getFileHandle(RpcController controller, GetFileHandleRequest req) {
         GetFileHandleResponse.Builder resp = GetFileHandleResponse.newBuilder();
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
         try {
             if (!req.hasProject() || !req.hasPath()) {
                 resp.setStatus(StatusCode.MISSING_FIELDS);
                 return resp.build();
             }
-            FileHandle fileHandle = sourceDb.getFileHandle(req.getProject(), req.getPath());
+            FileHandle fileHandle = snapshot.getSourceDb().getFileHandle(req.getProject(), req.getPath());
             if (fileHandle == null) {
                 resp.setStatus(StatusCode.FILE_NOT_FOUND);
                 return resp.build();
@@ -297,13 +424,141 @@ public class CodeSearchImpl implements CodeSearch.BlockingInterface, Closeable {
             LOG.error("Caught exception", e);
             resp.setStatus(StatusCode.UNKNOWN_ERROR);
             return resp.build();
+        } finally {
+            snapshots.release(snapshot);
+        }
+    }
+
+    @Override
+    public GetTypesResponse getTypes(RpcController controller, GetTypesRequest req) {
+        GetTypesResponse.Builder resp = GetTypesResponse.newBuilder();
+        if (req.getTypeIdsCount() > MAX_IDS_PER_BATCH) {
+            resp.setStatus(StatusCode.TOO_MANY_IDS);
+            return resp.build();
+        }
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
+        try {
+            for (ClassType classType : snapshot.getTypeDb().getTypesByIds(req.getTypeIdsList())) {
+                GetTypeResponse.Builder type = resp.addTypesBuilder();
+                if (classType == null) {
+                    type.setStatus(StatusCode.FILE_NOT_FOUND);
+                } else {
+                    type.setStatus(StatusCode.OK);
+                    type.setClassType(classType);
+                }
+            }
+            resp.setStatus(StatusCode.OK);
+            return resp.build();
+        } catch (Exception e) {
+            LOG.error("Caught exception", e);
+            return GetTypesResponse.newBuilder().setStatus(StatusCode.UNKNOWN_ERROR).build();
+        } finally {
+            snapshots.release(snapshot);
+        }
+    }
+
+    @Override
+    public GetFieldsResponse getFields(RpcController controller, GetFieldsRequest req) {
+        GetFieldsResponse.Builder resp = GetFieldsResponse.newBuilder();
+        if (req.getFieldIdsCount() > MAX_IDS_PER_BATCH) {
+            resp.setStatus(StatusCode.TOO_MANY_IDS);
+            return resp.build();
+        }
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
+        try {
+            for (Variable field : snapshot.getTypeDb().getFieldsByIds(req.getFieldIdsList())) {
+                GetFieldResponse.Builder entry = resp.addFieldsBuilder();
+                if (field == null) {
+                    entry.setStatus(StatusCode.FILE_NOT_FOUND);
+                } else {
+                    entry.setStatus(StatusCode.OK);
+                    entry.setField(field);
+                }
+            }
+            resp.setStatus(StatusCode.OK);
+            return resp.build();
+        } catch (Exception e) {
+            LOG.error("Caught exception", e);
+            return GetFieldsResponse.newBuilder().setStatus(StatusCode.UNKNOWN_ERROR).build();
+        } finally {
+            snapshots.release(snapshot);
+        }
+    }
+
+    @Override
+    public GetMethodsResponse getMethods(RpcController controller, GetMethodsRequest req) {
+        GetMethodsResponse.Builder resp = GetMethodsResponse.newBuilder();
+        if (req.getMethodIdsCount() > MAX_IDS_PER_BATCH) {
+            resp.setStatus(StatusCode.TOO_MANY_IDS);
+            return resp.build();
+        }
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
+        try {
+            for (Method method : snapshot.getTypeDb().getMethodsByIds(req.getMethodIdsList())) {
+                GetMethodResponse.Builder entry = resp.addMethodsBuilder();
+                if (method == null) {
+                    entry.setStatus(StatusCode.FILE_NOT_FOUND);
+                } else {
+                    entry.setStatus(StatusCode.OK);
+                    entry.setMethod(method);
+                }
+            }
+            resp.setStatus(StatusCode.OK);
+            return resp.build();
+        } catch (Exception e) {
+            LOG.error("Caught exception", e);
+            return GetMethodsResponse.newBuilder().setStatus(StatusCode.UNKNOWN_ERROR).build();
+        } finally {
+            snapshots.release(snapshot);
+        }
+    }
+
+    @Override
+    public SourcesResponse sources(RpcController controller, SourcesRequest req) {
+        SourcesResponse.Builder resp = SourcesResponse.newBuilder();
+        if (req.getFileIdsCount() > MAX_IDS_PER_BATCH) {
+            resp.setStatus(StatusCode.TOO_MANY_IDS);
+            return resp.build();
+        }
+        IndexSnapshotManager.Snapshot snapshot = snapshots.acquire();
+        try {
+            SourceDb sourceDb = snapshot.getSourceDb();
+            List<SourceFile> sources = sourceDb.querySourcesByIds(req.getFileIdsList());
+            // Usages in a duplicate file are indexed under its original.
+            List<Long> originalFileIds = Lists.newArrayList();
+            for (SourceFile source : sources) {
+                if (source != null) {
+                    originalFileIds.add(sourceDb.findOriginalFileId(source.getHandle().getId()));
+                }
+            }
+            Iterator<List<Usage>> usages = snapshot.getUsageDb().findUsagesInFiles(originalFileIds).iterator();
+            for (SourceFile source : sources) {
+                SourceResponse.Builder entry = resp.addSourcesBuilder();
+                if (source == null) {
+                    entry.setStatus(StatusCode.FILE_NOT_FOUND);
+                } else {
+                    entry.setStatus(StatusCode.OK);
+                    entry.setSource(source);
+                    entry.addAllUsages(usages.next());
+                }
+            }
+            resp.setStatus(StatusCode.OK);
+            return resp.build();
+        } catch (Exception e) {
+            LOG.error("Caught exception", e);
+            return SourcesResponse.newBuilder().setStatus(StatusCode.UNKNOWN_ERROR).build();
+        } finally {
+            snapshots.release(snapshot);
         }
     }
 
     @Override
     public void close() throws IOException {
-        IOUtils.closeQuietly(typeDb);
-        IOUtils.closeQuietly(sourceDb);
-        IOUtils.closeQuietly(usageDb);
+        synchronized (this) {
+            if (refresher != null) {
+                refresher.shutdownNow();
+            }
+        }
+        snapshots.close();
     }
 }
@@ -0,0 +1,63 @@
+package com.codingstory.polaris.search;
+
+import com.google.common.base.Preconditions;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+
+import java.util.Arrays;
+
+/**
+ * Collects ids of matching documents in index order, up to a limit. Unlike top-N collection, it neither scores hits
+ * nor keeps a priority queue sized to the limit, so it is the cheaper choice when hits need no ranking.
+ */
+public class DocIdCollector extends Collector {
+    private final int limit;
+    private int[] docIds = new int[16];
+    private int size = 0;
+    private int docBase;
+
+    public DocIdCollector() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public DocIdCollector(int limit) {
+        Preconditions.checkArgument(limit >= 0);
+        this.limit = limit;
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) {
+        // Scores are not needed.
+    }
+
+    @Override
+    public void collect(int doc) {
+        if (size == limit) {
+            throw new CollectionTerminatedException(); // skips the rest of this segment
+        }
+        if (size == docIds.length) {
+            docIds = Arrays.copyOf(docIds, Math.min(size * 2, Math.max(limit, size + 1)));
+        }
+        docIds[size++] = docBase + doc;
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) {
+        if (size == limit) {
+            throw new CollectionTerminatedException();
+        }
+        docBase = context.docBase;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return false;
+    }
+
+    /** Returns ids of collected documents in ascending order. */
+    public int[] getDocIds() {
+        return Arrays.copyOf(docIds, size);
+    }
+}
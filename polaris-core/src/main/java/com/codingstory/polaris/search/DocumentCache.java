@@ -0,0 +1,175 @@
+package com.codingstory.polaris.search;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.protobuf.MessageLite;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SegmentReader;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Keeps objects decoded from stored fields, such as types and source files, so that hot documents are not read and
+ * uncompressed again on every request. It is bounded by an estimate of the bytes held, and evicts the least recently
+ * used objects first. One cache can be shared by all DBs and by all readers of an index.
+ *
+ * <p>Objects are cached by segment and document, so reopening an index keeps objects of unchanged segments. Objects of
+ * a segment are dropped when the segment is closed. Deletions are not checked: callers look up live documents only.
+ */
+public class DocumentCache {
+    private static final Log LOG = LogFactory.getLog(DocumentCache.class);
+
+    /** A cache which keeps nothing. */
+    public static final DocumentCache NONE = new DocumentCache(0);
+
+    /** Estimated bytes of a cache entry besides the object. */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static class Key {
+        private final Object core; // core cache key of segment
+        private final int doc; // in segment
+        private final String kind;
+
+        private Key(Object core, int doc, String kind) {
+            this.core = core;
+            this.doc = doc;
+            this.kind = kind;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return core == other.core && doc == other.doc && kind.equals(other.kind);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(System.identityHashCode(core), doc, kind);
+        }
+    }
+
+    private final Cache<Key, MessageLite> cache; // null if disabled
+    private final Set<Object> watchedCores = Collections.newSetFromMap(
+            Collections.synchronizedMap(new WeakHashMap<Object, Boolean>()));
+    private final SegmentReader.CoreClosedListener invalidator = new SegmentReader.CoreClosedListener() {
+        @Override
+        public void onClose(SegmentReader reader) {
+            invalidateSegment(reader.getCoreCacheKey());
+        }
+    };
+
+    /** Creates a cache holding objects of about {@code maxBytes} bytes at most. 0 disables caching. */
+    public DocumentCache(long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0);
+        if (maxBytes == 0) {
+            cache = null;
+            return;
+        }
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, MessageLite>() {
+                    @Override
+                    public int weigh(Key key, MessageLite value) {
+                        // Strings take two bytes a char in memory, and most of the bytes are strings.
+                        return (int) Math.min(Integer.MAX_VALUE, 2L * value.getSerializedSize() + ENTRY_OVERHEAD);
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the object of {@code kind} decoded from a document, calling {@code loader} if it is not cached. Objects
+     * of different kinds from one document are cached apart.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends MessageLite> T get(IndexReader reader, int docId, String kind, Callable<T> loader)
+            throws IOException {
+        Preconditions.checkNotNull(reader);
+        Preconditions.checkNotNull(kind);
+        Preconditions.checkNotNull(loader);
+        if (cache == null) {
+            return load(loader);
+        }
+        List<AtomicReaderContext> leaves = reader.leaves();
+        AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        Object core = leaf.reader().getCoreCacheKey();
+        watch(leaf.reader(), core);
+        try {
+            return (T) cache.get(new Key(core, docId - leaf.docBase, kind), loader);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /** Returns hit and miss counts since the cache was created. */
+    public CacheStats getStats() {
+        return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    /** Returns the number of cached objects. */
+    public long size() {
+        return cache != null ? cache.size() : 0;
+    }
+
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    private void watch(AtomicReader reader, Object core) {
+        if (watchedCores.add(core)) {
+            if (reader instanceof SegmentReader) {
+                ((SegmentReader) reader).addCoreClosedListener(invalidator);
+            } else {
+                LOG.debug("Not a segment reader: " + reader + ". Its objects are kept until evicted.");
+            }
+        }
+    }
+
+    private void invalidateSegment(Object core) {
+        watchedCores.remove(core);
+        for (Iterator<Key> it = cache.asMap().keySet().iterator(); it.hasNext(); ) {
+            if (it.next().core == core) {
+                it.remove();
+            }
+        }
+    }
+
+    private static <T> T load(Callable<T> loader) throws IOException {
+        try {
+            return loader.call();
+        } catch (Exception e) {
+            Throwables.propagateIfInstanceOf(e, IOException.class);
+            throw Throwables.propagate(e);
+        }
+    }
+}
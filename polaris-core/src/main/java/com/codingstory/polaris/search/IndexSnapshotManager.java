@@ -0,0 +1,280 @@
+package com.codingstory.polaris.search;
+
+import com.codingstory.polaris.indexing.IndexPathUtils;
+import com.codingstory.polaris.sourcedb.SourceDb;
+import com.codingstory.polaris.sourcedb.SourceDbImpl;
+import com.codingstory.polaris.typedb.TypeDb;
+import com.codingstory.polaris.typedb.TypeDbImpl;
+import com.codingstory.polaris.usagedb.UsageDb;
+import com.codingstory.polaris.usagedb.UsageDbImpl;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps TypeDb, SourceDb and UsageDb of an index directory open, and switches all three to new commits at once, like
+ * Lucene's {@code SearcherManager}. A request should {@link #acquire()} a snapshot, use it only, and
+ * {@link #release(Snapshot)} it, so that it sees one consistent index even if {@link #maybeRefresh()} runs meanwhile.
+ * A snapshot is closed when it is replaced and no request uses it. Segments not changed by a new commit are shared
+ * with the previous snapshot, so refreshing does not load them again.
+ *
+ * <p>A snapshot also holds the {@link Suggester} of its readers, if every segment has one. Suggesters of unchanged
+ * segments are shared, and a refresh tries again if some segment had none, so a suggester built after the DBs were
+ * committed is picked up by the next refresh.
+ *
+ * <p>All snapshots share one {@link DocumentCache}, which keeps decoded objects of unchanged segments across
+ * refreshes, and one bounded executor, which runs legs of searches in parallel. When the executor is busy, a search
+ * runs its legs itself.
+ */
+public class IndexSnapshotManager implements Closeable {
+    private static final Log LOG = LogFactory.getLog(IndexSnapshotManager.class);
+
+    /** Readers and DBs of the index at some point. */
+    public static class Snapshot {
+        private final DirectoryReader typeReader;
+        private final DirectoryReader sourceReader;
+        private final DirectoryReader usageReader;
+        private final TypeDb typeDb;
+        private final SourceDb sourceDb;
+        private final UsageDb usageDb;
+        private final SearchMixer mixer;
+        private final Suggester suggester;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        private Snapshot(DirectoryReader typeReader, DirectoryReader sourceReader, DirectoryReader usageReader,
+                Suggester suggester, DocumentCache cache, ExecutorService searchExecutor,
+                long legTimeoutMillis) throws IOException {
+            this.typeReader = typeReader;
+            this.sourceReader = sourceReader;
+            this.usageReader = usageReader;
+            this.suggester = suggester;
+            this.typeDb = new TypeDbImpl(typeReader, cache);
+            this.sourceDb = new SourceDbImpl(sourceReader, cache);
+            this.usageDb = new UsageDbImpl(usageReader, cache);
+            this.mixer = new SearchMixer(typeDb, sourceDb, searchExecutor, legTimeoutMillis, this);
+        }
+
+        public TypeDb getTypeDb() {
+            return typeDb;
+        }
+
+        public SourceDb getSourceDb() {
+            return sourceDb;
+        }
+
+        public UsageDb getUsageDb() {
+            return usageDb;
+        }
+
+        public SearchMixer getMixer() {
+            return mixer;
+        }
+
+        /** Returns the suggester of the index, or {@code null} if the index was built without one. */
+        public Suggester getSuggester() {
+            return suggester;
+        }
+
+        boolean tryIncRef() {
+            int n;
+            do {
+                n = refCount.get();
+                if (n <= 0) {
+                    return false;
+                }
+            } while (!refCount.compareAndSet(n, n + 1));
+            return true;
+        }
+
+        void decRef() {
+            if (refCount.decrementAndGet() == 0) {
+                IOUtils.closeQuietly(typeDb);
+                IOUtils.closeQuietly(sourceDb);
+                IOUtils.closeQuietly(usageDb);
+            }
+        }
+    }
+
+    public static final long DEFAULT_CACHE_BYTES = 128L << 20;
+    public static final long DEFAULT_LEG_TIMEOUT_MILLIS = 2000;
+    private static final int SEARCH_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+    private static final int SEARCH_QUEUE_SIZE = 256;
+
+    private volatile Snapshot current;
+    private final Object refreshLock = new Object();
+    private final File indexDirectory;
+    private final DocumentCache cache;
+    private final ExecutorService searchExecutor;
+    private final long legTimeoutMillis;
+
+    public IndexSnapshotManager(File indexDirectory) throws IOException {
+        this(indexDirectory, DEFAULT_CACHE_BYTES);
+    }
+
+    /** Opens an index, keeping decoded objects of about {@code cacheBytes} bytes at most. 0 disables caching. */
+    public IndexSnapshotManager(File indexDirectory, long cacheBytes) throws IOException {
+        this(indexDirectory, cacheBytes, DEFAULT_LEG_TIMEOUT_MILLIS);
+    }
+
+    /** Like {@link #IndexSnapshotManager(File, long)}, and gives the legs of a search {@code legTimeoutMillis}. */
+    public IndexSnapshotManager(File indexDirectory, long cacheBytes, long legTimeoutMillis) throws IOException {
+        Preconditions.checkNotNull(indexDirectory);
+        Preconditions.checkArgument(legTimeoutMillis > 0);
+        cache = new DocumentCache(cacheBytes);
+        this.indexDirectory = indexDirectory;
+        this.legTimeoutMillis = legTimeoutMillis;
+        searchExecutor = new ThreadPoolExecutor(SEARCH_THREADS, SEARCH_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(SEARCH_QUEUE_SIZE),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("polaris-search-%d")
+                        .setDaemon(true)
+                        .build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        DirectoryReader typeReader = null;
+        DirectoryReader sourceReader = null;
+        DirectoryReader usageReader = null;
+        try {
+            typeReader = DirectoryReader.open(FSDirectory.open(IndexPathUtils.getTypeDbPath(indexDirectory)));
+            sourceReader = DirectoryReader.open(FSDirectory.open(IndexPathUtils.getSourceDbPath(indexDirectory)));
+            usageReader = DirectoryReader.open(FSDirectory.open(IndexPathUtils.getUsageDbPath(indexDirectory)));
+            Suggester suggester = loadSuggester(typeReader, sourceReader);
+            current = new Snapshot(typeReader, sourceReader, usageReader, suggester, cache, searchExecutor,
+                    legTimeoutMillis);
+        } finally {
+            if (current == null) {
+                searchExecutor.shutdown();
+                IOUtils.closeQuietly(typeReader);
+                IOUtils.closeQuietly(sourceReader);
+                IOUtils.closeQuietly(usageReader);
+            }
+        }
+    }
+
+    /** Returns the latest snapshot. It must be passed to {@link #release(Snapshot)} after use. */
+    public Snapshot acquire() {
+        while (true) {
+            Snapshot snapshot = current;
+            Preconditions.checkState(snapshot != null, "Already closed");
+            if (snapshot.tryIncRef()) {
+                return snapshot;
+            }
+            // Replaced and closed in between. Try the new one.
+        }
+    }
+
+    public void release(Snapshot snapshot) {
+        Preconditions.checkNotNull(snapshot);
+        snapshot.decRef();
+    }
+
+    /**
+     * Opens new commits of the DBs if there are any, and makes them visible to later {@link #acquire()}. Returns
+     * whether anything changed. A DB which has not changed keeps its reader, and the suggester is loaded again if the
+     * DBs changed or the old snapshot had none.
+     */
+    public boolean maybeRefresh() throws IOException {
+        synchronized (refreshLock) {
+            Snapshot old = current;
+            Preconditions.checkState(old != null, "Already closed");
+            StopWatch stopWatch = new StopWatch();
+            stopWatch.start();
+            DirectoryReader typeReader = null;
+            DirectoryReader sourceReader = null;
+            DirectoryReader usageReader = null;
+            Snapshot snapshot = null;
+            try {
+                typeReader = reopen(old.typeReader);
+                sourceReader = reopen(old.sourceReader);
+                usageReader = reopen(old.usageReader);
+                boolean readersChanged = typeReader != old.typeReader || sourceReader != old.sourceReader
+                        || usageReader != old.usageReader;
+                Suggester suggester = old.suggester;
+                if (readersChanged || suggester == null) {
+                    suggester = loadSuggester(typeReader, sourceReader);
+                }
+                if (!readersChanged && suggester == old.suggester) {
+                    return false;
+                }
+                snapshot = new Snapshot(typeReader, sourceReader, usageReader, suggester, cache, searchExecutor,
+                        legTimeoutMillis);
+            } finally {
+                if (snapshot == null) {
+                    // Gives up references taken by reopen().
+                    decRefQuietly(typeReader);
+                    decRefQuietly(sourceReader);
+                    decRefQuietly(usageReader);
+                }
+            }
+            current = snapshot;
+            old.decRef();
+            LOG.info("Refreshed index in " + stopWatch.getTime() + " ms");
+            LOG.info("Document cache: " + cache.size() + " objects, " + cache.getStats());
+            return true;
+        }
+    }
+
+    public DocumentCache getDocumentCache() {
+        return cache;
+    }
+
+    /** Loads the suggester of readers, or returns {@code null} if some segment has none or it cannot be read. */
+    private Suggester loadSuggester(DirectoryReader typeReader, DirectoryReader sourceReader) {
+        try {
+            Suggester suggester = Suggester.load(indexDirectory, typeReader, sourceReader);
+            if (suggester == null) {
+                LOG.warn("Index has no suggester. Completing by searching the DBs.");
+            }
+            return suggester;
+        } catch (IOException e) {
+            // E.g. being replaced. Searches the DBs until the next refresh.
+            LOG.warn("Failed to load suggester", e);
+            return null;
+        }
+    }
+
+    /** Returns a new reference to either a reader of the latest commit, or the old reader if nothing changed. */
+    private static DirectoryReader reopen(DirectoryReader reader) throws IOException {
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+        if (newReader != null) {
+            return newReader;
+        }
+        reader.incRef();
+        return reader;
+    }
+
+    private static void decRefQuietly(DirectoryReader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.decRef();
+        } catch (IOException e) {
+            LOG.warn("Failed to close index reader", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (refreshLock) {
+            if (current != null) {
+                current.decRef();
+                current = null;
+                searchExecutor.shutdown(); // lets late legs finish
+            }
+        }
+    }
+}
@@ -1,37 +1,87 @@
 package com.codingstory.polaris.search;
 
-import com.codingstory.polaris.parser.ParserProtos.ClassType;
-import com.codingstory.polaris.parser.ParserProtos.SourceFile;
-import com.codingstory.polaris.parser.ParserProtos.Span;
+import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
 import com.codingstory.polaris.search.SearchProtos.Hit;
 import com.codingstory.polaris.sourcedb.SourceDb;
 import com.codingstory.polaris.typedb.TypeDb;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.primitives.Doubles;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Mixes and re-ranks searchByType results from {@link com.codingstory.polaris.typedb.TypeDb}
  * and {@link com.codingstory.polaris.sourcedb.SourceDb}.
+ *
+ * <p>Given an executor, the TypeDb and SourceDb legs of a search run concurrently, and then summaries of type hits
+ * are read in one batch. All legs share one latency budget, counted from the start of the search. A leg which
+ * exceeds it is left running, and the search returns what it has, marked as partial: hits of a late leg are missing,
+ * and type hits have no summaries if the batch is late.
  */
 public class SearchMixer {
     private static final Log LOG = LogFactory.getLog(SearchMixer.class);
+
+    /** Hits of a search, and whether some of them are missing since a leg was late. */
+    public static class Result {
+        private final List<Hit> hits;
+        private final boolean partial;
+
+        private Result(List<Hit> hits, boolean partial) {
+            this.hits = hits;
+            this.partial = partial;
+        }
+
+        public List<Hit> getHits() {
+            return hits;
+        }
+
+        public boolean isPartial() {
+            return partial;
+        }
+    }
+
     private final TypeDb typeDb;
     private final SourceDb sourceDb;
+    private final ExecutorService executor;
+    private final long legTimeoutMillis;
+    private final IndexSnapshotManager.Snapshot owner; // null if the DBs outlive all searches
 
+    /** Runs all legs of a search in the calling thread, with no latency budget. */
     public SearchMixer(TypeDb typeDb, SourceDb sourceDb) {
+        this(typeDb, sourceDb, MoreExecutors.sameThreadExecutor(), Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Runs legs of a search on {@code executor}, all within {@code legTimeoutMillis} of the start of the search. If
+     * {@code owner} is given, each leg holds a reference to it, so that the DBs stay open for a leg which outlives its
+     * search.
+     */
+    SearchMixer(TypeDb typeDb, SourceDb sourceDb, ExecutorService executor, long legTimeoutMillis,
+            IndexSnapshotManager.Snapshot owner) {
+        Preconditions.checkArgument(legTimeoutMillis > 0);
         this.typeDb = Preconditions.checkNotNull(typeDb);
         this.sourceDb = Preconditions.checkNotNull(sourceDb);
+        this.executor = Preconditions.checkNotNull(executor);
+        this.legTimeoutMillis = legTimeoutMillis;
+        this.owner = owner;
     }
 
-    public List<Hit> search(String query, int n, boolean search) throws IOException {
+    public Result search(final String query, final int n, boolean search) throws IOException {
         Preconditions.checkNotNull(query);
         Preconditions.checkArgument(n >= 0);
         if (search) {
@@ -40,15 +90,40 @@ public class SearchMixer {
             LOG.info("Complete query: " + query);
         }
         // TODO: Need to understand query
+        long deadline = deadlineOf(System.currentTimeMillis());
+        Leg<List<Hit>> typeHits = submit("TypeDb", new Callable<List<Hit>>() {
+            @Override
+            public List<Hit> call() throws IOException {
+                return typeDb.query(query, n);
+            }
+        });
+        Leg<List<Hit>> sourceHits = submit("SourceDb", new Callable<List<Hit>>() {
+            @Override
+            public List<Hit> call() throws IOException {
+                return sourceDb.query(query, n);
+            }
+        });
+        boolean partial = false;
         List<Hit> hits = Lists.newArrayList();
-        hits.addAll(fillSummary(typeDb.query(query, n)));
-        hits.addAll(sourceDb.query(query, n));
+        try {
+            List<Hit> types = Lists.newArrayList(typeHits.getBefore(deadline));
+            partial |= !fillSummary(types, deadline);
+            hits.addAll(types);
+        } catch (TimeoutException e) {
+            typeHits.abandon();
+            partial = true;
+        }
+        try {
+            hits.addAll(sourceHits.getBefore(deadline));
+        } catch (TimeoutException e) {
+            sourceHits.abandon();
+            partial = true;
+        }
         sortHits(hits);
         if (hits.size() > n) {
-            return hits.subList(0, n);
-        } else {
-            return hits;
+            hits = hits.subList(0, n);
         }
+        return new Result(hits, partial);
     }
 
     private void sortHits(List<Hit> hits) {
@@ -60,31 +135,109 @@ public class SearchMixer {
         });
     }
 
-    private List<Hit> fillSummary(List<Hit> hits) throws IOException {
-        List<Hit> results = Lists.newArrayList();
+    /**
+     * Adds summaries to type hits, reading them in one batch within what is left of the search's budget. Returns
+     * false if the batch is late.
+     */
+    private boolean fillSummary(List<Hit> hits, long deadline) throws IOException {
+        if (hits.isEmpty()) {
+            return true;
+        }
+        final List<JumpTarget> jumpTargets = Lists.newArrayList();
         for (Hit hit : hits) {
-            ClassType clazz = hit.getClassType();
-            long fileId = clazz.getJumpTarget().getFile().getId();
-            SourceFile source = sourceDb.querySourceById(fileId);
-            if (source == null) {
+            jumpTargets.add(hit.getClassType().getJumpTarget());
+        }
+        Leg<List<String>> summaries = submit("Summaries", new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws IOException {
+                return sourceDb.querySummaries(jumpTargets);
+            }
+        });
+        List<String> result;
+        try {
+            result = summaries.getBefore(deadline);
+        } catch (TimeoutException e) {
+            summaries.abandon();
+            return false; // no summaries
+        }
+        for (int i = 0; i < hits.size(); i++) {
+            String summary = result.get(i);
+            if (summary == null) {
+                long fileId = jumpTargets.get(i).getFile().getId();
                 throw new AssertionError("File #" + fileId + " does not exist in SourceDb");
             }
-            results.add(hit.toBuilder()
-                    .setSummary(getSummary(source.getSource(), clazz.getJumpTarget().getSpan()))
+            hits.set(i, hits.get(i).toBuilder()
+                    .setSummary(summary)
                     .build());
         }
-        return results;
+        return true;
+    }
+
+    /**
+     * A task of a search. It holds a reference to the owner of the DBs until it finishes. A late leg is abandoned
+     * rather than cancelled: it is skipped if it has not started, and otherwise left to finish, since interrupting
+     * a read may close index files shared with other searches.
+     */
+    private class Leg<T> implements Callable<T> {
+        private final String name;
+        private final Callable<T> task;
+        private volatile boolean abandoned = false;
+        private Future<T> future;
+
+        private Leg(String name, Callable<T> task) {
+            this.name = name;
+            this.task = task;
+        }
+
+        @Override
+        public T call() throws Exception {
+            try {
+                return abandoned ? null : task.call();
+            } finally {
+                if (owner != null) {
+                    owner.decRef();
+                }
+            }
+        }
+
+        /** Returns the result, or throws {@link TimeoutException} if the leg does not finish before the deadline. */
+        public T getBefore(long deadline) throws IOException, TimeoutException {
+            try {
+                return future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Search is interrupted");
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        public void abandon() {
+            if (!abandoned) {
+                abandoned = true;
+                LOG.warn(name + " exceeded its budget of " + legTimeoutMillis + " ms. Returning partial results.");
+            }
+        }
     }
 
-    public static String getSummary(String content, Span span) {
-        String[] lines = content.split("\n");
-        int from = Math.max(span.getFrom().getLine() - 2, 0);
-        int to = Math.min(span.getFrom().getLine() + 3, lines.length);
-        StringBuilder result = new StringBuilder();
-        for (int i = from; i < to; i++) {
-            result.append(lines[i]);
-            result.append("\n");
+    private <T> Leg<T> submit(String name, Callable<T> task) {
+        Leg<T> leg = new Leg<T>(name, task);
+        if (owner != null) {
+            Preconditions.checkState(owner.tryIncRef(), "Snapshot is closed");
+        }
+        try {
+            leg.future = executor.submit(leg);
+        } catch (RuntimeException e) {
+            if (owner != null) {
+                owner.decRef(); // rejected
+            }
+            throw e;
         }
-        return result.toString();
+        return leg;
+    }
+
+    private long deadlineOf(long start) {
+        return legTimeoutMillis > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + legTimeoutMillis;
     }
 }
@@ -0,0 +1,584 @@
+package com.codingstory.polaris.search;
+
+import com.codingstory.polaris.BlobCodecs;
+import com.codingstory.polaris.indexing.IndexPathUtils;
+import com.codingstory.polaris.indexing.analysis.CamelCaseFilter;
+import com.codingstory.polaris.parser.ParserProtos.ClassType;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
+import com.codingstory.polaris.parser.TypeUtils;
+import com.codingstory.polaris.search.SearchProtos.Hit;
+import com.codingstory.polaris.sourcedb.SourceDbIndexedField;
+import com.codingstory.polaris.typedb.TypeDbIndexedField;
+import com.codingstory.polaris.typedb.TypeDbProtos.TypeData;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.CodedInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.KeywordTokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.suggest.Sort;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.Version;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Completes queries from FSTs built at index time, without touching stored documents of TypeDb or SourceDb. Keys of
+ * a type are the suffixes of its name starting at subwords (see {@link CamelCaseFilter}), including its qualified and
+ * simple names, and its acronym. Keys of a file are the suffixes of its file name. Keys are lowercase, so completion
+ * is case-insensitive. Types are ranked by {@link ClassType#getUseCount()}, and files after types.
+ *
+ * <p>There is one FST per segment of each DB, since segments never change. Indexing builds FSTs only of segments
+ * which have none, e.g. those written or merged by an incremental run, and a lookup merges the top hits of all
+ * segments, skipping deleted documents. Each input of an FST is a key, a 0 byte and a document of the segment, and
+ * its output is the cost of the document. Documents are stored as compact hits with all that the completion box
+ * shows, so a lookup decodes only the hits it returns.
+ *
+ * <p>FSTs of a segment are loaded once and shared by all readers of the segment, like {@link
+ * com.codingstory.polaris.sourcedb.DirectoryTree}.
+ */
+public class Suggester {
+    private static final Log LOG = LogFactory.getLog(Suggester.class);
+    private static final String CODEC_NAME = "PolarisSuggester";
+    private static final int VERSION = 1;
+    private static final String TYPE_DB = "typedb";
+    private static final String SOURCE_DB = "sourcedb";
+    private static final long MAX_WEIGHT = Integer.MAX_VALUE;
+    private static final int DOC_BYTES = 4;
+    private static final int COST_BYTES = 8;
+    private static final int MAX_CANDIDATES = 1 << 16;
+    private static final byte[] NO_ENTRY = new byte[0];
+    private static final Set<String> TYPE_FIELDS = ImmutableSet.of(TypeDbIndexedField.TYPE_DATA);
+
+    private static final Comparator<Long> COST_COMPARATOR = new Comparator<Long>() {
+        @Override
+        public int compare(Long left, Long right) {
+            return left.compareTo(right);
+        }
+    };
+
+    private static final Analyzer KEY_ANALYZER = new Analyzer() {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+            Tokenizer source = new KeywordTokenizer(reader);
+            TokenStream result = new CamelCaseFilter(source, true);
+            result = new LowerCaseFilter(Version.LUCENE_43, result);
+            return new TokenStreamComponents(source, result);
+        }
+    };
+
+    private static final Map<Object, Segment> CACHE = Collections.synchronizedMap(
+            new WeakHashMap<Object, Segment>()); // by core cache key of segment
+
+    /** The FST and the hits of documents of a segment. */
+    private static class Segment {
+        private static final Segment EMPTY = new Segment(null, NO_ENTRY, new int[] {0});
+
+        private final FST<Long> fst; // null if there are no keys
+        private final byte[] entries;
+        private final int[] offsets; // of entries by document, and the end
+
+        private Segment(FST<Long> fst, byte[] entries, int[] offsets) {
+            this.fst = fst;
+            this.entries = entries;
+            this.offsets = offsets;
+        }
+    }
+
+    /** A document matching a query, and its cost. */
+    private static class Candidate {
+        private final long cost;
+        private final int segment;
+        private final int doc;
+
+        private Candidate(long cost, int segment, int doc) {
+            this.cost = cost;
+            this.segment = segment;
+            this.doc = doc;
+        }
+    }
+
+    private static final Comparator<Candidate> CANDIDATE_COMPARATOR = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate left, Candidate right) {
+            return Longs.compare(left.cost, right.cost);
+        }
+    };
+
+    private final Segment[] segments; // of TypeDb, and then of SourceDb
+    private final Bits[] liveDocs;
+
+    private Suggester(Segment[] segments, Bits[] liveDocs) {
+        this.segments = segments;
+        this.liveDocs = liveDocs;
+    }
+
+    /**
+     * Builds FSTs of segments of TypeDb and SourceDb which have none, and deletes FSTs of segments which are gone.
+     * Readers which loaded them keep them in memory.
+     */
+    public static void build(File indexDir) throws IOException {
+        Preconditions.checkNotNull(indexDir);
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start();
+        int built = buildDb(indexDir, TYPE_DB, IndexPathUtils.getTypeDbPath(indexDir));
+        built += buildDb(indexDir, SOURCE_DB, IndexPathUtils.getSourceDbPath(indexDir));
+        LOG.info("Built suggester of " + built + " segment(s) in " + stopWatch.getTime() + " ms");
+    }
+
+    /**
+     * Loads the suggester of an index for readers of its TypeDb and SourceDb. Returns {@code null} if some segment
+     * has no FST, e.g. it was written after {@link #build(File)} last ran.
+     */
+    public static Suggester load(File indexDir, DirectoryReader typeReader, DirectoryReader sourceReader)
+            throws IOException {
+        Preconditions.checkNotNull(indexDir);
+        Preconditions.checkNotNull(typeReader);
+        Preconditions.checkNotNull(sourceReader);
+        List<Segment> segments = Lists.newArrayList();
+        List<Bits> liveDocs = Lists.newArrayList();
+        if (!loadDb(indexDir, TYPE_DB, typeReader, segments, liveDocs)
+                || !loadDb(indexDir, SOURCE_DB, sourceReader, segments, liveDocs)) {
+            return null;
+        }
+        return new Suggester(segments.toArray(new Segment[segments.size()]),
+                liveDocs.toArray(new Bits[liveDocs.size()]));
+    }
+
+    /** Returns at most {@code n} hits whose keys start with {@code query}, most used types first. */
+    public List<Hit> lookup(String query, int n) throws IOException {
+        Preconditions.checkNotNull(query);
+        Preconditions.checkArgument(n >= 0);
+        String prefix = query.toLowerCase(); // case-insensitive
+        if (n == 0 || prefix.indexOf('\0') != -1) {
+            return ImmutableList.of();
+        }
+        BytesRef prefixBytes = new BytesRef(prefix);
+        List<Candidate> candidates = Lists.newArrayList();
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].fst != null) {
+                complete(i, prefixBytes, n, candidates);
+            }
+        }
+        Collections.sort(candidates, CANDIDATE_COMPARATOR); // stable, so types stay before files of the same cost
+        List<Hit> hits = Lists.newArrayListWithCapacity(Math.min(n, candidates.size()));
+        for (Candidate candidate : candidates.subList(0, Math.min(n, candidates.size()))) {
+            Segment segment = segments[candidate.segment];
+            int offset = segment.offsets[candidate.doc];
+            int length = segment.offsets[candidate.doc + 1] - offset;
+            hits.add(Hit.parseFrom(CodedInputStream.newInstance(segment.entries, offset, length)));
+        }
+        return hits;
+    }
+
+    /** Adds at most {@code n} live documents of a segment with keys starting with {@code prefix}. */
+    private void complete(int segmentIndex, BytesRef prefix, int n, List<Candidate> candidates) throws IOException {
+        Segment segment = segments[segmentIndex];
+        Bits live = liveDocs[segmentIndex];
+        FST.Arc<Long> arc = new FST.Arc<Long>();
+        Long prefixCost = findPrefix(segment.fst, prefix, arc);
+        if (prefixCost == null) {
+            return;
+        }
+        // A document may match several keys, e.g. "a" matches both "arraylist" and "al" of ArrayList, and some may
+        // be deleted. Takes more candidates until there are n live documents or no more.
+        Set<Integer> found = Sets.newLinkedHashSet();
+        List<Long> costs = Lists.newArrayList();
+        for (int limit = (int) Math.min(2L * n, MAX_CANDIDATES); ; limit = Math.min(limit * 2, MAX_CANDIDATES)) {
+            Util.MinResult<Long>[] completions = Util.shortestPaths(
+                    segment.fst, new FST.Arc<Long>().copyFrom(arc), prefixCost, COST_COMPARATOR, limit, false);
+            found.clear();
+            costs.clear();
+            for (Util.MinResult<Long> completion : completions) {
+                int doc = docOf(completion.input);
+                if ((live == null || live.get(doc)) && found.add(doc)) {
+                    costs.add(completion.output);
+                    if (found.size() == n) {
+                        break;
+                    }
+                }
+            }
+            if (found.size() == n || completions.length < limit || limit == MAX_CANDIDATES) {
+                break;
+            }
+        }
+        int i = 0;
+        for (int doc : found) {
+            candidates.add(new Candidate(costs.get(i++), segmentIndex, doc));
+        }
+    }
+
+    /** Follows a prefix from the root. Returns its cost, or {@code null} if no key starts with it. */
+    private static Long findPrefix(FST<Long> fst, BytesRef prefix, FST.Arc<Long> arc) throws IOException {
+        FST.BytesReader bytesReader = fst.getBytesReader();
+        fst.getFirstArc(arc);
+        long cost = 0;
+        for (int i = prefix.offset; i < prefix.offset + prefix.length; i++) {
+            if (fst.findTargetArc(prefix.bytes[i] & 0xff, arc, arc, bytesReader) == null) {
+                return null;
+            }
+            cost += arc.output;
+        }
+        return cost;
+    }
+
+    private static int docOf(IntsRef suffix) {
+        int end = suffix.offset + suffix.length;
+        int doc = 0;
+        for (int i = end - DOC_BYTES; i < end; i++) {
+            doc = (doc << 8) | suffix.ints[i];
+        }
+        return doc;
+    }
+
+    private static boolean loadDb(File indexDir, String db, DirectoryReader reader, List<Segment> segments,
+            List<Bits> liveDocs) throws IOException {
+        for (AtomicReaderContext leaf : reader.leaves()) {
+            AtomicReader leafReader = leaf.reader();
+            Object key = leafReader.getCoreCacheKey();
+            Segment segment = CACHE.get(key);
+            if (segment == null) {
+                if (leafReader.maxDoc() == 0) {
+                    segment = Segment.EMPTY;
+                } else {
+                    File path = pathOf(indexDir, db, leafReader);
+                    segment = path == null ? null : loadSegment(path, leafReader.maxDoc());
+                    if (segment == null) {
+                        return false;
+                    }
+                }
+                // Two threads may load the same segment at once. Either result is fine.
+                CACHE.put(key, segment);
+            }
+            segments.add(segment);
+            liveDocs.add(leafReader.getLiveDocs());
+        }
+        return true;
+    }
+
+    /** Loads the FST of a segment, or returns {@code null} if there is none for a segment of {@code maxDoc}. */
+    private static Segment loadSegment(File path, int maxDoc) throws IOException {
+        if (!path.exists()) {
+            return null;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(path));
+        try {
+            DataInput input = new InputStreamDataInput(in);
+            CodecUtil.checkHeader(input, CODEC_NAME, VERSION, VERSION);
+            if (input.readVInt() != maxDoc) {
+                LOG.warn("Suggester " + path + " is of another segment");
+                return null;
+            }
+            int[] offsets = new int[maxDoc + 1];
+            byte[] entries = new byte[input.readVInt()];
+            int offset = 0;
+            for (int doc = 0; doc < maxDoc; doc++) {
+                offsets[doc] = offset;
+                int length = input.readVInt();
+                input.readBytes(entries, offset, length);
+                offset += length;
+            }
+            offsets[maxDoc] = offset;
+            if (offset != entries.length) {
+                throw new IOException("Corrupted suggester: " + path);
+            }
+            FST<Long> fst = null;
+            if (input.readByte() != 0) {
+                fst = new FST<Long>(input, PositiveIntOutputs.getSingleton(true));
+            }
+            return new Segment(fst, entries, offsets);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /** Builds FSTs of segments of a DB which have none. Returns how many are built. */
+    private static int buildDb(File indexDir, String db, File dbPath) throws IOException {
+        Directory dir = FSDirectory.open(dbPath);
+        if (!DirectoryReader.indexExists(dir)) {
+            return 0;
+        }
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            int built = 0;
+            Set<String> names = Sets.newHashSet();
+            for (AtomicReaderContext leaf : reader.leaves()) {
+                AtomicReader leafReader = leaf.reader();
+                File path = pathOf(indexDir, db, leafReader);
+                if (path == null || leafReader.maxDoc() == 0) {
+                    continue;
+                }
+                names.add(path.getName());
+                if (!path.exists()) {
+                    buildSegment(leafReader, db.equals(TYPE_DB), path);
+                    built++;
+                }
+            }
+            File[] files = new File(IndexPathUtils.getSuggesterPath(indexDir), db).listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                if (!names.contains(file.getName())) {
+                    FileUtils.deleteQuietly(file); // of a merged segment, or a leftover temp file
+                }
+            }
+            return built;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /** Returns the FST file of a segment, or {@code null} if the reader is not of a segment. */
+    private static File pathOf(File indexDir, String db, AtomicReader reader) {
+        if (!(reader instanceof SegmentReader)) {
+            return null;
+        }
+        File dir = new File(IndexPathUtils.getSuggesterPath(indexDir), db);
+        return new File(dir, ((SegmentReader) reader).getSegmentName());
+    }
+
+    /**
+     * Builds the FST of a segment. Hits are written to a temp file in document order, and keys are sorted offline,
+     * so that memory use does not grow with the segment.
+     */
+    private static void buildSegment(AtomicReader reader, boolean types, File path) throws IOException {
+        FileUtils.forceMkdir(path.getParentFile());
+        File entriesFile = new File(path.getPath() + ".entries.tmp");
+        File keysFile = new File(path.getPath() + ".keys.tmp");
+        File sortedKeysFile = new File(path.getPath() + ".sorted.tmp");
+        File temp = new File(path.getPath() + ".tmp");
+        try {
+            int entriesBytes = writeEntriesAndKeys(reader, types, entriesFile, keysFile);
+            new Sort().sort(keysFile, sortedKeysFile);
+            FST<Long> fst = buildFst(sortedKeysFile);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                DataOutput output = new OutputStreamDataOutput(out);
+                CodecUtil.writeHeader(output, CODEC_NAME, VERSION);
+                output.writeVInt(reader.maxDoc());
+                output.writeVInt(entriesBytes);
+                InputStream entries = new BufferedInputStream(new FileInputStream(entriesFile));
+                try {
+                    IOUtils.copy(entries, out);
+                } finally {
+                    IOUtils.closeQuietly(entries);
+                }
+                output.writeByte((byte) (fst == null ? 0 : 1));
+                if (fst != null) {
+                    fst.save(output);
+                }
+            } finally {
+                out.close();
+            }
+            FileUtils.deleteQuietly(path);
+            FileUtils.moveFile(temp, path);
+        } finally {
+            FileUtils.deleteQuietly(entriesFile);
+            FileUtils.deleteQuietly(keysFile);
+            FileUtils.deleteQuietly(sortedKeysFile);
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Writes the hit of each document of a segment, as its length and bytes, and the keys of live documents. Returns
+     * the total length of hits.
+     */
+    private static int writeEntriesAndKeys(AtomicReader reader, boolean types, File entriesFile, File keysFile)
+            throws IOException {
+        Bits liveDocs = reader.getLiveDocs();
+        BinaryDocValues values = reader.getBinaryDocValues(
+                types ? TypeDbIndexedField.TYPE_SUMMARY : SourceDbIndexedField.FILE_HANDLE);
+        if (values == null && !types) {
+            LOG.warn("SourceDb segment has no file handle doc values. Its files are not suggested.");
+        }
+        BytesRef bytes = new BytesRef();
+        int entriesBytes = 0;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(entriesFile));
+        Sort.ByteSequencesWriter keys = new Sort.ByteSequencesWriter(keysFile);
+        try {
+            DataOutput entries = new OutputStreamDataOutput(out);
+            for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                byte[] entry = NO_ENTRY;
+                if (liveDocs == null || liveDocs.get(doc)) {
+                    if (types) {
+                        entry = addType(reader, values, doc, bytes, keys);
+                    } else if (values != null) {
+                        entry = addFile(values, doc, bytes, keys);
+                    }
+                }
+                entries.writeVInt(entry.length);
+                entries.writeBytes(entry, entry.length);
+                entriesBytes += entry.length;
+            }
+        } finally {
+            keys.close();
+            out.close();
+        }
+        return entriesBytes;
+    }
+
+    private static byte[] addType(AtomicReader reader, BinaryDocValues summaries, int doc, BytesRef bytes,
+            Sort.ByteSequencesWriter keys) throws IOException {
+        ClassType clazz;
+        if (summaries != null) {
+            summaries.get(doc, bytes);
+        }
+        if (summaries != null && bytes.length > 0) {
+            clazz = ClassType.parseFrom(CodedInputStream.newInstance(bytes.bytes, bytes.offset, bytes.length));
+        } else {
+            // Written before type summaries. Decodes the whole type once.
+            Document document = reader.document(doc, TYPE_FIELDS);
+            BytesRef typeData = document.getBinaryValue(TypeDbIndexedField.TYPE_DATA);
+            clazz = TypeData.parseFrom(
+                    BlobCodecs.decode(typeData.bytes, typeData.offset, typeData.length)).getClassType();
+        }
+        String name = clazz.getHandle().getName();
+        long cost = MAX_WEIGHT - Math.min(Math.max(clazz.getUseCount(), 0), MAX_WEIGHT);
+        addKeys(name, doc, cost, keys);
+        String acronym = TypeUtils.getAcronym(TypeUtils.getSimpleName(name));
+        if (!acronym.isEmpty()) {
+            addKey(acronym.toLowerCase(), doc, cost, keys);
+        }
+        return Hit.newBuilder()
+                .setKind(Hit.Kind.TYPE)
+                .setJumpTarget(clazz.getJumpTarget())
+                .setClassType(ClassType.newBuilder()
+                        .setHandle(clazz.getHandle())
+                        .setKind(clazz.getKind())
+                        .setJumpTarget(clazz.getJumpTarget())
+                        .setUseCount(clazz.getUseCount())) // no members
+                .setQueryHint(name)
+                .build()
+                .toByteArray();
+    }
+
+    private static byte[] addFile(BinaryDocValues handles, int doc, BytesRef bytes, Sort.ByteSequencesWriter keys)
+            throws IOException {
+        handles.get(doc, bytes);
+        FileHandle file = FileHandle.parseFrom(CodedInputStream.newInstance(bytes.bytes, bytes.offset, bytes.length));
+        if (file.getKind() != FileHandle.Kind.NORMAL_FILE || !file.hasPath()) {
+            return NO_ENTRY;
+        }
+        String fileName = file.getPath().substring(file.getPath().lastIndexOf('/') + 1);
+        if (fileName.isEmpty()) {
+            return NO_ENTRY;
+        }
+        addKeys(fileName, doc, MAX_WEIGHT, keys);
+        return Hit.newBuilder()
+                .setKind(Hit.Kind.FILE)
+                .setJumpTarget(JumpTarget.newBuilder()
+                        .setFile(file))
+                .setQueryHint(fileName)
+                .build()
+                .toByteArray();
+    }
+
+    /** Adds the lowercase suffixes of a name starting at subwords, including the name itself. */
+    private static void addKeys(String name, int doc, long cost, Sort.ByteSequencesWriter keys) throws IOException {
+        TokenStream tokens = KEY_ANALYZER.tokenStream("", new StringReader(name));
+        CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+        try {
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                addKey(term.toString(), doc, cost, keys);
+            }
+            tokens.end();
+        } finally {
+            tokens.close();
+        }
+    }
+
+    /** Writes a key, a 0 byte, the document and the cost, which is dropped before adding the key to the FST. */
+    private static void addKey(String key, int doc, long cost, Sort.ByteSequencesWriter keys) throws IOException {
+        if (key.indexOf('\0') != -1) {
+            return;
+        }
+        BytesRef keyBytes = new BytesRef(key);
+        byte[] input = new byte[keyBytes.length + 1 + DOC_BYTES + COST_BYTES];
+        System.arraycopy(keyBytes.bytes, keyBytes.offset, input, 0, keyBytes.length);
+        int pos = keyBytes.length + 1; // after the 0 byte
+        for (int shift = (DOC_BYTES - 1) * 8; shift >= 0; shift -= 8) {
+            input[pos++] = (byte) (doc >>> shift);
+        }
+        for (int shift = (COST_BYTES - 1) * 8; shift >= 0; shift -= 8) {
+            input[pos++] = (byte) (cost >>> shift);
+        }
+        keys.write(input);
+    }
+
+    /** Builds the FST of sorted keys written by {@link #addKey}. Returns {@code null} if there are none. */
+    private static FST<Long> buildFst(File sortedKeysFile) throws IOException {
+        PositiveIntOutputs outputs = PositiveIntOutputs.getSingleton(true);
+        Builder<Long> builder = new Builder<Long>(FST.INPUT_TYPE.BYTE1, outputs);
+        IntsRef scratch = new IntsRef();
+        BytesRef input = new BytesRef();
+        BytesRef previous = new BytesRef();
+        boolean first = true;
+        Sort.ByteSequencesReader keys = new Sort.ByteSequencesReader(sortedKeysFile);
+        try {
+            while (keys.read(input)) {
+                int end = input.offset + input.length - COST_BYTES;
+                BytesRef current = new BytesRef(input.bytes, input.offset, input.length - COST_BYTES);
+                if (!first && current.bytesEquals(previous)) {
+                    continue; // e.g. "list" twice from ListList
+                }
+                long cost = 0;
+                for (int i = end; i < end + COST_BYTES; i++) {
+                    cost = (cost << 8) | (input.bytes[i] & 0xff);
+                }
+                builder.add(Util.toIntsRef(current, scratch), cost);
+                previous.copyBytes(current);
+                first = false;
+            }
+        } finally {
+            keys.close();
+        }
+        return builder.finish();
+    }
+}
@@ -0,0 +1,162 @@
+package com.codingstory.polaris.sourcedb;
+
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.CodedInputStream;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Children of each directory in SourceDb, sorted by path. It is built from the {@link SourceDbIndexedField#FILE_HANDLE}
+ * doc values written at index time, so listing a directory neither runs a query nor decodes sources.
+ *
+ * <p>The tree of a segment is built once and shared by all readers of the segment, so reopening an index only
+ * builds trees of new segments. Deletions are checked on listing.
+ */
+class DirectoryTree {
+    /** Documents of each directory's children in a segment, by project and directory path. */
+    private static class Segment {
+        private final Map<String, int[]> children;
+
+        private Segment(Map<String, int[]> children) {
+            this.children = children;
+        }
+    }
+
+    private static final Comparator<FileHandle> PATH_COMPARATOR = new Comparator<FileHandle>() {
+        @Override
+        public int compare(FileHandle left, FileHandle right) {
+            return left.getPath().compareTo(right.getPath());
+        }
+    };
+
+    private static final Map<Object, Segment> CACHE = Collections.synchronizedMap(
+            new WeakHashMap<Object, Segment>()); // by core cache key of segment
+
+    private final List<AtomicReaderContext> leaves;
+    private final Segment[] segments;
+
+    private DirectoryTree(List<AtomicReaderContext> leaves, Segment[] segments) {
+        this.leaves = leaves;
+        this.segments = segments;
+    }
+
+    /** Returns the tree of an index, or {@code null} if some segment was written without file handle doc values. */
+    public static DirectoryTree load(DirectoryReader reader) throws IOException {
+        Preconditions.checkNotNull(reader);
+        List<AtomicReaderContext> leaves = reader.leaves();
+        Segment[] segments = new Segment[leaves.size()];
+        for (int i = 0; i < segments.length; i++) {
+            AtomicReader leafReader = leaves.get(i).reader();
+            Object key = leafReader.getCoreCacheKey();
+            Segment segment = CACHE.get(key);
+            if (segment == null) {
+                segment = loadSegment(leafReader);
+                if (segment == null) {
+                    return null;
+                }
+                // Two threads may load the same segment at once. Either result is fine.
+                CACHE.put(key, segment);
+            }
+            segments[i] = segment;
+        }
+        return new DirectoryTree(leaves, segments);
+    }
+
+    /** Returns live files and subdirectories of a directory, sorted by path. */
+    public List<FileHandle> list(String project, String path) throws IOException {
+        String key = keyOf(project, path);
+        List<FileHandle> children = Lists.newArrayList();
+        int nonEmptySegments = 0;
+        BytesRef bytes = new BytesRef();
+        for (int i = 0; i < segments.length; i++) {
+            int[] docs = segments[i].children.get(key);
+            if (docs == null) {
+                continue;
+            }
+            nonEmptySegments++;
+            AtomicReader leafReader = leaves.get(i).reader();
+            BinaryDocValues handles = leafReader.getBinaryDocValues(SourceDbIndexedField.FILE_HANDLE);
+            Bits liveDocs = leafReader.getLiveDocs();
+            for (int doc : docs) {
+                if (liveDocs == null || liveDocs.get(doc)) {
+                    children.add(decode(handles, doc, bytes));
+                }
+            }
+        }
+        if (nonEmptySegments > 1) {
+            // Each segment's children are sorted already.
+            Collections.sort(children, PATH_COMPARATOR);
+        }
+        return children;
+    }
+
+    private static Segment loadSegment(AtomicReader reader) throws IOException {
+        if (reader.maxDoc() == 0) {
+            return new Segment(Collections.<String, int[]>emptyMap());
+        }
+        BinaryDocValues handles = reader.getBinaryDocValues(SourceDbIndexedField.FILE_HANDLE);
+        if (handles == null) {
+            return null;
+        }
+        final List<FileHandle> files = Lists.newArrayListWithCapacity(reader.maxDoc());
+        Map<String, List<Integer>> docsByParent = Maps.newHashMap();
+        BytesRef bytes = new BytesRef();
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            FileHandle file = decode(handles, doc, bytes);
+            files.add(file);
+            if (!file.hasPath()) {
+                continue; // merged from a segment written without doc values
+            }
+            String parent = SourceDbUtils.findParentPath(file.getPath());
+            if (parent.isEmpty()) {
+                continue; // the root
+            }
+            String key = keyOf(file.getProject(), parent);
+            List<Integer> docs = docsByParent.get(key);
+            if (docs == null) {
+                docs = Lists.newArrayList();
+                docsByParent.put(key, docs);
+            }
+            docs.add(doc);
+        }
+        Map<String, int[]> children = Maps.newHashMapWithExpectedSize(docsByParent.size());
+        for (Map.Entry<String, List<Integer>> entry : docsByParent.entrySet()) {
+            List<Integer> docs = entry.getValue();
+            Collections.sort(docs, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer left, Integer right) {
+                    return PATH_COMPARATOR.compare(files.get(left), files.get(right));
+                }
+            });
+            int[] sortedDocs = new int[docs.size()];
+            for (int i = 0; i < sortedDocs.length; i++) {
+                sortedDocs[i] = docs.get(i);
+            }
+            children.put(entry.getKey(), sortedDocs);
+        }
+        return new Segment(children);
+    }
+
+    private static FileHandle decode(BinaryDocValues handles, int doc, BytesRef bytes) throws IOException {
+        handles.get(doc, bytes);
+        return FileHandle.parseFrom(CodedInputStream.newInstance(bytes.bytes, bytes.offset, bytes.length));
+    }
+
+    private static String keyOf(String project, String path) {
+        return project + '\0' + path;
+    }
+}
@@ -0,0 +1,52 @@
+package com.codingstory.polaris.sourcedb;
+
+import com.codingstory.polaris.sourcedb.SourceDbProtos.LineTable;
+import com.google.common.base.Preconditions;
+
+/**
+ * Builds and reads {@link LineTable}s. Lines are numbered from 0, as in {@link
+ * com.codingstory.polaris.parser.ParserProtos.Position}, and end after their line feeds.
+ */
+public final class LineTables {
+    private LineTables() {}
+
+    public static LineTable of(String source) {
+        Preconditions.checkNotNull(source);
+        LineTable.Builder table = LineTable.newBuilder()
+                .addOffsets(0);
+        for (int i = source.indexOf('\n'); i != -1 && i + 1 < source.length(); i = source.indexOf('\n', i + 1)) {
+            table.addOffsets(i + 1);
+        }
+        return table.build();
+    }
+
+    /** Returns lines {@code [fromLine, toLine)} of a source, or fewer if the source has fewer lines. */
+    public static String slice(String source, LineTable table, int fromLine, int toLine) {
+        Preconditions.checkNotNull(source);
+        Preconditions.checkNotNull(table);
+        int from = startOf(source, table, Math.max(fromLine, 0));
+        int to = startOf(source, table, Math.max(toLine, fromLine));
+        return source.substring(from, to);
+    }
+
+    /** Returns the line of a char offset. */
+    public static int lineOf(LineTable table, int offset) {
+        Preconditions.checkArgument(offset >= 0);
+        int low = 0;
+        int high = table.getOffsetsCount() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (table.getOffsets(mid) <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /** Returns the char offset where a line starts, or the end of the source if there is no such line. */
+    public static int startOf(String source, LineTable table, int line) {
+        return line < table.getOffsetsCount() ? Math.min(table.getOffsets(line), source.length()) : source.length();
+    }
+}
@@ -1,6 +1,7 @@
 package com.codingstory.polaris.sourcedb;
 
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
 import com.codingstory.polaris.parser.ParserProtos.SourceFile;
 import com.codingstory.polaris.search.SearchProtos.Hit;
 
@@ -13,9 +14,27 @@ public interface SourceDb extends Closeable {
     /** @return subdirectories or files, or {@code null} if the specified path is a normal file or does not exists. */
     List<FileHandle> listDirectory(String project, String path) throws IOException;
     SourceFile querySourceById(long fileId) throws IOException;
+
+    /**
+     * Returns sources of files in the same order, with {@code null} for files not found. Duplicate files and files
+     * asked for more than once share one read of the source.
+     */
+    List<SourceFile> querySourcesByIds(List<Long> fileIds) throws IOException;
+
+    /**
+     * Returns a few lines around the start of each jump target, with {@code null} for files not found. Lines are
+     * sliced by line tables built at index time.
+     */
+    List<String> querySummaries(List<JumpTarget> jumpTargets) throws IOException;
     SourceFile querySourceByPath(String project, String path) throws IOException;
     FileHandle getFileHandle(String project, String path) throws IOException;
 
-    /** Matches {@code query} against file names or contents. */
+    /**
+     * Returns the id of the file whose source and index data a duplicate file shares, or {@code fileId} itself if
+     * the file is not a duplicate.
+     */
+    long findOriginalFileId(long fileId) throws IOException;
+
+    /** Matches {@code query} against file names or contents. Summaries show and highlight the first match. */
     List<Hit> query(String query, int n) throws IOException;
 }
@@ -1,44 +1,73 @@
 package com.codingstory.polaris.sourcedb;
 
-import com.codingstory.polaris.SnappyUtils;
+import com.codingstory.polaris.BlobCodecs;
 import com.codingstory.polaris.indexing.analysis.SourceCodeAnalyzer;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
 import com.codingstory.polaris.parser.ParserProtos.SourceFile;
+import com.codingstory.polaris.parser.TypeUtils;
+import com.codingstory.polaris.search.DocIdCollector;
+import com.codingstory.polaris.search.DocumentCache;
 import com.codingstory.polaris.search.SearchProtos.Hit;
+import com.codingstory.polaris.sourcedb.SourceDbProtos.LineTable;
 import com.codingstory.polaris.sourcedb.SourceDbProtos.SourceData;
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.Version;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 public class SourceDbImpl implements SourceDb {
     private static final Log LOG = LogFactory.getLog(SourceDbImpl.class);
-    private final IndexReader reader;
+    private static final int SUMMARY_CONTEXT_LINES = 2; // before and after the line of a summary
+    private final DirectoryReader reader;
+    private final DocumentCache cache;
     private final IndexSearcher searcher;
+    private final DirectoryTree directoryTree; // null if the index predates it
     private static final String[] SEARCHABLE_FIELDS = {
             SourceDbIndexedField.PROJECT,
             SourceDbIndexedField.PATH,
@@ -46,22 +75,41 @@ public class SourceDbImpl implements SourceDb {
     };
 
     public SourceDbImpl(File path) throws IOException {
-        Preconditions.checkNotNull(path);
-        reader = IndexReader.open(FSDirectory.open(path));
+        this(DirectoryReader.open(FSDirectory.open(Preconditions.checkNotNull(path))));
+    }
+
+    /** Searches an open reader. It takes over one reference of the reader, which {@link #close()} releases. */
+    public SourceDbImpl(DirectoryReader reader) throws IOException {
+        this(reader, DocumentCache.NONE);
+    }
+
+    /** Like {@link #SourceDbImpl(DirectoryReader)}, but keeps decoded handles and sources in {@code cache}. */
+    public SourceDbImpl(DirectoryReader reader, DocumentCache cache) throws IOException {
+        this.reader = Preconditions.checkNotNull(reader);
+        this.cache = Preconditions.checkNotNull(cache);
         searcher = new IndexSearcher(reader);
+        directoryTree = DirectoryTree.load(reader);
+        if (directoryTree == null) {
+            LOG.warn("SourceDb has no directory tree. Listing directories by queries.");
+        }
     }
+
     @Override
     public List<FileHandle> listDirectory(String project, String path) throws IOException {
         Preconditions.checkNotNull(project);
         Preconditions.checkNotNull(path);
         path = SourceDbUtils.fixPathForDirectory(path);
+        if (directoryTree != null) {
+            return directoryTree.list(project, path);
+        }
         BooleanQuery booleanQuery = new BooleanQuery();
         booleanQuery.add(new TermQuery(new Term(SourceDbIndexedField.PROJECT_RAW, project)), BooleanClause.Occur.MUST);
         booleanQuery.add(new TermQuery(new Term(SourceDbIndexedField.PARENT_PATH_RAW, path)), BooleanClause.Occur.MUST);
-        TopDocs topDocs = searcher.search(booleanQuery, Integer.MAX_VALUE);
+        DocIdCollector collector = new DocIdCollector();
+        searcher.search(booleanQuery, collector);
         List<FileHandle> children = Lists.newArrayList();
-        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-            children.add(retrieveDocument(scoreDoc.doc).getFileHandle());
+        for (int docId : collector.getDocIds()) {
+            children.add(retrieveDocument(docId).getFileHandle());
         }
         sortFileHandlesByPath(children);
         return children;
@@ -78,17 +126,103 @@ public class SourceDbImpl implements SourceDb {
 
     @Override
     public SourceFile querySourceById(long fileId) throws IOException {
-        Query query = NumericRangeQuery.newLongRange(SourceDbIndexedField.FILE_ID_RAW, fileId, fileId, true, true);
-        TopDocs topDocs = searcher.search(query, 2);
-        int count = topDocs.scoreDocs.length;
-        if (count == 0) {
-            LOG.debug("Source not found: " + fileId);
-            return null;
+        return Iterables.getOnlyElement(querySourcesByIds(ImmutableList.of(fileId)));
+    }
+
+    @Override
+    public List<SourceFile> querySourcesByIds(List<Long> fileIds) throws IOException {
+        Preconditions.checkNotNull(fileIds);
+        int[] docIds = findDocumentsByIds(Longs.toArray(fileIds));
+        for (int i = 0; i < docIds.length; i++) {
+            if (docIds[i] == -1) {
+                LOG.debug("Source not found: " + fileIds.get(i));
+            }
         }
-        if (count > 1) {
-            LOG.warn("Ambiguous file id: " + fileId);
+        return retrieveDocumentsAsNormalFiles(docIds);
+    }
+
+    @Override
+    public List<String> querySummaries(List<JumpTarget> jumpTargets) throws IOException {
+        Preconditions.checkNotNull(jumpTargets);
+        long[] fileIds = new long[jumpTargets.size()];
+        for (int i = 0; i < fileIds.length; i++) {
+            fileIds[i] = jumpTargets.get(i).getFile().getId();
         }
-        return retrieveDocumentAsNormalFile(topDocs.scoreDocs[0].doc);
+        int[] docIds = findDocumentsByIds(fileIds);
+        Map<Integer, SourceData> files = retrieveNormalFiles(docIds);
+        Map<Integer, Integer> sourceDocIds = findSourceDocIds(files);
+        Map<Integer, SourceFile> sources = retrieveSourceFiles(sourceDocIds.values(), files, false);
+        List<String> summaries = Lists.newArrayListWithCapacity(docIds.length);
+        for (int i = 0; i < docIds.length; i++) {
+            if (docIds[i] == -1) {
+                summaries.add(null);
+                continue;
+            }
+            int sourceDocId = sourceDocIds.get(docIds[i]);
+            SourceFile source = sources.get(sourceDocId);
+            int line = jumpTargets.get(i).getSpan().getFrom().getLine();
+            summaries.add(LineTables.slice(source.getSource(), retrieveLineTable(sourceDocId, source),
+                    line - SUMMARY_CONTEXT_LINES, line + SUMMARY_CONTEXT_LINES + 1));
+        }
+        return summaries;
+    }
+
+    @Override
+    public long findOriginalFileId(long fileId) throws IOException {
+        int docId = findDocumentsByIds(new long[] {fileId})[0];
+        if (docId == -1) {
+            return fileId;
+        }
+        SourceData data = retrieveDocument(docId);
+        return data.hasOriginalFileId() ? data.getOriginalFileId() : fileId;
+    }
+
+    /**
+     * Returns the Lucene document ids of files in the same order, with -1 for files not found. File ids are sorted
+     * first, so that the terms of each segment are visited in one forward pass.
+     */
+    private int[] findDocumentsByIds(long[] fileIds) throws IOException {
+        long[] sorted = fileIds.clone();
+        Arrays.sort(sorted);
+        int[] sortedDocIds = new int[sorted.length];
+        Arrays.fill(sortedDocIds, -1);
+        BytesRef term = new BytesRef(NumericUtils.BUF_SIZE_LONG);
+        for (AtomicReaderContext leaf : reader.leaves()) {
+            AtomicReader leafReader = leaf.reader();
+            Terms terms = leafReader.terms(SourceDbIndexedField.FILE_ID_RAW);
+            if (terms == null) {
+                continue;
+            }
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docs = null;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i > 0 && sorted[i] == sorted[i - 1]) {
+                    continue;
+                }
+                // Full-precision terms of a long field sort as the values do.
+                NumericUtils.longToPrefixCoded(sorted[i], 0, term);
+                if (!termsEnum.seekExact(term, true)) {
+                    continue;
+                }
+                docs = termsEnum.docs(leafReader.getLiveDocs(), docs, DocsEnum.FLAG_NONE);
+                for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc()) {
+                    if (sortedDocIds[i] != -1) {
+                        LOG.warn("Ambiguous file id: " + sorted[i]);
+                        break;
+                    }
+                    sortedDocIds[i] = leaf.docBase + doc;
+                }
+            }
+        }
+        int[] docIds = new int[fileIds.length];
+        for (int i = 0; i < fileIds.length; i++) {
+            int index = Arrays.binarySearch(sorted, fileIds[i]);
+            while (index > 0 && sorted[index - 1] == fileIds[i]) {
+                index--;
+            }
+            docIds[i] = sortedDocIds[index];
+        }
+        return docIds;
     }
 
     @Override
@@ -135,25 +269,38 @@ public class SourceDbImpl implements SourceDb {
             MultiFieldQueryParser parser = new MultiFieldQueryParser(
                     Version.LUCENE_43,
                     SEARCHABLE_FIELDS,
-                    SourceCodeAnalyzer.getInstance());
+                    SourceCodeAnalyzer.getQueryInstance());
             Query parsedQuery = parser.parse(query);
             TopDocs topDocs = searcher.search(parsedQuery, n);
-            List<Hit> hits = Lists.newArrayList();
+            List<ScoreDoc> fileDocs = Lists.newArrayList();
             for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-                SourceData data = retrieveDocument(scoreDoc.doc);
-                if (data.getFileHandle().getKind() != FileHandle.Kind.NORMAL_FILE) {
-                    continue; // Ignore directories.
+                if (retrieveDocument(scoreDoc.doc).getFileHandle().getKind() == FileHandle.Kind.NORMAL_FILE) {
+                    fileDocs.add(scoreDoc); // Ignore directories.
                 }
+            }
+            int[] docIds = new int[fileDocs.size()];
+            for (int i = 0; i < docIds.length; i++) {
+                docIds[i] = fileDocs.get(i).doc;
+            }
+            Map<Integer, SourceData> files = retrieveNormalFiles(docIds);
+            Map<Integer, Integer> sourceDocIds = findSourceDocIds(files);
+            Map<Integer, SourceFile> sources = retrieveSourceFiles(sourceDocIds.values(), files, false);
+            Set<String> terms = extractSourceTerms(parsedQuery);
+            List<Hit> hits = Lists.newArrayList();
+            for (ScoreDoc scoreDoc : fileDocs) {
+                FileHandle file = files.get(scoreDoc.doc).getFileHandle();
+                int sourceDocId = sourceDocIds.get(scoreDoc.doc);
+                SourceFile source = sources.get(sourceDocId);
                 JumpTarget jumpTarget = JumpTarget.newBuilder()
-                        .setFile(data.getFileHandle())
+                        .setFile(file)
                         .build();
-                hits.add(Hit.newBuilder()
+                Hit.Builder hit = Hit.newBuilder()
                         .setKind(Hit.Kind.FILE)
                         .setQueryHint(getFileName(jumpTarget.getFile().getPath()))
                         .setJumpTarget(jumpTarget)
-                        .setScore(scoreDoc.score)
-                        .setSummary("TODO")
-                        .build());
+                        .setScore(scoreDoc.score);
+                setSnippet(hit, source.getSource(), retrieveLineTable(sourceDocId, source), terms);
+                hits.add(hit.build());
             }
             return hits;
         } catch (ParseException e) {
@@ -162,6 +309,64 @@ public class SourceDbImpl implements SourceDb {
         }
     }
 
+    /** Returns terms of a query which match sources. Terms of wildcard or fuzzy queries are left out. */
+    private Set<String> extractSourceTerms(Query query) throws IOException {
+        Set<Term> terms = Sets.newHashSet();
+        try {
+            searcher.rewrite(query).extractTerms(terms);
+        } catch (UnsupportedOperationException e) {
+            LOG.debug("Cannot extract terms: " + query);
+        }
+        Set<String> result = Sets.newHashSet();
+        for (Term term : terms) {
+            if (term.field().equals(SourceDbIndexedField.SOURCE_TEXT)) {
+                result.add(term.text());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets the summary of a file hit to the lines around the first match of {@code terms}, or to the first lines if
+     * there is none, and highlights matches in these lines. The source is analyzed up to the end of the summary.
+     */
+    private static void setSnippet(Hit.Builder hit, String source, LineTable lineTable, Set<String> terms)
+            throws IOException {
+        int fromLine = 0;
+        int toLine = SUMMARY_CONTEXT_LINES * 2 + 1;
+        if (!terms.isEmpty()) {
+            TokenStream tokens = SourceCodeAnalyzer.getInstance().tokenStream(
+                    SourceDbIndexedField.SOURCE_TEXT, new StringReader(source));
+            try {
+                CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+                OffsetAttribute offset = tokens.addAttribute(OffsetAttribute.class);
+                tokens.reset();
+                boolean matched = false;
+                while (tokens.incrementToken()) {
+                    if (!terms.contains(term.toString())) {
+                        continue;
+                    }
+                    int line = LineTables.lineOf(lineTable, offset.startOffset());
+                    if (!matched) {
+                        matched = true;
+                        fromLine = Math.max(line - SUMMARY_CONTEXT_LINES, 0);
+                        toLine = line + SUMMARY_CONTEXT_LINES + 1;
+                    } else if (line >= toLine) {
+                        break;
+                    }
+                    int lineStart = LineTables.startOf(source, lineTable, line);
+                    hit.addHighlights(TypeUtils.spanOf(
+                            TypeUtils.positionOf(line, offset.startOffset() - lineStart),
+                            TypeUtils.positionOf(line, offset.endOffset() - lineStart)));
+                }
+                tokens.end();
+            } finally {
+                tokens.close();
+            }
+        }
+        hit.setSummary(LineTables.slice(source, lineTable, fromLine, toLine));
+    }
+
     private String getFileName(String path) {
         int slash = path.lastIndexOf("/");
         if (slash == -1) {
@@ -170,22 +375,209 @@ public class SourceDbImpl implements SourceDb {
         return path.substring(slash + 1);
     }
 
-    private SourceData retrieveDocument(int docId) throws IOException {
-        Document document = reader.document(docId);
-        BytesRef bytesRef = document.getBinaryValue(SourceDbIndexedField.SOURCE_DATA);
-        return SourceData.parseFrom(SnappyUtils.uncompress(bytesRef.bytes, bytesRef.offset, bytesRef.length));
+    /** Reads the handle record of a document, leaving its source and annotated source on disk. */
+    private SourceData retrieveDocument(final int docId) throws IOException {
+        return cache.get(reader, docId, SourceDbIndexedField.SOURCE_DATA, new Callable<SourceData>() {
+            @Override
+            public SourceData call() throws IOException {
+                StoredBytesVisitor visitor = new StoredBytesVisitor(SourceDbIndexedField.SOURCE_DATA);
+                reader.document(docId, visitor);
+                return SourceData.parseFrom(BlobCodecs.decode(visitor.get(SourceDbIndexedField.SOURCE_DATA)));
+            }
+        });
     }
 
     private SourceFile retrieveDocumentAsNormalFile(int docId) throws IOException {
-        SourceData data = retrieveDocument(docId);
-        if (data.getFileHandle().getKind() != FileHandle.Kind.NORMAL_FILE) {
-            throw new IOException("The result is not NORMAL_FILE: " + data.getFileHandle());
+        return Iterables.getOnlyElement(retrieveDocumentsAsNormalFiles(new int[] {docId}));
+    }
+
+    /**
+     * Reads sources of documents, with {@code null} for -1. A duplicate file is read as its original with its own
+     * handle.
+     */
+    private List<SourceFile> retrieveDocumentsAsNormalFiles(int[] docIds) throws IOException {
+        Map<Integer, SourceData> files = retrieveNormalFiles(docIds);
+        Map<Integer, Integer> sourceDocIds = findSourceDocIds(files);
+        Map<Integer, SourceFile> sources = retrieveSourceFiles(sourceDocIds.values(), files, true);
+        List<SourceFile> result = Lists.newArrayListWithCapacity(docIds.length);
+        for (int docId : docIds) {
+            if (docId == -1) {
+                result.add(null);
+                continue;
+            }
+            SourceData data = files.get(docId);
+            SourceFile source = sources.get(sourceDocIds.get(docId));
+            result.add(data.hasOriginalFileId() ? source.toBuilder().setHandle(data.getFileHandle()).build() : source);
+        }
+        return result;
+    }
+
+    /** Reads handle records of documents in index order, skipping -1. All of them must be normal files. */
+    private Map<Integer, SourceData> retrieveNormalFiles(int[] docIds) throws IOException {
+        Map<Integer, SourceData> files = Maps.newTreeMap();
+        for (int docId : docIds) {
+            if (docId != -1) {
+                files.put(docId, null);
+            }
+        }
+        for (Map.Entry<Integer, SourceData> file : files.entrySet()) {
+            SourceData data = retrieveDocument(file.getKey());
+            if (data.getFileHandle().getKind() != FileHandle.Kind.NORMAL_FILE) {
+                throw new IOException("The result is not NORMAL_FILE: " + data.getFileHandle());
+            }
+            file.setValue(data);
+        }
+        return files;
+    }
+
+    /**
+     * Returns the document whose source each file has, by document of the file. It is the file itself, or its
+     * original if the file is a duplicate. Originals are found in one batch.
+     */
+    private Map<Integer, Integer> findSourceDocIds(Map<Integer, SourceData> files) throws IOException {
+        List<Long> originalFileIds = Lists.newArrayList();
+        for (SourceData data : files.values()) {
+            if (data.hasOriginalFileId()) {
+                originalFileIds.add(data.getOriginalFileId());
+            }
+        }
+        int[] originalDocIds = findDocumentsByIds(Longs.toArray(originalFileIds));
+        Map<Long, Integer> originalDocIdsByFileId = Maps.newHashMap();
+        for (int i = 0; i < originalDocIds.length; i++) {
+            originalDocIdsByFileId.put(originalFileIds.get(i), originalDocIds[i]);
+        }
+        Map<Integer, Integer> sourceDocIds = Maps.newHashMap();
+        for (Map.Entry<Integer, SourceData> file : files.entrySet()) {
+            SourceData data = file.getValue();
+            int sourceDocId = file.getKey();
+            if (data.hasOriginalFileId()) {
+                sourceDocId = originalDocIdsByFileId.get(data.getOriginalFileId());
+                if (sourceDocId == -1) {
+                    throw new IOException("Original of " + data.getFileHandle() + " not found: "
+                            + data.getOriginalFileId());
+                }
+            }
+            sourceDocIds.put(file.getKey(), sourceDocId);
+        }
+        return sourceDocIds;
+    }
+
+    /**
+     * Reads sources of documents in index order, each once. Handle records already read are taken from {@code files}.
+     * Annotated sources are read only if {@code withAnnotatedSource}.
+     */
+    private Map<Integer, SourceFile> retrieveSourceFiles(Collection<Integer> sourceDocIds,
+            Map<Integer, SourceData> files, boolean withAnnotatedSource) throws IOException {
+        Map<Integer, SourceFile> sources = Maps.newTreeMap();
+        for (int sourceDocId : sourceDocIds) {
+            sources.put(sourceDocId, null);
+        }
+        for (Map.Entry<Integer, SourceFile> source : sources.entrySet()) {
+            SourceData original = files.get(source.getKey());
+            if (original == null) {
+                original = retrieveDocument(source.getKey());
+            }
+            if (original.hasOriginalFileId()) {
+                throw new IOException("Original of " + original.getFileHandle() + " is also a duplicate");
+            }
+            source.setValue(retrieveSourceFile(source.getKey(), original, withAnnotatedSource));
+        }
+        return sources;
+    }
+
+    private SourceFile retrieveSourceFile(int docId, SourceData data, boolean withAnnotatedSource)
+            throws IOException {
+        if (data.hasSourceFile()) {
+            return data.getSourceFile(); // written before sources were stored apart
+        }
+        SourceFile source = retrieveStoredSource(docId, data.getFileHandle(), SourceDbIndexedField.SOURCE);
+        if (!withAnnotatedSource) {
+            return source;
+        }
+        SourceFile annotated = retrieveStoredSource(
+                docId, data.getFileHandle(), SourceDbIndexedField.ANNOTATED_SOURCE);
+        if (!annotated.hasAnnotatedSource()) {
+            return source;
+        }
+        return source.toBuilder()
+                .setAnnotatedSource(annotated.getAnnotatedSource())
+                .build();
+    }
+
+    /**
+     * Reads either the source or the annotated source of a document, as the only source of a {@link SourceFile}.
+     * Each is read, decoded and cached on its own, so that slicing lines of a source leaves the annotated one on disk.
+     */
+    private SourceFile retrieveStoredSource(final int docId, final FileHandle handle, final String field)
+            throws IOException {
+        return cache.get(reader, docId, field, new Callable<SourceFile>() {
+            @Override
+            public SourceFile call() throws IOException {
+                StoredBytesVisitor visitor = new StoredBytesVisitor(field);
+                reader.document(docId, visitor);
+                SourceFile.Builder sourceFile = SourceFile.newBuilder()
+                        .setHandle(handle);
+                byte[] blob = visitor.get(field);
+                if (blob == null) {
+                    return sourceFile.build();
+                }
+                String text = BlobCodecs.decodeToString(blob, Charsets.UTF_8);
+                if (field.equals(SourceDbIndexedField.SOURCE)) {
+                    sourceFile.setSource(text);
+                } else {
+                    sourceFile.setAnnotatedSource(text);
+                }
+                return sourceFile.build();
+            }
+        });
+    }
+
+    /** Reads the line table of a document, or builds it if the index predates line tables. */
+    private LineTable retrieveLineTable(final int docId, final SourceFile source) throws IOException {
+        return cache.get(reader, docId, SourceDbIndexedField.LINE_OFFSETS, new Callable<LineTable>() {
+            @Override
+            public LineTable call() throws IOException {
+                StoredBytesVisitor visitor = new StoredBytesVisitor(SourceDbIndexedField.LINE_OFFSETS);
+                reader.document(docId, visitor);
+                byte[] lineTable = visitor.get(SourceDbIndexedField.LINE_OFFSETS);
+                if (lineTable == null) {
+                    return LineTables.of(source.getSource());
+                }
+                return LineTable.parseFrom(BlobCodecs.decode(lineTable));
+            }
+        });
+    }
+
+    /** Loads some binary stored fields of a document, skipping the others. */
+    private static class StoredBytesVisitor extends StoredFieldVisitor {
+        private final Set<String> fields;
+        private final Map<String, byte[]> values = Maps.newHashMap();
+
+        private StoredBytesVisitor(String... fields) {
+            this.fields = ImmutableSet.copyOf(fields);
+        }
+
+        @Override
+        public Status needsField(FieldInfo fieldInfo) {
+            if (values.size() == fields.size()) {
+                return Status.STOP;
+            }
+            return fields.contains(fieldInfo.name) ? Status.YES : Status.NO;
+        }
+
+        @Override
+        public void binaryField(FieldInfo fieldInfo, byte[] value) {
+            values.put(fieldInfo.name, value);
+        }
+
+        /** Returns the value of a field, or {@code null} if the document does not have it. */
+        public byte[] get(String field) {
+            return values.get(field);
         }
-        return data.getSourceFile();
     }
 
     @Override
     public void close() throws IOException {
-        reader.close();
+        reader.decRef();
     }
 }
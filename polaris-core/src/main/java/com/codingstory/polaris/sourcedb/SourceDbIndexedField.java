@@ -7,6 +7,10 @@ public class SourceDbIndexedField {
     public static final String PATH_RAW = "PathRaw";
     public static final String PATH = "Path";
     public static final String PARENT_PATH_RAW = "ParentPathRaw";
-    public static final String SOURCE_DATA = "SourceData";
-    public static final String SOURCE_TEXT = "SourceText";
+    public static final String SOURCE_DATA = "SourceData"; // handle record
+    public static final String SOURCE = "Source";
+    public static final String ANNOTATED_SOURCE = "AnnotatedSource";
+    public static final String LINE_OFFSETS = "LineOffsets"; // line table of source
+    public static final String SOURCE_TEXT = "SourceText"; // searchable, not stored
+    public static final String FILE_HANDLE = "FileHandle"; // doc values
 }
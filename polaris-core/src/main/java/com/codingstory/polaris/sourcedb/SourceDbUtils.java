@@ -1,5 +1,8 @@
 package com.codingstory.polaris.sourcedb;
 
+import com.google.common.base.Objects;
+import org.apache.commons.lang.StringUtils;
+
 public class SourceDbUtils {
     public static String fixPathForDirectory(String path) {
         if (path.endsWith("/")) {
@@ -12,4 +15,19 @@ public class SourceDbUtils {
     public static boolean isDirectory(String path) {
         return path.endsWith("/");
     }
+
+    /** Returns the path of the directory containing {@code path}, or an empty string for the root. */
+    public static String findParentPath(String path) {
+        if (Objects.equal(path, "/")) {
+            return "";
+        } else {
+            path = StringUtils.removeEnd(path, "/");
+            int lastSlashPos = path.lastIndexOf('/');
+            if (lastSlashPos == -1) {
+                return "/";
+            } else {
+                return path.substring(0, lastSlashPos + 1);
+            }
+        }
+    }
 }
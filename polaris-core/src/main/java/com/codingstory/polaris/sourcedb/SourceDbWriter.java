@@ -1,14 +1,18 @@
 package com.codingstory.polaris.sourcedb;
 
+import com.codingstory.polaris.indexing.DbWriter;
 import com.codingstory.polaris.parser.ParserProtos.SourceFile;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 
-import java.io.Closeable;
 import java.io.IOException;
 
-public interface SourceDbWriter extends Closeable {
+public interface SourceDbWriter extends DbWriter {
     void writeSourceFile(SourceFile sourceFile) throws IOException;
     void writeDirectory(FileHandle dir) throws IOException;
-    void flush() throws IOException;
-    void close() throws IOException;
+
+    /** Writes a file whose source is identical to another file, by a reference to the other file. */
+    void writeDuplicateFile(FileHandle file, long originalFileId) throws IOException;
+
+    /** Deletes a source file or a directory. */
+    void deleteFile(long fileId) throws IOException;
 }
@@ -1,13 +1,14 @@
 package com.codingstory.polaris.sourcedb;
 
-import com.codingstory.polaris.SnappyUtils;
+import com.codingstory.polaris.BlobCodec;
+import com.codingstory.polaris.BlobCodecs;
+import com.codingstory.polaris.indexing.AbstractDbWriter;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
 import com.codingstory.polaris.indexing.analysis.SourceCodeAnalyzer;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.SourceFile;
 import com.codingstory.polaris.sourcedb.SourceDbProtos.SourceData;
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
-import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
@@ -16,24 +17,24 @@ import org.apache.lucene.document.LongField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.Version;
 
 import java.io.File;
 import java.io.IOException;
 
-public class SourceDbWriterImpl implements SourceDbWriter {
-    private IndexWriter writer;
+public class SourceDbWriterImpl extends AbstractDbWriter implements SourceDbWriter {
+    private final BlobCodec codec;
 
     public SourceDbWriterImpl(File path) throws IOException {
-        Preconditions.checkNotNull(path);
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, SourceCodeAnalyzer.getInstance());
-        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-        this.writer = new IndexWriter(FSDirectory.open(path), config);
+        this(path, new IndexWriterOptions());
     }
+
+    public SourceDbWriterImpl(File path, IndexWriterOptions options) throws IOException {
+        super(path, SourceCodeAnalyzer.getInstance(), options);
+        codec = options.getSourceBlobCodec();
+    }
+
     @Override
     public void writeSourceFile(SourceFile sourceFile) throws IOException {
         Preconditions.checkNotNull(sourceFile);
@@ -71,19 +72,36 @@ public class SourceDbWriterImpl implements SourceDbWriter {
                 Field.Store.YES));
         document.add(new StringField(
                 SourceDbIndexedField.PARENT_PATH_RAW,
-                findParentPath(sourceData.getFileHandle().getPath()),
-                Field.Store.YES));
-        document.add(new TextField(
-                SourceDbIndexedField.SOURCE_TEXT,
-                sourceData.getSourceFile().getSource(),
+                SourceDbUtils.findParentPath(sourceData.getFileHandle().getPath()),
                 Field.Store.YES));
-        byte[] sourceDataBinary = SnappyUtils.compress(sourceData.toByteArray());
+        if (sourceData.hasSourceFile()) {
+            // Searchable, but not stored again. The source is stored apart from the handle record below.
+            SourceFile sourceFile = sourceData.getSourceFile();
+            document.add(new TextField(SourceDbIndexedField.SOURCE_TEXT, sourceFile.getSource(), Field.Store.NO));
+            document.add(new StoredField(SourceDbIndexedField.SOURCE, compressString(sourceFile.getSource())));
+            document.add(new StoredField(SourceDbIndexedField.LINE_OFFSETS,
+                BlobCodecs.encode(codec, LineTables.of(sourceFile.getSource()))));
+            if (sourceFile.hasAnnotatedSource()) {
+                document.add(new StoredField(SourceDbIndexedField.ANNOTATED_SOURCE,
+                        compressString(sourceFile.getAnnotatedSource())));
+            }
+        }
+        document.add(new BinaryDocValuesField(
+                SourceDbIndexedField.FILE_HANDLE,
+                new BytesRef(sourceData.getFileHandle().toByteArray())));
+        SourceData handleRecord = sourceData.toBuilder()
+                .clearSourceFile()
+                .build();
         document.add(new StoredField(
                 SourceDbIndexedField.SOURCE_DATA,
-                new BytesRef(sourceDataBinary)));
+                new BytesRef(BlobCodecs.encode(codec, handleRecord))));
         writer.addDocument(document);
     }
 
+    private byte[] compressString(String s) {
+        return BlobCodecs.encode(codec, s);
+    }
+
     @Override
     public void writeDirectory(FileHandle dir) throws IOException {
         Preconditions.checkNotNull(dir);
@@ -96,27 +114,21 @@ public class SourceDbWriterImpl implements SourceDbWriter {
     }
 
     @Override
-    public void flush() throws IOException {
-        writer.commit();
-        writer.forceMerge(1);
+    public void writeDuplicateFile(FileHandle file, long originalFileId) throws IOException {
+        Preconditions.checkNotNull(file);
+        Preconditions.checkArgument(file.getKind() == FileHandle.Kind.NORMAL_FILE, "Must be NORMAL_FILE");
+        Preconditions.checkArgument(file.getId() != originalFileId);
+        // Only the original file is searchable by its source.
+        SourceData sourceData = SourceData.newBuilder()
+                .setFileHandle(file)
+                .setOriginalFileId(originalFileId)
+                .build();
+        doWrite(sourceData);
     }
 
     @Override
-    public void close() throws IOException {
-        writer.close();
-    }
-
-    private String findParentPath(String path) {
-        if (Objects.equal(path, "/")) {
-            return "";
-        } else {
-            path = StringUtils.removeEnd(path, "/");
-            int lastSlashPos = path.lastIndexOf('/');
-            if (lastSlashPos == -1) {
-                return "/";
-            } else {
-                return path.substring(0, lastSlashPos + 1);
-            }
-        }
+    public void deleteFile(long fileId) throws IOException {
+        writer.deleteDocuments(NumericRangeQuery.newLongRange(
+                SourceDbIndexedField.FILE_ID_RAW, fileId, fileId, true, true));
     }
 }
@@ -0,0 +1,243 @@
+package com.codingstory.polaris.typedb;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.SorterTemplate;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Maps ids of types, fields or methods to documents of TypeDb, so that a lookup is a binary search in memory instead
+ * of a query. Each id field is indexed as one keyword token per value, so the position of a member id is also its
+ * index in {@link com.codingstory.polaris.parser.ParserProtos.ClassType#getFieldsList()} or
+ * {@link com.codingstory.polaris.parser.ParserProtos.ClassType#getMethodsList()}.
+ *
+ * <p>Ids of a segment are loaded from its postings once, and shared by all readers of the segment, so reopening
+ * an index only loads new segments. Deletions are checked on lookup.
+ */
+class IdLookupTable {
+    private static final Log LOG = LogFactory.getLog(IdLookupTable.class);
+
+    /** Document and member position of an id. The position is 0 for types. */
+    static class Entry {
+        private final int docId;
+        private final int position;
+
+        private Entry(int docId, int position) {
+            this.docId = docId;
+            this.position = position;
+        }
+
+        public int getDocId() {
+            return docId;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+    }
+
+    /** Ids of one segment in ascending order, with their documents and positions. */
+    private static class Segment {
+        private final long[] ids;
+        private final int[] docs;
+        private final int[] positions;
+
+        private Segment(long[] ids, int[] docs, int[] positions) {
+            this.ids = ids;
+            this.docs = docs;
+            this.positions = positions;
+        }
+    }
+
+    private static final Map<Object, Map<String, Segment>> CACHE = Collections.synchronizedMap(
+            new WeakHashMap<Object, Map<String, Segment>>()); // by core cache key of segment, then by field
+
+    private final String field;
+    private final List<AtomicReaderContext> leaves;
+    private final Segment[] segments;
+
+    private IdLookupTable(String field, List<AtomicReaderContext> leaves, Segment[] segments) {
+        this.field = field;
+        this.leaves = leaves;
+        this.segments = segments;
+    }
+
+    public static IdLookupTable load(DirectoryReader reader, String field) throws IOException {
+        Preconditions.checkNotNull(reader);
+        Preconditions.checkNotNull(field);
+        List<AtomicReaderContext> leaves = reader.leaves();
+        Segment[] segments = new Segment[leaves.size()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = getOrLoadSegment(leaves.get(i).reader(), field);
+        }
+        return new IdLookupTable(field, leaves, segments);
+    }
+
+    /** Returns the live document of an id, or {@code null} if there is none. */
+    public Entry find(long id) {
+        return findAll(new long[] {id})[0];
+    }
+
+    /**
+     * Returns live documents of ids in the same order, with {@code null} for ids not found. Ids are sorted first, so
+     * that each segment is searched in one forward pass.
+     */
+    public Entry[] findAll(long[] ids) {
+        Preconditions.checkNotNull(ids);
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        sorted = Arrays.copyOf(sorted, unique);
+        Entry[] found = new Entry[unique];
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            AtomicReaderContext leaf = leaves.get(i);
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            int from = 0;
+            for (int j = 0; j < unique && from < segment.ids.length; j++) {
+                long id = sorted[j];
+                int index = Arrays.binarySearch(segment.ids, from, segment.ids.length, id);
+                if (index < 0) {
+                    from = -index - 1;
+                    continue;
+                }
+                // Ids may repeat within a segment. Visits all of them.
+                while (index > from && segment.ids[index - 1] == id) {
+                    index--;
+                }
+                for (; index < segment.ids.length && segment.ids[index] == id; index++) {
+                    int doc = segment.docs[index];
+                    if (liveDocs != null && !liveDocs.get(doc)) {
+                        continue;
+                    }
+                    if (found[j] != null) {
+                        LOG.warn("Ambiguous " + field + ": " + id);
+                        continue;
+                    }
+                    found[j] = new Entry(leaf.docBase + doc, segment.positions[index]);
+                }
+                from = index;
+            }
+        }
+        Entry[] result = new Entry[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = found[Arrays.binarySearch(sorted, ids[i])];
+        }
+        return result;
+    }
+
+    private static Segment getOrLoadSegment(AtomicReader reader, String field) throws IOException {
+        Object key = reader.getCoreCacheKey();
+        Map<String, Segment> segmentsByField;
+        synchronized (CACHE) {
+            segmentsByField = CACHE.get(key);
+            if (segmentsByField == null) {
+                segmentsByField = Maps.newConcurrentMap();
+                CACHE.put(key, segmentsByField);
+            }
+        }
+        Segment segment = segmentsByField.get(field);
+        if (segment == null) {
+            // Two threads may load the same segment at once. Either result is fine.
+            segment = loadSegment(reader, field);
+            segmentsByField.put(field, segment);
+        }
+        return segment;
+    }
+
+    private static Segment loadSegment(AtomicReader reader, String field) throws IOException {
+        int size = 0;
+        long[] ids = new long[16];
+        int[] docs = new int[16];
+        int[] positions = new int[16];
+        Terms terms = reader.terms(field);
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsAndPositionsEnum docsEnum = null;
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                long id = Long.parseLong(term.utf8ToString());
+                // Deleted documents are kept, since the segment may be shared with a reader which still sees them.
+                docsEnum = termsEnum.docsAndPositions(null, docsEnum, DocsAndPositionsEnum.FLAG_NONE);
+                Preconditions.checkState(docsEnum != null, "Positions of " + field + " are not indexed");
+                int doc;
+                while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    for (int i = 0; i < docsEnum.freq(); i++) {
+                        if (size == ids.length) {
+                            int capacity = size * 2;
+                            ids = Arrays.copyOf(ids, capacity);
+                            docs = Arrays.copyOf(docs, capacity);
+                            positions = Arrays.copyOf(positions, capacity);
+                        }
+                        ids[size] = id;
+                        docs[size] = doc;
+                        positions[size] = docsEnum.nextPosition();
+                        size++;
+                    }
+                }
+            }
+        }
+        // Terms are in lexicographic order, not numeric.
+        final long[] sortedIds = Arrays.copyOf(ids, size);
+        final int[] sortedDocs = Arrays.copyOf(docs, size);
+        final int[] sortedPositions = Arrays.copyOf(positions, size);
+        new SorterTemplate() {
+            private long pivot;
+
+            @Override
+            protected void swap(int i, int j) {
+                long id = sortedIds[i];
+                sortedIds[i] = sortedIds[j];
+                sortedIds[j] = id;
+                int doc = sortedDocs[i];
+                sortedDocs[i] = sortedDocs[j];
+                sortedDocs[j] = doc;
+                int position = sortedPositions[i];
+                sortedPositions[i] = sortedPositions[j];
+                sortedPositions[j] = position;
+            }
+
+            @Override
+            protected int compare(int i, int j) {
+                return compareLongs(sortedIds[i], sortedIds[j]);
+            }
+
+            @Override
+            protected void setPivot(int i) {
+                pivot = sortedIds[i];
+            }
+
+            @Override
+            protected int comparePivot(int j) {
+                return compareLongs(pivot, sortedIds[j]);
+            }
+        }.quickSort(0, size - 1);
+        return new Segment(sortedIds, sortedDocs, sortedPositions);
+    }
+
+    private static int compareLongs(long left, long right) {
+        return left < right ? -1 : (left == right ? 0 : 1);
+    }
+}
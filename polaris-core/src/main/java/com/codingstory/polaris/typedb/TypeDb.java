@@ -16,6 +16,18 @@ public interface TypeDb extends Closeable {
     Variable getFieldById(long id) throws IOException;
     Method getMethodById(long id) throws IOException;
 
+    /**
+     * Returns types of {@code ids} in the same order, with {@code null} for ids not found. A type is read once however
+     * many times it is asked for.
+     */
+    List<ClassType> getTypesByIds(List<Long> ids) throws IOException;
+
+    /** Like {@link #getTypesByIds(List)}, for fields. Fields of one type share one read of the type. */
+    List<Variable> getFieldsByIds(List<Long> ids) throws IOException;
+
+    /** Like {@link #getTypesByIds(List)}, for methods. Methods of one type share one read of the type. */
+    List<Method> getMethodsByIds(List<Long> ids) throws IOException;
+
     /** Searches for types in {@code TypeDb}. It does not set {@code summary}. */
     List<Hit> query(String query, int n) throws IOException;
 }
@@ -1,23 +1,39 @@
 package com.codingstory.polaris.typedb;
 
-import com.google.common.collect.ImmutableSet;
+import com.codingstory.polaris.indexing.analysis.CamelCaseFilter;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.core.KeywordTokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
+import org.apache.lucene.util.Version;
 
 import java.io.Reader;
-import java.util.Set;
 
+/**
+ * Indexes names as keywords, except {@link TypeDbIndexedField#COMPLETION}. There each name is split at camel-case
+ * humps and dots, and every prefix of every suffix starting at a subword is indexed in lowercase, so that completing
+ * a name is a lookup of one term.
+ */
 public final class TypeDbAnalyzer extends Analyzer {
-    private static final Set<String> RAW_FIELDS = ImmutableSet.of(
-            TypeDbIndexedField.TYPE_ID, TypeDbIndexedField.PROJECT, TypeDbIndexedField.FULL_TYPE);
+    /** Longest prefix indexed for completion. Longer queries fall back to prefix queries. */
+    public static final int MAX_COMPLETION_LENGTH = 64;
+
+    public TypeDbAnalyzer() {
+        super(new PerFieldReuseStrategy()); // fields have different token streams
+    }
 
     @Override
     protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
-        if (RAW_FIELDS.contains(fieldName)) {
-            return new TokenStreamComponents(new KeywordTokenizer(reader));
+        if (fieldName.equals(TypeDbIndexedField.COMPLETION)) {
+            Tokenizer source = new KeywordTokenizer(reader);
+            TokenStream result = new CamelCaseFilter(source, true);
+            result = new LowerCaseFilter(Version.LUCENE_43, result);
+            result = new EdgeNGramTokenFilter(result, EdgeNGramTokenFilter.Side.FRONT, 1, MAX_COMPLETION_LENGTH);
+            return new TokenStreamComponents(source, result);
         } else {
-            return new TokenStreamComponents(new KeywordTokenizer(reader)); // TODO: use camel-cased tokenizer
+            return new TokenStreamComponents(new KeywordTokenizer(reader));
         }
     }
 }
@@ -1,20 +1,25 @@
 package com.codingstory.polaris.typedb;
 
 import com.codingstory.polaris.IdUtils;
-import com.codingstory.polaris.SnappyUtils;
+import com.codingstory.polaris.BlobCodecs;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.Variable;
 import com.codingstory.polaris.parser.ParserProtos.Method;
+import com.codingstory.polaris.search.DocIdCollector;
+import com.codingstory.polaris.search.DocumentCache;
 import com.codingstory.polaris.search.SearchProtos.Hit;
 import com.codingstory.polaris.typedb.TypeDbProtos.TypeData;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
@@ -30,6 +35,8 @@ import org.apache.lucene.util.BytesRef;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 public class TypeDbImpl implements TypeDb {
     private static final Log LOG = LogFactory.getLog(TypeDbImpl.class);
@@ -37,28 +44,54 @@ public class TypeDbImpl implements TypeDb {
             TypeDbIndexedField.TYPE_CASE_INSENSITIVE,
             TypeDbIndexedField.TYPE_ACRONYM_CASE_INSENSITIVE,
             TypeDbIndexedField.FULL_TYPE_CASE_INSENSITIVE);
-    private final IndexReader reader;
+    private final DirectoryReader reader;
+    private final DocumentCache cache;
     private final IndexSearcher searcher;
+    private final IdLookupTable typeIds;
+    private final IdLookupTable fieldIds;
+    private final IdLookupTable methodIds;
+    private final boolean hasCompletionIndex; // false if some segment predates it
 
     public TypeDbImpl(File path) throws IOException {
-        Preconditions.checkNotNull(path);
-        reader = IndexReader.open(FSDirectory.open(path));
+        this(DirectoryReader.open(FSDirectory.open(Preconditions.checkNotNull(path))));
+    }
+
+    /** Searches an open reader. It takes over one reference of the reader, which {@link #close()} releases. */
+    public TypeDbImpl(DirectoryReader reader) throws IOException {
+        this(reader, DocumentCache.NONE);
+    }
+
+    /** Like {@link #TypeDbImpl(DirectoryReader)}, but keeps decoded types in {@code cache}. */
+    public TypeDbImpl(DirectoryReader reader, DocumentCache cache) throws IOException {
+        this.reader = Preconditions.checkNotNull(reader);
+        this.cache = Preconditions.checkNotNull(cache);
         searcher = new IndexSearcher(reader);
+        typeIds = IdLookupTable.load(reader, TypeDbIndexedField.TYPE_ID);
+        fieldIds = IdLookupTable.load(reader, TypeDbIndexedField.FIELD_ID);
+        methodIds = IdLookupTable.load(reader, TypeDbIndexedField.METHOD_ID);
+        hasCompletionIndex = hasCompletionIndex(reader);
+        if (!hasCompletionIndex) {
+            LOG.warn("TypeDb has no completion index. Completing by prefix queries.");
+        }
+    }
+
+    private static boolean hasCompletionIndex(DirectoryReader reader) throws IOException {
+        for (AtomicReaderContext leaf : reader.leaves()) {
+            if (leaf.reader().numDocs() > 0 && leaf.reader().terms(TypeDbIndexedField.COMPLETION) == null) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public ClassType getTypeById(long typeId) throws IOException {
         IdUtils.checkValid(typeId);
-        Query query = new TermQuery(new Term(TypeDbIndexedField.TYPE_ID, String.valueOf(typeId)));
-        TopDocs result = searcher.search(query, 2);
-        if (result.scoreDocs.length == 0) {
+        IdLookupTable.Entry entry = typeIds.find(typeId);
+        if (entry == null) {
             return null;
         }
-        if (result.scoreDocs.length > 1) {
-            LOG.warn("Ambiguous type id: " + typeId);
-        }
-        int docId = result.scoreDocs[0].doc;
-        return retrieveDocument(docId);
+        return retrieveDocument(entry.getDocId());
     }
 
     @Override
@@ -82,13 +115,18 @@ public class TypeDbImpl implements TypeDb {
     public List<Hit> query(String query, int n) throws IOException {
         Preconditions.checkNotNull(query);
         Preconditions.checkArgument(n >= 0);
-        BooleanQuery booleanQuery = new BooleanQuery();
-        for (String field : FIELDS_FOR_AUTO_COMPLETION) {
-            booleanQuery.add(new PrefixQuery(
-                    new Term(field, query.toLowerCase())), // case-insensitive
-                    BooleanClause.Occur.SHOULD);
+        String prefix = query.toLowerCase(); // case-insensitive
+        Query completionQuery;
+        if (hasCompletionIndex && !prefix.isEmpty() && prefix.length() <= TypeDbAnalyzer.MAX_COMPLETION_LENGTH) {
+            completionQuery = new TermQuery(new Term(TypeDbIndexedField.COMPLETION, prefix));
+        } else {
+            BooleanQuery booleanQuery = new BooleanQuery();
+            for (String field : FIELDS_FOR_AUTO_COMPLETION) {
+                booleanQuery.add(new PrefixQuery(new Term(field, prefix)), BooleanClause.Occur.SHOULD);
+            }
+            completionQuery = booleanQuery;
         }
-        TopDocs hits = searcher.search(booleanQuery, n);
+        TopDocs hits = searcher.search(completionQuery, n);
         List<Hit> result = Lists.newArrayList();
         for (ScoreDoc scoreDoc: hits.scoreDocs) {
             ClassType clazz = retrieveDocument(scoreDoc.doc);
@@ -107,10 +145,11 @@ public class TypeDbImpl implements TypeDb {
     public List<ClassType> getTypesInFile(long fileId, int n) throws IOException {
         IdUtils.checkValid(fileId);
         Query query = new TermQuery(new Term(TypeDbIndexedField.FILE_ID, String.valueOf(fileId)));
-        TopDocs hits = searcher.search(query, n);
+        DocIdCollector collector = new DocIdCollector(n);
+        searcher.search(query, collector);
         List<ClassType> result = Lists.newArrayList();
-        for (ScoreDoc scoreDoc: hits.scoreDocs) {
-            result.add(retrieveDocument(scoreDoc.doc));
+        for (int docId : collector.getDocIds()) {
+            result.add(retrieveDocument(docId));
         }
         return result;
     }
@@ -118,16 +157,73 @@ public class TypeDbImpl implements TypeDb {
     @Override
     public Variable getFieldById(long id) throws IOException {
         IdUtils.checkValid(id);
-        Query query = new TermQuery(new Term(TypeDbIndexedField.FIELD_ID, String.valueOf(id)));
-        TopDocs hits = searcher.search(query, 2);
-        if (hits.scoreDocs.length == 0) {
+        IdLookupTable.Entry entry = fieldIds.find(id);
+        if (entry == null) {
             return null;
         }
-        if (hits.scoreDocs.length > 1) {
-            LOG.warn("Ambiguous field id: " + id);
+        return getField(retrieveDocument(entry.getDocId()), entry.getPosition(), id);
+    }
+
+    @Override
+    public Method getMethodById(long id) throws IOException {
+        IdUtils.checkValid(id);
+        IdLookupTable.Entry entry = methodIds.find(id);
+        if (entry == null) {
+            return null;
+        }
+        return getMethod(retrieveDocument(entry.getDocId()), entry.getPosition(), id);
+    }
+
+    @Override
+    public List<ClassType> getTypesByIds(List<Long> ids) throws IOException {
+        long[] idArray = checkValid(ids);
+        IdLookupTable.Entry[] entries = typeIds.findAll(idArray);
+        Map<Integer, ClassType> types = retrieveDocuments(entries);
+        List<ClassType> result = Lists.newArrayListWithCapacity(entries.length);
+        for (IdLookupTable.Entry entry : entries) {
+            result.add(entry == null ? null : types.get(entry.getDocId()));
+        }
+        return result;
+    }
+
+    @Override
+    public List<Variable> getFieldsByIds(List<Long> ids) throws IOException {
+        long[] idArray = checkValid(ids);
+        IdLookupTable.Entry[] entries = fieldIds.findAll(idArray);
+        Map<Integer, ClassType> types = retrieveDocuments(entries);
+        List<Variable> result = Lists.newArrayListWithCapacity(entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            IdLookupTable.Entry entry = entries[i];
+            result.add(entry == null ? null : getField(types.get(entry.getDocId()), entry.getPosition(), idArray[i]));
+        }
+        return result;
+    }
+
+    @Override
+    public List<Method> getMethodsByIds(List<Long> ids) throws IOException {
+        long[] idArray = checkValid(ids);
+        IdLookupTable.Entry[] entries = methodIds.findAll(idArray);
+        Map<Integer, ClassType> types = retrieveDocuments(entries);
+        List<Method> result = Lists.newArrayListWithCapacity(entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            IdLookupTable.Entry entry = entries[i];
+            result.add(entry == null ? null : getMethod(types.get(entry.getDocId()), entry.getPosition(), idArray[i]));
         }
-        ClassType classType = retrieveDocument(hits.scoreDocs[0].doc);
-        for (Variable field : classType.getFieldsList()) {
+        return result;
+    }
+
+    private static long[] checkValid(List<Long> ids) {
+        Preconditions.checkNotNull(ids);
+        long[] idArray = Longs.toArray(ids);
+        for (long id : idArray) {
+            IdUtils.checkValid(id);
+        }
+        return idArray;
+    }
+
+    private static Variable getField(ClassType classType, int position, long id) {
+        if (position < classType.getFieldsCount()) {
+            Variable field = classType.getFields(position);
             if (field.getHandle().getId() == id) {
                 return field;
             }
@@ -136,19 +232,9 @@ public class TypeDbImpl implements TypeDb {
         return null;
     }
 
-    @Override
-    public Method getMethodById(long id) throws IOException {
-        IdUtils.checkValid(id);
-        Query query = new TermQuery(new Term(TypeDbIndexedField.METHOD_ID, String.valueOf(id)));
-        TopDocs hits = searcher.search(query, 2);
-        if (hits.scoreDocs.length == 0) {
-            return null;
-        }
-        if (hits.scoreDocs.length > 1) {
-            LOG.warn("Ambiguous method id: " + id);
-        }
-        ClassType classType = retrieveDocument(hits.scoreDocs[0].doc);
-        for (Method method : classType.getMethodsList()) {
+    private static Method getMethod(ClassType classType, int position, long id) {
+        if (position < classType.getMethodsCount()) {
+            Method method = classType.getMethods(position);
             if (method.getHandle().getId() == id) {
                 return method;
             }
@@ -159,15 +245,34 @@ public class TypeDbImpl implements TypeDb {
 
     @Override
     public void close() throws IOException {
-        reader.close();
+        reader.decRef();
     }
 
-    private ClassType retrieveDocument(int docId) throws IOException {
-        Document document = reader.document(docId);
-        BytesRef bytesRef = document.getBinaryValue(TypeDbIndexedField.TYPE_DATA);
-        TypeData typeData = TypeData.parseFrom(
-                SnappyUtils.uncompress(bytesRef.bytes, bytesRef.offset, bytesRef.length));
-        return typeData.getClassType();
+    /** Reads the documents of entries in index order, each once. */
+    private Map<Integer, ClassType> retrieveDocuments(IdLookupTable.Entry[] entries) throws IOException {
+        Map<Integer, ClassType> types = Maps.newTreeMap();
+        for (IdLookupTable.Entry entry : entries) {
+            if (entry != null) {
+                types.put(entry.getDocId(), null);
+            }
+        }
+        for (Map.Entry<Integer, ClassType> type : types.entrySet()) {
+            type.setValue(retrieveDocument(type.getKey()));
+        }
+        return types;
+    }
+
+    private ClassType retrieveDocument(final int docId) throws IOException {
+        return cache.get(reader, docId, TypeDbIndexedField.TYPE_DATA, new Callable<ClassType>() {
+            @Override
+            public ClassType call() throws IOException {
+                Document document = reader.document(docId);
+                BytesRef bytesRef = document.getBinaryValue(TypeDbIndexedField.TYPE_DATA);
+                TypeData typeData = TypeData.parseFrom(
+                        BlobCodecs.decode(bytesRef.bytes, bytesRef.offset, bytesRef.length));
+                return typeData.getClassType();
+            }
+        });
     }
 
 }
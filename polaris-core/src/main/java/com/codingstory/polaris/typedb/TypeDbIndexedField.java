@@ -7,8 +7,10 @@ public class TypeDbIndexedField {
     public static String FULL_TYPE = "FullType";
     public static String FULL_TYPE_CASE_INSENSITIVE = "FullTypeCaseInsensitive";
     public static String TYPE_ACRONYM_CASE_INSENSITIVE = "TypeAcronymCaseInsensitive";
+    public static String COMPLETION = "Completion"; // prefixes of names, acronyms and subwords, not stored
     public static String FILE_ID = "FileId";
     public static String TYPE_DATA = "TypeData";
+    public static String TYPE_SUMMARY = "TypeSummary"; // type without members, doc values
     public static String FIELD_ID = "FieldId";
     public static String METHOD_ID = "MethodId";
 }
@@ -1,11 +1,16 @@
 package com.codingstory.polaris.typedb;
 
+import com.codingstory.polaris.indexing.DbWriter;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 
-import java.io.Closeable;
 import java.io.IOException;
 
-public interface TypeDbWriter extends Closeable {
+public interface TypeDbWriter extends DbWriter {
     void write(ClassType type) throws IOException;
-    void flush() throws IOException;
+
+    /** Replaces the type having the same id. */
+    void update(ClassType type) throws IOException;
+
+    /** Deletes all types declared in a file. */
+    void deleteFile(long fileId) throws IOException;
 }
@@ -1,6 +1,9 @@
 package com.codingstory.polaris.typedb;
 
-import com.codingstory.polaris.SnappyUtils;
+import com.codingstory.polaris.BlobCodec;
+import com.codingstory.polaris.BlobCodecs;
+import com.codingstory.polaris.indexing.AbstractDbWriter;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.Method;
@@ -8,27 +11,44 @@ import com.codingstory.polaris.parser.ParserProtos.Variable;
 import com.codingstory.polaris.parser.TypeUtils;
 import com.codingstory.polaris.typedb.TypeDbProtos.TypeData;
 import com.google.common.base.Preconditions;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.Version;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.File;
 import java.io.IOException;
 
-public class TypeDbWriterImpl implements TypeDbWriter {
-    private final IndexWriter writer;
+public class TypeDbWriterImpl extends AbstractDbWriter implements TypeDbWriter {
+    private final BlobCodec codec;
 
     public TypeDbWriterImpl(File path) throws IOException {
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, new TypeDbAnalyzer());
-        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-        this.writer = new IndexWriter(FSDirectory.open(path), config);
+        this(path, new IndexWriterOptions());
+    }
+
+    public TypeDbWriterImpl(File path, IndexWriterOptions options) throws IOException {
+        super(path, new TypeDbAnalyzer(), options);
+        codec = options.getTypeBlobCodec();
     }
 
     @Override
     public void write(ClassType type) throws IOException {
+        writer.addDocument(createDocument(type));
+    }
+
+    @Override
+    public void update(ClassType type) throws IOException {
+        Term term = new Term(TypeDbIndexedField.TYPE_ID, String.valueOf(type.getHandle().getId()));
+        writer.updateDocument(term, createDocument(type));
+    }
+
+    @Override
+    public void deleteFile(long fileId) throws IOException {
+        writer.deleteDocuments(new Term(TypeDbIndexedField.FILE_ID, String.valueOf(fileId)));
+    }
+
+    private Document createDocument(ClassType type) {
         Preconditions.checkNotNull(type);
         Document document = new Document();
         ClassTypeHandle handle = type.getHandle();
@@ -44,7 +64,10 @@ public class TypeDbWriterImpl implements TypeDbWriter {
         document.add(new Field(TypeDbIndexedField.TYPE_CASE_INSENSITIVE, simpleTypeName.toLowerCase(),
                 Field.Store.YES, Field.Index.ANALYZED));
         document.add(new Field(TypeDbIndexedField.TYPE_ACRONYM_CASE_INSENSITIVE,
-                getAcronym(simpleTypeName).toLowerCase(), Field.Store.YES, Field.Index.ANALYZED));
+                TypeUtils.getAcronym(simpleTypeName).toLowerCase(), Field.Store.YES, Field.Index.ANALYZED));
+        document.add(new Field(TypeDbIndexedField.COMPLETION, typeName, Field.Store.NO, Field.Index.ANALYZED));
+        document.add(new Field(TypeDbIndexedField.COMPLETION, TypeUtils.getAcronym(simpleTypeName),
+                Field.Store.NO, Field.Index.ANALYZED));
         document.add(new Field(TypeDbIndexedField.FILE_ID, String.valueOf(type.getJumpTarget().getFile().getId()),
                 Field.Store.YES, org.apache.lucene.document.Field.Index.ANALYZED));
         for (Variable field : type.getFieldsList()) {
@@ -58,30 +81,15 @@ public class TypeDbWriterImpl implements TypeDbWriter {
         TypeData typeData = TypeData.newBuilder()
                 .setClassType(type)
                 .build();
-        byte[] typeDataBinary = SnappyUtils.compress(typeData.toByteArray());
+        byte[] typeDataBinary = BlobCodecs.encode(codec, typeData);
         document.add(new Field(TypeDbIndexedField.TYPE_DATA, typeDataBinary));
-        writer.addDocument(document);
-    }
-
-    @Override
-    public void flush() throws IOException {
-        writer.commit();
-        writer.forceMerge(1);
-    }
-
-    @Override
-    public void close() throws IOException {
-        writer.close();
-    }
-
-    private static String getAcronym(String word) {
-        StringBuilder acronym = new StringBuilder();
-        for (int i = 0; i < word.length(); i++) {
-            char ch = word.charAt(i);
-            if (Character.isUpperCase(ch)) {
-                acronym.append(ch);
-            }
-        }
-        return acronym.toString();
+        ClassType summary = ClassType.newBuilder()
+                .setHandle(handle)
+                .setKind(type.getKind())
+                .setJumpTarget(type.getJumpTarget())
+                .setUseCount(type.getUseCount())
+                .build();
+        document.add(new BinaryDocValuesField(TypeDbIndexedField.TYPE_SUMMARY, new BytesRef(summary.toByteArray())));
+        return document;
     }
 }
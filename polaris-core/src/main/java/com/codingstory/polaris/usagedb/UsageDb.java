@@ -5,8 +5,25 @@ import com.codingstory.polaris.parser.ParserProtos.Usage;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 public interface UsageDb extends Closeable {
     List<Usage> query(Usage.Kind kind, long id) throws IOException;
+
+    /**
+     * Returns usages of an entity starting from {@code cursor}, or from the first one if it is {@code null}. Usages
+     * are ordered by {@link com.codingstory.polaris.parser.TypeUtils#JUMP_TARGET_COMPARATOR}. A page holds at least
+     * {@code limit} usages unless it is the last one, and exceeds it only by usages of the same jump target.
+     */
+    UsagePage query(Usage.Kind kind, long id, String cursor, int limit) throws IOException;
+
+    /** Counts usages of an entity by project. */
+    Map<String, Long> countUsagesByProject(Usage.Kind kind, long id) throws IOException;
+
+    long countUsagesInFile(Usage.Kind kind, long id, long fileId) throws IOException;
+
     List<Usage> findUsagesInFile(long fileId) throws IOException;
+
+    /** Returns usages in each file, in the order of {@code fileIds}. */
+    List<List<Usage>> findUsagesInFiles(List<Long> fileIds) throws IOException;
 }
@@ -1,65 +1,197 @@
 package com.codingstory.polaris.usagedb;
 
-import com.codingstory.polaris.SnappyUtils;
+import com.codingstory.polaris.BlobCodecs;
 import com.codingstory.polaris.parser.ParserProtos.Usage;
 import com.codingstory.polaris.parser.TypeUtils;
+import com.codingstory.polaris.search.DocumentCache;
 import com.codingstory.polaris.usagedb.UsageDbProtos.UsageData;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.BinaryDocValues;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
+import com.google.common.collect.Maps;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 public class UsageDbImpl implements UsageDb {
-    private final IndexReader reader;
-    private final IndexSearcher searcher;
+    private final DirectoryReader reader;
+    private final DocumentCache cache;
 
     public UsageDbImpl(File path) throws IOException {
-        Preconditions.checkNotNull(path);
-        reader = IndexReader.open(FSDirectory.open(path));
-        searcher = new IndexSearcher(reader);
+        this(DirectoryReader.open(FSDirectory.open(Preconditions.checkNotNull(path))));
+    }
+
+    /** Searches an open reader. It takes over one reference of the reader, which {@link #close()} releases. */
+    public UsageDbImpl(DirectoryReader reader) {
+        this(reader, DocumentCache.NONE);
+    }
+
+    /** Like {@link #UsageDbImpl(DirectoryReader)}, but keeps decoded usages in {@code cache}. */
+    public UsageDbImpl(DirectoryReader reader, DocumentCache cache) {
+        this.reader = Preconditions.checkNotNull(reader);
+        this.cache = Preconditions.checkNotNull(cache);
     }
 
     @Override
     public List<Usage> query(Usage.Kind kind, long id) throws IOException {
-        BooleanQuery query = new BooleanQuery();
-        query.add(new TermQuery(new Term(UsageDbIndexedField.KIND, String.valueOf(kind.getNumber()))),
-                BooleanClause.Occur.MUST);
-        query.add(new TermQuery(new Term(UsageDbIndexedField.ID, String.valueOf(id))), BooleanClause.Occur.MUST);
-        TopDocs result = searcher.search(query, Integer.MAX_VALUE);
+        return query(kind, id, null, Integer.MAX_VALUE).getUsages();
+    }
+
+    @Override
+    public UsagePage query(Usage.Kind kind, long id, String cursor, int limit) throws IOException {
+        Preconditions.checkNotNull(kind);
+        Preconditions.checkArgument(limit > 0);
+        String prefix = UsageKeys.prefixOf(kind, id);
+        if (cursor != null && !cursor.startsWith(prefix)) {
+            throw new IllegalArgumentException("Bad cursor for " + kind + " " + id + ": " + cursor);
+        }
         List<Usage> usages = Lists.newArrayList();
-        for (ScoreDoc scoreDoc : result.scoreDocs) {
-            usages.add(retrieveDocument(scoreDoc.doc));
+        TermsEnum termsEnum = seekCeil(UsageDbIndexedField.SORT_KEY, cursor != null ? cursor : prefix, prefix);
+        if (termsEnum == null) {
+            return new UsagePage(usages, null);
         }
-        sortUsagesByJumpTarget(usages);
-        return usages;
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        UsageDataVisitor visitor = new UsageDataVisitor();
+        DocsEnum docs = null;
+        // Usages sharing a sort key are not split, so that the next page can start right at a key.
+        do {
+            docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+            int doc = docs.nextDoc();
+            if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+                continue; // all deleted
+            }
+            if (usages.size() >= limit) {
+                return new UsagePage(usages, termsEnum.term().utf8ToString());
+            }
+            for (; doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc()) {
+                usages.add(retrieveUsage(doc, visitor));
+            }
+        } while (nextWithPrefix(termsEnum, prefix));
+        return new UsagePage(usages, null);
+    }
+
+    @Override
+    public Map<String, Long> countUsagesByProject(Usage.Kind kind, long id) throws IOException {
+        String prefix = UsageKeys.prefixOf(kind, id);
+        Map<String, Long> counts = Maps.newTreeMap();
+        TermsEnum termsEnum = seekCeil(UsageDbIndexedField.PROJECT_KEY, prefix, prefix);
+        if (termsEnum == null) {
+            return counts;
+        }
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        DocsEnum docs = null;
+        do {
+            docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+            long count = countDocs(docs);
+            if (count > 0) {
+                counts.put(termsEnum.term().utf8ToString().substring(prefix.length()), count);
+            }
+        } while (nextWithPrefix(termsEnum, prefix));
+        return counts;
+    }
+
+    @Override
+    public long countUsagesInFile(Usage.Kind kind, long id, long fileId) throws IOException {
+        Terms terms = MultiFields.getTerms(reader, UsageDbIndexedField.FILE_KEY);
+        if (terms == null) {
+            return 0;
+        }
+        TermsEnum termsEnum = terms.iterator(null);
+        if (!termsEnum.seekExact(new BytesRef(UsageKeys.fileKeyOf(kind, id, fileId)), true)) {
+            return 0;
+        }
+        return countDocs(termsEnum.docs(MultiFields.getLiveDocs(reader), null, DocsEnum.FLAG_NONE));
     }
 
     @Override
     public List<Usage> findUsagesInFile(long fileId) throws IOException {
-        TermQuery query = new TermQuery(new Term(UsageDbIndexedField.FILE_ID, String.valueOf(fileId)));
-        TopDocs result = searcher.search(query, Integer.MAX_VALUE);
-        List<Usage> usages = Lists.newArrayListWithCapacity(result.scoreDocs.length);
-        for (ScoreDoc scoreDoc : result.scoreDocs) {
-            usages.add(retrieveDocument(scoreDoc.doc));
+        return Iterables.getOnlyElement(findUsagesInFiles(ImmutableList.of(fileId)));
+    }
+
+    /** Visits the terms of each segment in one forward pass, after sorting them. */
+    @Override
+    public List<List<Usage>> findUsagesInFiles(List<Long> fileIds) throws IOException {
+        Preconditions.checkNotNull(fileIds);
+        Map<String, List<Usage>> usagesByTerm = Maps.newTreeMap();
+        for (long fileId : fileIds) {
+            usagesByTerm.put(String.valueOf(fileId), Lists.<Usage>newArrayList());
         }
-        sortUsagesByJumpTarget(usages);
-        return usages;
+        UsageDataVisitor visitor = new UsageDataVisitor();
+        for (AtomicReaderContext leaf : reader.leaves()) {
+            AtomicReader leafReader = leaf.reader();
+            Terms terms = leafReader.terms(UsageDbIndexedField.FILE_ID);
+            if (terms == null) {
+                continue;
+            }
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docs = null;
+            for (Map.Entry<String, List<Usage>> entry : usagesByTerm.entrySet()) {
+                if (!termsEnum.seekExact(new BytesRef(entry.getKey()), true)) {
+                    continue;
+                }
+                docs = termsEnum.docs(leafReader.getLiveDocs(), docs, DocsEnum.FLAG_NONE);
+                for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc()) {
+                    entry.getValue().add(retrieveUsage(leaf.docBase + doc, visitor));
+                }
+            }
+        }
+        List<List<Usage>> result = Lists.newArrayListWithCapacity(fileIds.size());
+        for (long fileId : fileIds) {
+            List<Usage> usages = usagesByTerm.get(String.valueOf(fileId));
+            sortUsagesByJumpTarget(usages);
+            result.add(usages);
+        }
+        return result;
+    }
+
+    /**
+     * Positions a merged view of all segments' terms of {@code field} at the first term not before {@code target}.
+     * Returns {@code null} if there is no such term starting with {@code prefix}.
+     */
+    private TermsEnum seekCeil(String field, String target, String prefix) throws IOException {
+        Terms terms = MultiFields.getTerms(reader, field);
+        if (terms == null) {
+            return null;
+        }
+        TermsEnum termsEnum = terms.iterator(null);
+        if (termsEnum.seekCeil(new BytesRef(target), true) == TermsEnum.SeekStatus.END
+                || !StringHelper.startsWith(termsEnum.term(), new BytesRef(prefix))) {
+            return null;
+        }
+        return termsEnum;
+    }
+
+    private static boolean nextWithPrefix(TermsEnum termsEnum, String prefix) throws IOException {
+        BytesRef term = termsEnum.next();
+        return term != null && StringHelper.startsWith(term, new BytesRef(prefix));
+    }
+
+    private static long countDocs(DocsEnum docs) throws IOException {
+        long count = 0;
+        while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            count++;
+        }
+        return count;
     }
 
     private void sortUsagesByJumpTarget(List<Usage> usages) {
@@ -73,14 +205,42 @@ public class UsageDbImpl implements UsageDb {
 
     @Override
     public void close() throws IOException {
-        reader.close();
+        reader.decRef();
     }
 
-    private Usage retrieveDocument(int docId) throws IOException {
-        Document document = reader.document(docId);
-        BytesRef bytesRef = document.getBinaryValue(UsageDbIndexedField.USAGE_DATA);
-        UsageData usageData = UsageData.parseFrom(
-                SnappyUtils.uncompress(bytesRef.bytes, bytesRef.offset, bytesRef.length));
-        return usageData.getUsage();
+    private Usage retrieveUsage(final int docId, final UsageDataVisitor visitor) throws IOException {
+        return cache.get(reader, docId, UsageDbIndexedField.USAGE_DATA, new Callable<Usage>() {
+            @Override
+            public Usage call() throws IOException {
+                reader.document(docId, visitor);
+                return visitor.getUsage();
+            }
+        });
+    }
+
+    /** Decodes the usage of a document straight from stored bytes, skipping other stored fields. */
+    private static class UsageDataVisitor extends StoredFieldVisitor {
+        private Usage usage;
+
+        @Override
+        public Status needsField(FieldInfo fieldInfo) {
+            if (usage != null) {
+                return Status.STOP;
+            }
+            return UsageDbIndexedField.USAGE_DATA.equals(fieldInfo.name) ? Status.YES : Status.NO;
+        }
+
+        @Override
+        public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+            usage = UsageData.parseFrom(BlobCodecs.decode(value)).getUsage();
+        }
+
+        /** Returns the usage of the last visited document, and resets for the next one. */
+        public Usage getUsage() {
+            Preconditions.checkState(usage != null, "No usage data");
+            Usage result = usage;
+            usage = null;
+            return result;
+        }
     }
 }
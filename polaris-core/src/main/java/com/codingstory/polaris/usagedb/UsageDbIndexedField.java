@@ -5,4 +5,7 @@ public class UsageDbIndexedField {
     public static final String KIND = "Kind";
     public static final String FILE_ID = "FileId";
     public static final String USAGE_DATA = "UsageData";
+    public static final String SORT_KEY = "SortKey"; // see UsageKeys
+    public static final String FILE_KEY = "FileKey";
+    public static final String PROJECT_KEY = "ProjectKey";
 }
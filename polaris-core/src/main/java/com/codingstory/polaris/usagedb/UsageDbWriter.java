@@ -1,11 +1,13 @@
 package com.codingstory.polaris.usagedb;
 
+import com.codingstory.polaris.indexing.DbWriter;
 import com.codingstory.polaris.parser.ParserProtos.Usage;
 
-import java.io.Closeable;
 import java.io.IOException;
 
-public interface UsageDbWriter extends Closeable {
+public interface UsageDbWriter extends DbWriter {
     void write(Usage usage) throws IOException;
-    void flush() throws IOException;
+
+    /** Deletes all usages found in a file. */
+    void deleteFile(long fileId) throws IOException;
 }
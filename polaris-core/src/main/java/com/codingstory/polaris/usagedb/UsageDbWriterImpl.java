@@ -1,68 +1,59 @@
 package com.codingstory.polaris.usagedb;
 
-import com.codingstory.polaris.SnappyUtils;
+import com.codingstory.polaris.BlobCodec;
+import com.codingstory.polaris.BlobCodecs;
+import com.codingstory.polaris.indexing.AbstractDbWriter;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.Usage;
 import com.codingstory.polaris.usagedb.UsageDbProtos.UsageData;
 import com.google.common.base.Preconditions;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.Version;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.Term;
 
 import java.io.File;
 import java.io.IOException;
 
-public class UsageDbWriterImpl implements UsageDbWriter {
-    private IndexWriter writer;
+public class UsageDbWriterImpl extends AbstractDbWriter implements UsageDbWriter {
+    private final BlobCodec codec;
 
     public UsageDbWriterImpl(File path) throws IOException {
-        Preconditions.checkNotNull(path);
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer());
-        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-        this.writer = new IndexWriter(FSDirectory.open(path), config);
+        this(path, new IndexWriterOptions());
+    }
+
+    public UsageDbWriterImpl(File path, IndexWriterOptions options) throws IOException {
+        super(path, new KeywordAnalyzer(), options);
+        codec = options.getUsageBlobCodec();
     }
 
     @Override
     public void write(Usage usage) throws IOException {
         Preconditions.checkNotNull(usage);
         Document document = new Document();
-        long id;
-        switch (usage.getKind()) {
-            case TYPE:
-                id = usage.getType().getType().getClazz().getId();
-                break;
-            case METHOD:
-                id = usage.getMethod().getMethod().getId();
-                break;
-            case VARIABLE:
-                id = usage.getVariable().getVariable().getId();
-                break;
-            default:
-                throw new AssertionError("Unknown kind: " + usage.getKind());
-        }
+        long id = UsageKeys.idOf(usage);
         document.add(new Field(UsageDbIndexedField.ID, String.valueOf(id), Field.Store.YES, Field.Index.ANALYZED));
         document.add(new Field(UsageDbIndexedField.KIND, String.valueOf(usage.getKind().getNumber()),
                 Field.Store.YES, Field.Index.ANALYZED));
-        document.add(new Field(UsageDbIndexedField.FILE_ID, String.valueOf(usage.getJumpTarget().getFile().getId()),
+        FileHandle file = usage.getJumpTarget().getFile();
+        document.add(new Field(UsageDbIndexedField.FILE_ID, String.valueOf(file.getId()),
                 Field.Store.YES, Field.Index.ANALYZED));
+        document.add(new StringField(UsageDbIndexedField.SORT_KEY, UsageKeys.sortKeyOf(usage), Field.Store.NO));
+        document.add(new StringField(UsageDbIndexedField.FILE_KEY,
+                UsageKeys.fileKeyOf(usage.getKind(), id, file.getId()), Field.Store.NO));
+        document.add(new StringField(UsageDbIndexedField.PROJECT_KEY,
+                UsageKeys.projectKeyOf(usage.getKind(), id, file.getProject()), Field.Store.NO));
         UsageData usageData = UsageData.newBuilder()
                 .setUsage(usage)
                 .build();
-        document.add(new Field(UsageDbIndexedField.USAGE_DATA, SnappyUtils.compress(usageData.toByteArray())));
+        document.add(new Field(UsageDbIndexedField.USAGE_DATA, BlobCodecs.encode(codec, usageData)));
         writer.addDocument(document);
     }
 
     @Override
-    public void flush() throws IOException {
-        writer.commit();
-        writer.forceMerge(1);
-    }
-
-    @Override
-    public void close() throws IOException {
-        writer.close();
+    public void deleteFile(long fileId) throws IOException {
+        writer.deleteDocuments(new Term(UsageDbIndexedField.FILE_ID, String.valueOf(fileId)));
     }
 }
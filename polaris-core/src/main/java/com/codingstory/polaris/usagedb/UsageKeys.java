@@ -0,0 +1,61 @@
+package com.codingstory.polaris.usagedb;
+
+import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
+import com.codingstory.polaris.parser.ParserProtos.Span;
+import com.codingstory.polaris.parser.ParserProtos.Usage;
+import com.google.common.base.Preconditions;
+
+/**
+ * Builds the terms which UsageDb indexes for each usage. All terms of an entity start with the same prefix, so its
+ * usages are a range of the term dictionary. Numbers are in fixed-width hex, so that sort keys are ordered the same
+ * way as {@link com.codingstory.polaris.parser.TypeUtils#JUMP_TARGET_COMPARATOR}.
+ */
+final class UsageKeys {
+    private UsageKeys() {}
+
+    /** Returns the id of the type, method or variable used. */
+    public static long idOf(Usage usage) {
+        Preconditions.checkNotNull(usage);
+        switch (usage.getKind()) {
+            case TYPE:
+                return usage.getType().getType().getClazz().getId();
+            case METHOD:
+                return usage.getMethod().getMethod().getId();
+            case VARIABLE:
+                return usage.getVariable().getVariable().getId();
+            default:
+                throw new AssertionError("Unknown kind: " + usage.getKind());
+        }
+    }
+
+    public static String prefixOf(Usage.Kind kind, long id) {
+        Preconditions.checkNotNull(kind);
+        return kind.getNumber() + ":" + hex(id) + ":";
+    }
+
+    /** Returns the key by which usages of the same entity are sorted. */
+    public static String sortKeyOf(Usage usage) {
+        JumpTarget jumpTarget = usage.getJumpTarget();
+        Span span = jumpTarget.getSpan();
+        return fileKeyOf(usage.getKind(), idOf(usage), jumpTarget.getFile().getId()) + ":"
+                + hex(span.getFrom().getLine()) + hex(span.getFrom().getColumn())
+                + hex(span.getTo().getLine()) + hex(span.getTo().getColumn());
+    }
+
+    public static String fileKeyOf(Usage.Kind kind, long id, long fileId) {
+        return prefixOf(kind, id) + hex(fileId);
+    }
+
+    public static String projectKeyOf(Usage.Kind kind, long id, String project) {
+        Preconditions.checkNotNull(project);
+        return prefixOf(kind, id) + project;
+    }
+
+    private static String hex(long n) {
+        return String.format("%016x", n);
+    }
+
+    private static String hex(int n) {
+        return String.format("%08x", n);
+    }
+}
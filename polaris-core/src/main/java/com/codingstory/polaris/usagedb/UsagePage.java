@@ -0,0 +1,27 @@
+package com.codingstory.polaris.usagedb;
+
+import com.codingstory.polaris.parser.ParserProtos.Usage;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/** Some usages of an entity, and where the next page starts. */
+public class UsagePage {
+    private final List<Usage> usages;
+    private final String nextCursor;
+
+    public UsagePage(List<Usage> usages, String nextCursor) {
+        this.usages = ImmutableList.copyOf(Preconditions.checkNotNull(usages));
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Usage> getUsages() {
+        return usages;
+    }
+
+    /** Returns the cursor of the next page, or {@code null} if this is the last page. */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,88 @@
+package com.codingstory.polaris;
+
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlobCodecsTest {
+    private static final FileHandle HANDLE = FileHandle.newBuilder()
+            .setId(100L)
+            .setKind(FileHandle.Kind.NORMAL_FILE)
+            .setProject("project")
+            .setPath("/src/main/java/com/example/ExampleUtils.java")
+            .build();
+
+    @Test
+    public void testMessage() throws IOException {
+        for (BlobCodec codec : BlobCodecs.all()) {
+            byte[] blob = BlobCodecs.encode(codec, HANDLE);
+            assertEquals(codec, BlobCodecs.codecOf(blob, 0, blob.length));
+            assertEquals(codec.getName(), HANDLE, FileHandle.parseFrom(BlobCodecs.decode(blob)));
+        }
+    }
+
+    @Test
+    public void testString() throws IOException {
+        String large = Strings.repeat("public static void main(String[] args) {}\n", 50000);
+        for (BlobCodec codec : BlobCodecs.all()) {
+            for (String s : new String[] {"", "中文", large}) {
+                byte[] blob = BlobCodecs.encode(codec, s);
+                assertEquals(codec.getName(), s, BlobCodecs.decodeToString(blob, Charsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void testDecode_withOffset() throws IOException {
+        for (BlobCodec codec : BlobCodecs.all()) {
+            byte[] blob = BlobCodecs.encode(codec, HANDLE);
+            byte[] padded = new byte[blob.length + 5];
+            System.arraycopy(blob, 0, padded, 3, blob.length);
+            assertEquals(codec.getName(), HANDLE, FileHandle.parseFrom(BlobCodecs.decode(padded, 3, blob.length)));
+        }
+    }
+
+    @Test
+    public void testDecode_snappyWrittenBeforeCodecs() throws IOException {
+        byte[] blob = SnappyUtils.compress(HANDLE.toByteArray());
+        assertEquals(HANDLE, FileHandle.parseFrom(BlobCodecs.decode(blob)));
+        assertEquals("", BlobCodecs.decodeToString(SnappyUtils.compress(new byte[0]), Charsets.UTF_8));
+    }
+
+    @Test
+    public void testDecode_unknownCodec() {
+        try {
+            BlobCodecs.decode(new byte[] {0, 100, 0});
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testDictionary() {
+        byte[] plain = BlobCodecs.encode(BlobCodecs.DEFLATE, HANDLE);
+        byte[] withDictionary = BlobCodecs.encode(BlobCodecs.DEFLATE_USAGE, HANDLE);
+        assertTrue(withDictionary.length < plain.length);
+    }
+
+    @Test
+    public void testForName() {
+        for (BlobCodec codec : BlobCodecs.all()) {
+            assertEquals(codec, BlobCodecs.forName(codec.getName()));
+        }
+        try {
+            BlobCodecs.forName("lzma");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.codingstory.polaris;
+
+import com.codingstory.polaris.pipeline.IndexPipeline;
+
+/** Runs {@link CodeSearchEndToEndTest} against indexes built by the in-process indexer. */
+public class CodeSearchEndToEndInProcessTest extends CodeSearchEndToEndTest {
+    @Override
+    protected void configurePipeline(IndexPipeline indexPipeline) {
+        indexPipeline.setInProcess(true);
+        indexPipeline.setParallelism(4);
+    }
+}
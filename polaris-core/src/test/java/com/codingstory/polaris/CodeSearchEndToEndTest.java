@@ -9,6 +9,8 @@ import com.codingstory.polaris.parser.ParserProtos.TypeUsage;
 import com.codingstory.polaris.parser.ParserProtos.Usage;
 import com.codingstory.polaris.parser.ParserProtos.Variable;
 import com.codingstory.polaris.pipeline.IndexPipeline;
+import com.codingstory.polaris.repo.GitUtils;
+import com.codingstory.polaris.repo.Repository;
 import com.codingstory.polaris.search.CodeSearchImpl;
 import com.codingstory.polaris.search.SearchProtos.CodeSearch;
 import com.codingstory.polaris.search.SearchProtos.GetTypeRequest;
@@ -22,6 +24,8 @@ import com.codingstory.polaris.search.SearchProtos.SearchRequest;
 import com.codingstory.polaris.search.SearchProtos.SearchResponse;
 import com.codingstory.polaris.search.SearchProtos.SourceRequest;
 import com.codingstory.polaris.search.SearchProtos.SourceResponse;
+import com.codingstory.polaris.search.SearchProtos.SourcesRequest;
+import com.codingstory.polaris.search.SearchProtos.SourcesResponse;
 import com.codingstory.polaris.search.SearchProtos.StatusCode;
 import com.codingstory.polaris.typedb.TypeDb;
 import com.codingstory.polaris.typedb.TypeDbImpl;
@@ -31,6 +35,7 @@ import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import com.google.protobuf.ServiceException;
 import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -40,6 +45,7 @@ import java.util.List;
 
 import static com.codingstory.polaris.TestUtils.assertEqualsIgnoreOrder;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class CodeSearchEndToEndTest {
@@ -146,6 +152,10 @@ public class CodeSearchEndToEndTest {
                 .build();
         ListUsagesResponse resp = searcher.listUsages(NoOpController.getInstance(), req);
         assertEquals(StatusCode.OK, resp.getStatus());
+        assertFalse(resp.hasNextCursor());
+        assertEquals(resp.getUsagesCount(), resp.getCount());
+        assertEquals("project", Iterables.getOnlyElement(resp.getProjectCountsList()).getProject());
+        assertEquals(2, resp.getFileCountsCount());
         boolean found = false;
         for (Usage usage : resp.getUsagesList()) {
             if (usage.getKind() == Usage.Kind.TYPE) {
@@ -160,6 +170,34 @@ public class CodeSearchEndToEndTest {
         assertTrue(found);
     }
 
+    @Test
+    public void testListUsages_countsOnFirstPage() throws IOException, ServiceException {
+        writeFile("project/src/com/company/A.java", "package com.company;\nclass A {}");
+        writeFile("project/src/com/company/B.java", "package com.company;\nclass B {\nA a;\nA b;\n}");
+        buildIndex(ImmutableList.of("project"));
+
+        TypeDb typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+        ClassType type = Iterables.getOnlyElement(typeDb.getTypeByName("com.company.A", null, 2));
+        CodeSearch.BlockingInterface searcher = createSearcher();
+        ListUsagesRequest req = ListUsagesRequest.newBuilder()
+                .setKind(Usage.Kind.TYPE)
+                .setId(type.getHandle().getId())
+                .setLimit(1)
+                .build();
+        ListUsagesResponse first = searcher.listUsages(NoOpController.getInstance(), req);
+        assertEquals(StatusCode.OK, first.getStatus());
+        assertTrue(first.hasNextCursor());
+        assertTrue(first.getCount() > 1);
+        assertEquals(1, first.getProjectCountsCount());
+
+        ListUsagesResponse second = searcher.listUsages(NoOpController.getInstance(),
+                req.toBuilder().setCursor(first.getNextCursor()).build());
+        assertEquals(StatusCode.OK, second.getStatus());
+        assertEquals(1, second.getUsagesCount());
+        assertFalse(second.hasCount());
+        assertEquals(0, second.getProjectCountsCount());
+    }
+
     @Test
     public void testListUsages_method() throws IOException, ServiceException {
         writeFile("project/src/com/company/A.java", "package com.company;\nclass A {\nvoid f() {}\n}");
@@ -233,6 +271,99 @@ public class CodeSearchEndToEndTest {
         assertEquals(3, clazz.getUseCount());
     }
 
+    @Test
+    public void testRepository() throws Exception {
+        File workTree = new File(tempDir, "work/repo");
+        writeFile("work/repo/src/com/company/A.java", "package com.company; public class A {}");
+        writeFile("work/repo/src/com/company/B.java", "package com.company; public class B { A a; }");
+        writeFile("work/repo/src/com/company/.C.java", "class C {}");
+        writeFile("work/repo/.settings/prefs", "");
+        writeFile("work/repo/README", "Not a Java file.");
+        Git git = Git.init().setDirectory(workTree).call();
+        git.add().addFilepattern(".").call();
+        git.commit().setMessage("Initial commit.").call();
+        File repoBase = new File(tempDir, "repobase");
+        FileUtils.forceMkdir(repoBase);
+        GitUtils.mirror(new Repository("repo", workTree.getPath()), repoBase);
+        buildIndexFromRepoBase(repoBase);
+
+        CodeSearch.BlockingInterface searcher = createSearcher();
+        SourceRequest sourceReq = SourceRequest.newBuilder()
+                .setProjectName("repo")
+                .setFileName("/src/com/company/B.java")
+                .build();
+        SourceResponse sourceResp = searcher.source(NoOpController.getInstance(), sourceReq);
+        assertEquals(StatusCode.OK, sourceResp.getStatus());
+        assertEquals("package com.company; public class B { A a; }", sourceResp.getSource().getSource());
+
+        ListFilesRequest listReq = ListFilesRequest.newBuilder()
+                .setProjectName("repo")
+                .setDirectoryName("/")
+                .build();
+        ListFilesResponse listResp = searcher.listFiles(NoOpController.getInstance(), listReq);
+        assertEquals(StatusCode.OK, listResp.getStatus());
+        assertEqualsIgnoreOrder(ImmutableList.of("/src/"),
+                filterPathsByKind(listResp.getChildrenList(), FileHandle.Kind.DIRECTORY));
+        assertTrue(filterPathsByKind(listResp.getChildrenList(), FileHandle.Kind.NORMAL_FILE).isEmpty());
+
+        TypeDb typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+        ClassType clazz = Iterables.getOnlyElement(typeDb.getTypeByName("com.company.A", "repo", 2));
+        assertEquals(2, clazz.getUseCount());
+        assertTrue(typeDb.getTypeByName("C", "repo", 2).isEmpty());
+    }
+
+    @Test
+    public void testDuplicateFiles() throws IOException, ServiceException {
+        String content = "package com.company; class A { void f() { A a; } }";
+        writeFile("project1/src/A.java", content);
+        writeFile("project1/lib/A.java", content);
+        writeFile("project2/src/A.java", content);
+        buildIndex(ImmutableList.of("project1", "project2"));
+
+        // Copies in a project are indexed once, but their sources and usages are available from every path. Copies in
+        // other projects are indexed on their own, so their types are found by project.
+        TypeDb typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+        assertEquals(2, typeDb.getTypeByName("com.company.A", null, 10).size());
+        assertEquals(1, typeDb.getTypeByName("com.company.A", "project1", 10).size());
+        ClassType type = Iterables.getOnlyElement(typeDb.getTypeByName("com.company.A", "project2", 10));
+        assertEquals("project2", type.getJumpTarget().getFile().getProject());
+        CodeSearch.BlockingInterface searcher = createSearcher();
+        List<Integer> usageCounts = Lists.newArrayList();
+        List<Long> fileIds = Lists.newArrayList();
+        for (String path : ImmutableList.of("/src/A.java", "/lib/A.java")) {
+            SourceRequest req = SourceRequest.newBuilder()
+                    .setProjectName("project1")
+                    .setFileName(path)
+                    .build();
+            SourceResponse resp = searcher.source(NoOpController.getInstance(), req);
+            assertEquals(StatusCode.OK, resp.getStatus());
+            assertEquals(path, resp.getSource().getHandle().getPath());
+            assertEquals(content, resp.getSource().getSource());
+            usageCounts.add(resp.getUsagesCount());
+            fileIds.add(resp.getSource().getHandle().getId());
+        }
+        assertTrue(usageCounts.get(0) > 0);
+        assertEquals(usageCounts.get(0), usageCounts.get(1));
+
+        // Both in one batch, with a file which does not exist.
+        SourcesResponse resp = searcher.sources(NoOpController.getInstance(), SourcesRequest.newBuilder()
+                .addFileIds(fileIds.get(1))
+                .addFileIds(Long.MAX_VALUE)
+                .addFileIds(fileIds.get(0))
+                .build());
+        assertEquals(StatusCode.OK, resp.getStatus());
+        assertEquals(3, resp.getSourcesCount());
+        assertEquals("/lib/A.java", resp.getSources(0).getSource().getHandle().getPath());
+        assertEquals(StatusCode.FILE_NOT_FOUND, resp.getSources(1).getStatus());
+        assertEquals("/src/A.java", resp.getSources(2).getSource().getHandle().getPath());
+        assertEquals(content, resp.getSources(0).getSource().getSource());
+        assertEquals(usageCounts.get(1).intValue(), resp.getSources(0).getUsagesCount());
+        assertEquals(usageCounts.get(0).intValue(), resp.getSources(2).getUsagesCount());
+    }
+
+    protected void configurePipeline(IndexPipeline indexPipeline) {
+    }
+
     private CodeSearch.BlockingInterface createSearcher() throws IOException {
         return new CodeSearchImpl(indexDir);
     }
@@ -242,14 +373,25 @@ public class CodeSearchEndToEndTest {
     }
 
     private void buildIndex(List<String> projects) throws IOException {
+        buildIndex(projects, null);
+    }
+
+    private void buildIndexFromRepoBase(File repoBase) throws IOException {
+        buildIndex(ImmutableList.<String>of(), repoBase);
+    }
+
+    private void buildIndex(List<String> projects, File repoBase) throws IOException {
         IndexPipeline indexPipeline = null;
         try {
             indexPipeline = new IndexPipeline();
             indexPipeline.setIndexDirectory(indexDir);
-            // indexPipeline.setUseMemPipeline(true);
+            configurePipeline(indexPipeline);
             for (String project : projects) {
                 indexPipeline.addProjectDirectory(new File(tempDir, project));
             }
+            if (repoBase != null) {
+                indexPipeline.addRepoBase(repoBase);
+            }
             indexPipeline.run();
         } finally {
             if (indexPipeline != null) {
@@ -0,0 +1,36 @@
+package com.codingstory.polaris;
+
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HashIdGeneratorTest {
+
+    @Test
+    public void testNext() {
+        IdGenerator generator1 = new HashIdGenerator();
+        IdGenerator generator2 = new HashIdGenerator();
+        String identity = IdUtils.identityOf("type", "project", "/src/A.java", "pkg.A");
+        long id = generator1.next(identity);
+        assertTrue(id > IdGenerator.MAX_RESERVED_ID);
+        assertEquals(id, generator1.next(identity));
+        assertEquals(id, generator2.next(identity));
+    }
+
+    @Test
+    public void testNext_unique() {
+        IdGenerator generator = new HashIdGenerator();
+        Set<Long> ids = Sets.newHashSet();
+        for (int i = 0; i < 100000; i++) {
+            long id = generator.next("type:project:/A.java:C" + i);
+            assertTrue(id > IdGenerator.MAX_RESERVED_ID);
+            ids.add(id);
+            ids.add(generator.next());
+        }
+        assertEquals(200000, ids.size());
+    }
+}
@@ -0,0 +1,17 @@
+package com.codingstory.polaris;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class SnappyUtilsTest {
+    @Test
+    public void testUncompress_withOffset() {
+        byte[] data = "hello, hello, hello".getBytes(Charsets.UTF_8);
+        byte[] compressed = SnappyUtils.compress(data);
+        byte[] padded = new byte[compressed.length + 5];
+        System.arraycopy(compressed, 0, padded, 3, compressed.length);
+        assertArrayEquals(data, SnappyUtils.uncompress(padded, 3, compressed.length));
+    }
+}
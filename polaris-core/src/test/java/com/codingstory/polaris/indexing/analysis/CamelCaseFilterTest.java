@@ -0,0 +1,62 @@
+package com.codingstory.polaris.indexing.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.KeywordTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CamelCaseFilterTest {
+    @Test
+    public void testSubwords() throws IOException {
+        assertEquals(ImmutableList.of("ArrayList", "Array", "List"), analyze("ArrayList", false));
+        assertEquals(ImmutableList.of("HTTPServer2", "HTTP", "Server2"), analyze("HTTPServer2", false));
+        assertEquals(ImmutableList.of("java.util.Map", "java", "util", "Map"), analyze("java.util.Map", false));
+        assertEquals(ImmutableList.of("_MAX_VALUE", "MAX", "VALUE"), analyze("_MAX_VALUE", false));
+        assertEquals(ImmutableList.of("list"), analyze("list", false));
+    }
+
+    @Test
+    public void testSuffixes() throws IOException {
+        assertEquals(ImmutableList.of("java.io.FileReader", "io.FileReader", "FileReader", "Reader"),
+                analyze("java.io.FileReader", true));
+        assertEquals(ImmutableList.of("FIS"), analyze("FIS", true));
+    }
+
+    @Test
+    public void testOffsetsAndPositions() throws IOException {
+        TokenStream stream = new CamelCaseFilter(new KeywordTokenizer(new StringReader("InputStream")), false);
+        OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+        PositionIncrementAttribute position = stream.addAttribute(PositionIncrementAttribute.class);
+        stream.reset();
+        List<String> result = Lists.newArrayList();
+        while (stream.incrementToken()) {
+            result.add(offset.startOffset() + "-" + offset.endOffset() + "+" + position.getPositionIncrement());
+        }
+        stream.end();
+        stream.close();
+        assertEquals(ImmutableList.of("0-11+1", "0-5+0", "5-11+0"), result);
+    }
+
+    private static List<String> analyze(String text, boolean suffixes) throws IOException {
+        TokenStream stream = new CamelCaseFilter(new KeywordTokenizer(new StringReader(text)), suffixes);
+        CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+        stream.reset();
+        List<String> result = Lists.newArrayList();
+        while (stream.incrementToken()) {
+            result.add(term.toString());
+        }
+        stream.end();
+        stream.close();
+        return result;
+    }
+}
@@ -1,5 +1,6 @@
 package com.codingstory.polaris.parser;
 
+import com.codingstory.polaris.HashIdGenerator;
 import com.codingstory.polaris.IdGenerator;
 import com.codingstory.polaris.SimpleIdGenerator;
 import com.codingstory.polaris.parser.ParserProtos.ClassType;
@@ -17,6 +18,8 @@ import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import japa.parser.ast.CompilationUnit;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -24,6 +27,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 import static com.codingstory.polaris.parser.TypeUtils.handleOf;
 import static com.codingstory.polaris.parser.TypeUtils.positionOf;
@@ -191,6 +195,52 @@ public class MultiPassProcessorsTest {
         assertEquals(methodDeclaration.getJumpTarget(), methodDeclaration.getDefinitionJumpTarget());
     }
 
+    @Test
+    public void testMethod_inAnonymousClasses() throws IOException {
+        String code = "class A { void f() {\n" +
+                "new Runnable() { public void run() {} };\n" +
+                "new Runnable() { public void run() {} };\n" +
+                "} }";
+        ClassType clazz = Iterables.getOnlyElement(extractFromCode(code, new HashIdGenerator()).getClassTypes());
+        assertEquals(3, clazz.getMethodsCount());
+        Set<Long> ids = Sets.newHashSet();
+        for (Method method : clazz.getMethodsList()) {
+            assertTrue(ids.add(method.getHandle().getId()));
+        }
+    }
+
+    @Test
+    public void testClass_localClassesOfSameName() throws IOException {
+        String code = "class A {\n" +
+                "void foo() { class Local { class Inner {} } }\n" +
+                "void bar() { class Local { class Inner {} } }\n" +
+                "}";
+        Set<Long> ids = Sets.newHashSet();
+        List<ClassType> classes = extractFromCode(code, new HashIdGenerator()).getClassTypes();
+        for (ClassType clazz : classes) {
+            assertTrue(ids.add(clazz.getHandle().getId()));
+        }
+        assertEquals(5, ids.size()); // A, and Local and Inner of each method
+    }
+
+    @Test
+    public void testMethod_inLocalClasses() throws IOException {
+        String code = "class A {\n" +
+                "void f() { class L { int n; void g() {} } }\n" +
+                "void h() { class L { int n; void g() {} } }\n" +
+                "}";
+        Set<Long> ids = Sets.newHashSet();
+        for (ClassType clazz : extractFromCode(code, new HashIdGenerator()).getClassTypes()) {
+            for (Method method : clazz.getMethodsList()) {
+                assertTrue(ids.add(method.getHandle().getId()));
+            }
+            for (Variable field : clazz.getFieldsList()) {
+                assertTrue(ids.add(field.getHandle().getId()));
+            }
+        }
+        assertEquals(6, ids.size()); // f, h, and g and n of each L
+    }
+
     @Test
     public void testMethod_inEnum() throws IOException {
         String code = "enum E { SOME_VALUE; void f() {} }";
@@ -495,9 +545,49 @@ public class MultiPassProcessorsTest {
         assertEquals("List.size", usage2.getMethod().getMethod().getName());
     }
 
+    @Test
+    public void testReuseCompilationUnit() throws IOException {
+        String code = "package pkg;\nclass A { int n; void f() { g(n); } void g(int x) {} }\n" +
+                "class B { A a; void h() { a.f(); } }\n";
+        FileHandle file = FileHandle.newBuilder()
+                .setKind(FileHandle.Kind.NORMAL_FILE)
+                .setId(100L)
+                .setProject(TEST_PROJECT)
+                .setPath("/file")
+                .build();
+        IdGenerator idGenerator1 = new SimpleIdGenerator();
+        IdGenerator idGenerator2 = new SimpleIdGenerator();
+        CompilationUnit compilationUnit = ParserUtils.parse(code);
+
+        FirstPassProcessor.Result expected1 = FirstPassProcessor.process(file, code, idGenerator1);
+        FirstPassProcessor.Result actual1 = FirstPassProcessor.process(file, compilationUnit, idGenerator2);
+        assertEquals(expected1.getDiscoveredClasses(), actual1.getDiscoveredClasses());
+        assertEquals(ImportExtractor.findImports(code).getImportedClasses(),
+                ImportExtractor.findImports(compilationUnit).getImportedClasses());
+
+        SecondPassProcessor.Result expected2 = SecondPassProcessor.extract(TEST_PROJECT, file, code,
+                createSymbolTableAndRegisterClasses(expected1.getDiscoveredClasses()), idGenerator1, "pkg");
+        SecondPassProcessor.Result actual2 = SecondPassProcessor.extract(TEST_PROJECT, file, code, compilationUnit,
+                createSymbolTableAndRegisterClasses(actual1.getDiscoveredClasses()), idGenerator2, "pkg");
+        assertEquals(expected2.getClassTypes(), actual2.getClassTypes());
+        assertEquals(expected2.getUsages(), actual2.getUsages());
+
+        List<Usage> expected3 = ThirdPassProcessor.extract(file, code,
+                createSymbolTableAndRegisterClasses(expected2.getClassTypes()), "pkg", idGenerator1);
+        List<Usage> actual3 = ThirdPassProcessor.extract(file, code, compilationUnit,
+                createSymbolTableAndRegisterClasses(actual2.getClassTypes()), "pkg", idGenerator2);
+        assertFalse(actual3.isEmpty());
+        assertEquals(expected3, actual3);
+    }
+
     // TODO: testMethodCall_staticBlock()
 
     public static SecondPassProcessor.Result extractFromCode(String code) throws IOException {
+        return extractFromCode(code, ID_GENERATOR);
+    }
+
+    private static SecondPassProcessor.Result extractFromCode(String code, IdGenerator idGenerator)
+            throws IOException {
         FileHandle fakeFile = FileHandle.newBuilder()
                 .setKind(FileHandle.Kind.NORMAL_FILE)
                 .setId(100L)
@@ -507,20 +597,20 @@ public class MultiPassProcessorsTest {
         FirstPassProcessor.Result result1 = FirstPassProcessor.process(
                 fakeFile,
                 code,
-                ID_GENERATOR);
+                idGenerator);
         SecondPassProcessor.Result result2 = SecondPassProcessor.extract(
                 TEST_PROJECT,
                 fakeFile,
                 code,
                 createSymbolTableAndRegisterClasses(result1.getDiscoveredClasses()),
-                ID_GENERATOR,
+                idGenerator,
                 result1.getPackage());
         List<Usage> result3 = ThirdPassProcessor.extract(
                 fakeFile,
                 code,
                 createSymbolTableAndRegisterClasses(result2.getClassTypes()),
                 result1.getPackage(),
-                ID_GENERATOR);
+                idGenerator);
         result2.getUsages().addAll(result3); // temp hack
         return result2;
     }
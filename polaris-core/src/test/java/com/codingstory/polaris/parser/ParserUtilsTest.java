@@ -0,0 +1,146 @@
+package com.codingstory.polaris.parser;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import japa.parser.ast.CompilationUnit;
+import japa.parser.ast.body.BodyDeclaration;
+import japa.parser.ast.body.TypeDeclaration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParserUtilsTest {
+    private static final Log LOG = LogFactory.getLog(ParserUtilsTest.class);
+    private static final int SOURCE_COUNT = 200;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void testParse() throws IOException {
+        CompilationUnit unit = ParserUtils.parse("package pkg;\nclass A { int x; void f() {} }\n");
+        assertEquals("pkg", unit.getPackage().getName().toString());
+        TypeDeclaration type = unit.getTypes().get(0);
+        assertEquals("A", type.getName());
+        assertEquals(2, type.getMembers().size());
+    }
+
+    @Test
+    public void testParse_error() throws IOException {
+        try {
+            ParserUtils.parse("class {");
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        // The parser should still work.
+        assertEquals("B", ParserUtils.parse("class B {}").getTypes().get(0).getName());
+    }
+
+    @Test
+    public void testParse_concurrent() throws Exception {
+        List<String> sources = generateSources(SOURCE_COUNT);
+        List<String> expected = Lists.newArrayList();
+        for (String source : sources) {
+            expected.add(fingerprint(ParserUtils.parse(source)));
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = Lists.newArrayList();
+        for (int n = 1; n < cores; n *= 2) {
+            threadCounts.add(n);
+        }
+        threadCounts.add(cores);
+        if (cores == 1) {
+            threadCounts.add(2); // Always exercise concurrent parsing.
+        }
+        for (int threads : threadCounts) {
+            long start = System.nanoTime();
+            parseConcurrently(sources, expected, threads);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            LOG.info(String.format("%d thread(s) on %d core(s): %.0f files/s",
+                    threads, cores, SOURCE_COUNT * ROUNDS / seconds));
+        }
+    }
+
+    private static void parseConcurrently(final List<String> sources, final List<String> expected, int threads)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("parser-test-%d").setDaemon(true).build());
+        try {
+            List<Future<Integer>> futures = Lists.newArrayList();
+            for (int i = 0; i < threads; i++) {
+                final int offset = i;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int mismatches = 0;
+                        // Each thread walks the sources from a different offset, so that different files are
+                        // being parsed at the same time.
+                        for (int k = 0; k < ROUNDS * sources.size(); k++) {
+                            int j = (k + offset * 7) % sources.size();
+                            if (!expected.get(j).equals(fingerprint(ParserUtils.parse(sources.get(j))))) {
+                                mismatches++;
+                            }
+                        }
+                        return mismatches;
+                    }
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(0, (int) future.get());
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        }
+    }
+
+    /** Returns a string which is identical for identical ASTs, including positions of declarations. */
+    private static String fingerprint(CompilationUnit unit) {
+        StringBuilder s = new StringBuilder(unit.toString());
+        if (unit.getTypes() != null) {
+            for (TypeDeclaration type : unit.getTypes()) {
+                s.append(ParserUtils.nodeSpan(type));
+                if (type.getMembers() != null) {
+                    for (BodyDeclaration member : type.getMembers()) {
+                        s.append(ParserUtils.nodeSpan(member));
+                    }
+                }
+            }
+        }
+        return s.toString();
+    }
+
+    private static List<String> generateSources(int n) {
+        ImmutableList.Builder<String> sources = ImmutableList.builder();
+        for (int i = 0; i < n; i++) {
+            StringBuilder s = new StringBuilder();
+            s.append("package pkg").append(i % 13).append(";\n");
+            s.append("import java.util.List;\n");
+            s.append("public class C").append(i).append(" extends Base").append(i % 5).append(" {\n");
+            for (int j = 0; j < i % 17 + 1; j++) {
+                s.append("    private List<String> field").append(j).append(";\n");
+                s.append("    public int method").append(j).append("(int a, String b) {\n");
+                s.append("        for (int k = 0; k < a; k++) { b = b + k; }\n");
+                s.append("        return b.length() * ").append(j).append(";\n");
+                s.append("    }\n");
+            }
+            s.append("    static class Inner").append(i).append(" { void g() { new C").append(i).append("(); } }\n");
+            s.append("}\n");
+            sources.add(s.toString());
+        }
+        return sources.build();
+    }
+}
@@ -0,0 +1,185 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.indexing.IndexPathUtils;
+import com.codingstory.polaris.parser.ParserProtos.ClassType;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.SourceFile;
+import com.codingstory.polaris.parser.ParserProtos.Usage;
+import com.codingstory.polaris.repo.Repository;
+import com.codingstory.polaris.sourcedb.SourceDb;
+import com.codingstory.polaris.sourcedb.SourceDbImpl;
+import com.codingstory.polaris.typedb.TypeDb;
+import com.codingstory.polaris.typedb.TypeDbImpl;
+import com.codingstory.polaris.usagedb.UsageDb;
+import com.codingstory.polaris.usagedb.UsageDbImpl;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalIndexerTest {
+    private File indexDir;
+    private File tempDir;
+
+    @Before
+    public void setUp() {
+        indexDir = Files.createTempDir();
+        tempDir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(indexDir);
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testProjectDirectory() throws IOException {
+        File project = new File(tempDir, "project");
+        writeFile(project, "src/pkg/A.java", "package pkg; public class A {}");
+        writeFile(project, "src/pkg/B.java", "package pkg; public class B { A a; }");
+        writeFile(project, "src/other/C.java", "package other; import pkg.A; public class C { A a; }");
+        writeFile(project, "src/other/D.java", "package other; public class D {}");
+        buildIndex(project);
+        long fileIdOfA = getFileId("project", "/src/pkg/A.java");
+        long typeIdOfA = getType("pkg.A").getHandle().getId();
+        long typeIdOfB = getType("pkg.B").getHandle().getId();
+        assertEquals(4, getType("pkg.A").getUseCount()); // Declaration, import and two fields.
+
+        // Rename A's class, drop the usage in B, delete D and add E.
+        writeFile(project, "src/pkg/A.java", "package pkg; public class A2 {}");
+        writeFile(project, "src/pkg/B.java", "package pkg; public class B {}");
+        FileUtils.forceDelete(new File(project, "src/other/D.java"));
+        writeFile(project, "src/other/E.java", "package other; import pkg.A2; public class E { A2 a; }");
+        buildIndex(project);
+
+        assertNull(getType("pkg.A"));
+        assertNull(getType("other.D"));
+        assertNull(getSource("project", "/src/other/D.java"));
+        assertNotNull(getSource("project", "/src/other/E.java"));
+        assertEquals("package pkg; public class A2 {}", getSource("project", "/src/pkg/A.java").getSource());
+        assertEquals(fileIdOfA, getFileId("project", "/src/pkg/A.java"));
+        ClassType a2 = getType("pkg.A2");
+        assertEquals(3, a2.getUseCount());
+        assertTrue(findTypeUsages(a2.getHandle().getId()).contains("/src/other/E.java"));
+        assertEquals(typeIdOfB, getType("pkg.B").getHandle().getId()); // B is re-indexed, but keeps its id.
+
+        // C imports the removed class, so it must have been re-indexed.
+        assertTrue(findTypeUsages(typeIdOfA).isEmpty());
+    }
+
+    @Test
+    public void testProjectDirectory_unchanged() throws IOException {
+        File project = new File(tempDir, "project");
+        writeFile(project, "src/pkg/A.java", "package pkg; public class A {}");
+        writeFile(project, "src/pkg/B.java", "package pkg; public class B { A a; }");
+        buildIndex(project);
+        ClassType before = getType("pkg.A");
+        buildIndex(project);
+        assertEquals(before, getType("pkg.A"));
+    }
+
+    @Test
+    public void testRepository() throws Exception {
+        File workTree = new File(tempDir, "repo");
+        Git git = Git.init().setDirectory(workTree).call();
+        writeFile(workTree, "src/pkg/A.java", "package pkg; public class A {}");
+        writeFile(workTree, "src/pkg/B.java", "package pkg; public class B { A a; }");
+        writeFile(workTree, "README", "Not a Java file.");
+        commitAll(git, "Initial commit.");
+        Repository repo = new Repository("repo", workTree.getPath());
+        buildIndex(repo);
+        assertEquals(2, getType("pkg.A").getUseCount());
+        assertNotNull(getType("pkg.B"));
+
+        git.rm().addFilepattern("src/pkg/B.java").call();
+        writeFile(workTree, "src/pkg/sub/C.java", "package pkg.sub; import pkg.A; public class C { A a; A b; }");
+        commitAll(git, "Second commit.");
+        buildIndex(repo);
+
+        assertNull(getType("pkg.B"));
+        assertNull(getSource("repo", "/src/pkg/B.java"));
+        assertEquals(4, getType("pkg.A").getUseCount());
+        assertNotNull(getType("pkg.sub.C"));
+        SourceDb sourceDb = new SourceDbImpl(IndexPathUtils.getSourceDbPath(indexDir));
+        try {
+            List<FileHandle> children = sourceDb.listDirectory("repo", "/src/pkg/");
+            assertEquals(2, children.size());
+        } finally {
+            sourceDb.close();
+        }
+    }
+
+    private void buildIndex(File projectDir) throws IOException {
+        IncrementalIndexer indexer = new IncrementalIndexer(indexDir, 2);
+        indexer.addProjectDirectory(projectDir);
+        indexer.run();
+    }
+
+    private void buildIndex(Repository repo) throws IOException {
+        IncrementalIndexer indexer = new IncrementalIndexer(indexDir, 2);
+        indexer.addRepository(repo);
+        indexer.run();
+    }
+
+    private static void commitAll(Git git, String message) throws Exception {
+        git.add().addFilepattern(".").call();
+        git.commit().setMessage(message).call();
+    }
+
+    private static void writeFile(File base, String path, String content) throws IOException {
+        File file = new File(base, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+    }
+
+    private ClassType getType(String name) throws IOException {
+        TypeDb typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(indexDir));
+        try {
+            List<ClassType> types = typeDb.getTypeByName(name, null, 2);
+            return types.isEmpty() ? null : Iterables.getOnlyElement(types);
+        } finally {
+            typeDb.close();
+        }
+    }
+
+    private SourceFile getSource(String project, String path) throws IOException {
+        SourceDb sourceDb = new SourceDbImpl(IndexPathUtils.getSourceDbPath(indexDir));
+        try {
+            return sourceDb.querySourceByPath(project, path);
+        } finally {
+            sourceDb.close();
+        }
+    }
+
+    private long getFileId(String project, String path) throws IOException {
+        return getSource(project, path).getHandle().getId();
+    }
+
+    private List<String> findTypeUsages(long typeId) throws IOException {
+        UsageDb usageDb = new UsageDbImpl(IndexPathUtils.getUsageDbPath(indexDir));
+        try {
+            List<String> paths = Lists.newArrayList();
+            for (Usage usage : usageDb.query(Usage.Kind.TYPE, typeId)) {
+                paths.add(usage.getJumpTarget().getFile().getPath());
+            }
+            return paths;
+        } finally {
+            usageDb.close();
+        }
+    }
+}
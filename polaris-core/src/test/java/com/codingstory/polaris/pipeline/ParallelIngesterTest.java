@@ -0,0 +1,204 @@
+package com.codingstory.polaris.pipeline;
+
+import com.codingstory.polaris.SimpleIdGenerator;
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.pipeline.PipelineProtos.DuplicateFile;
+import com.codingstory.polaris.pipeline.PipelineProtos.FileContent;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelIngesterTest {
+    private static final int PROJECTS = 8;
+    private static final int FILES_PER_PROJECT = 50;
+
+    private File tempDir;
+
+    @Before
+    public void setUp() {
+        tempDir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testRun() throws IOException {
+        ParallelIngester ingester = new ParallelIngester(new SimpleIdGenerator(), 4, 1);
+        for (int i = 0; i < PROJECTS; i++) {
+            File project = new File(tempDir, "project" + i);
+            for (int j = 0; j < FILES_PER_PROJECT; j++) {
+                writeFile(project, "src/C" + j + ".java", "class C" + j + " { int p" + i + "; }");
+            }
+            writeFile(project, ".hidden.java", "class Hidden {}");
+            ingester.addProjectDirectory(project);
+        }
+
+        CollectingSink sink = new CollectingSink();
+        ingester.run(sink);
+        List<FileContent> files = sink.files;
+        List<FileHandle> dirs = sink.dirs;
+
+        assertEquals(PROJECTS * FILES_PER_PROJECT, files.size());
+        assertEquals(PROJECTS * 2, dirs.size()); // "/" and "/src/"
+        assertTrue(sink.duplicates.isEmpty());
+        Set<Long> ids = Sets.newHashSet();
+        for (FileContent file : files) {
+            String name = file.getFile().getPath().substring("/src/".length()).replace(".java", "");
+            String project = file.getFile().getProject();
+            assertEquals("class " + name + " { int p" + project.substring("project".length()) + "; }",
+                    file.getContent());
+            ids.add(file.getFile().getId());
+        }
+        for (FileHandle dir : dirs) {
+            ids.add(dir.getId());
+        }
+        assertEquals(files.size() + dirs.size(), ids.size());
+    }
+
+    @Test
+    public void testRun_duplicates() throws IOException {
+        ParallelIngester ingester = new ParallelIngester(new SimpleIdGenerator(), 4, 1);
+        for (int i = 0; i < PROJECTS; i++) {
+            File project = new File(tempDir, "project" + i);
+            writeFile(project, "b/Same.java", "class Same {}");
+            writeFile(project, "a/Same.java", "class Same {}");
+            writeFile(project, "Different.java", "class Different { int p" + i + "; }");
+            ingester.addProjectDirectory(project);
+        }
+
+        // Copies in a project share one original, but copies in other projects do not.
+        CollectingSink sink = new CollectingSink();
+        ingester.run(sink);
+        assertEquals(PROJECTS * 2, sink.files.size());
+        assertEquals(PROJECTS, sink.duplicates.size());
+        Map<String, Long> originalIds = Maps.newHashMap();
+        for (FileContent file : sink.files) {
+            if (file.getContent().equals("class Same {}")) {
+                assertEquals("/a/Same.java", file.getFile().getPath()); // the lowest, whichever is read first
+                assertNull(originalIds.put(file.getFile().getProject(), file.getFile().getId()));
+            }
+        }
+        for (DuplicateFile duplicate : sink.duplicates) {
+            assertEquals("/b/Same.java", duplicate.getFile().getPath());
+            assertEquals(originalIds.get(duplicate.getFile().getProject()).longValue(),
+                    duplicate.getOriginalFileId());
+        }
+    }
+
+    @Test
+    public void testRun_sinkFails() throws IOException {
+        ParallelIngester ingester = new ParallelIngester(new SimpleIdGenerator(), 2, 1);
+        for (int i = 0; i < PROJECTS; i++) {
+            File project = new File(tempDir, "project" + i);
+            for (int j = 0; j < FILES_PER_PROJECT; j++) {
+                writeFile(project, "C" + j + ".java", "");
+            }
+            ingester.addProjectDirectory(project);
+        }
+        try {
+            ingester.run(new ParallelIngester.Sink() {
+                @Override
+                public void writeFile(FileContent file) throws IOException {
+                    throw new IOException("Disk full");
+                }
+
+                @Override
+                public void writeDirectory(FileHandle dir) {
+                }
+
+                @Override
+                public void writeDuplicateFile(DuplicateFile file) {
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRun_readerFails() throws IOException {
+        ParallelIngester ingester = new ParallelIngester(new SimpleIdGenerator(), 2, 1);
+        ingester.addProjectDirectory(new File(tempDir, "missing"));
+        try {
+            ingester.run(new ParallelIngester.Sink() {
+                @Override
+                public void writeFile(FileContent file) {
+                }
+
+                @Override
+                public void writeDirectory(FileHandle dir) {
+                }
+
+                @Override
+                public void writeDuplicateFile(DuplicateFile file) {
+                }
+            });
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testReadFile() throws IOException {
+        File empty = writeFile(tempDir, "Empty.java", "");
+        assertEquals("", ParallelIngester.readFile(empty));
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            s.append("class C").append(i).append(" {}\n");
+        }
+        File large = writeFile(tempDir, "Large.java", s.toString());
+        assertEquals(s.toString(), ParallelIngester.readFile(large));
+        assertTrue(ParallelIngester.isHidden("/src/.git/"));
+        assertTrue(!ParallelIngester.isHidden("/src/.git/A.java"));
+    }
+
+    private static class CollectingSink implements ParallelIngester.Sink {
+        private final List<FileContent> files = Lists.newArrayList();
+        private final List<FileHandle> dirs = Lists.newArrayList();
+        private final List<DuplicateFile> duplicates = Lists.newArrayList();
+
+        @Override
+        public void writeFile(FileContent file) {
+            files.add(file);
+        }
+
+        @Override
+        public void writeDirectory(FileHandle dir) {
+            dirs.add(dir);
+        }
+
+        @Override
+        public void writeDuplicateFile(DuplicateFile file) {
+            duplicates.add(file);
+        }
+    }
+
+    private static File writeFile(File base, String path, String content) throws IOException {
+        File file = new File(base, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
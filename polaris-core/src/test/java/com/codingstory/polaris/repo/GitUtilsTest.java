@@ -0,0 +1,87 @@
+package com.codingstory.polaris.repo;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class GitUtilsTest {
+    private File tempDir;
+
+    @Before
+    public void setUp() {
+        tempDir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testReadTree() throws Exception {
+        File workTree = new File(tempDir, "work");
+        Git git = Git.init().setDirectory(workTree).call();
+        writeFile(workTree, "src/pkg/A.java", "class A {}");
+        writeFile(workTree, "src/pkg/sub/B.java", "class B {}");
+        writeFile(workTree, "README", "Not a Java file.");
+        git.add().addFilepattern(".").call();
+        git.commit().setMessage("Initial commit.").call();
+        File repoBase = new File(tempDir, "repobase");
+        FileUtils.forceMkdir(repoBase);
+        Repository mirror = GitUtils.mirror(new Repository("repo", workTree.getPath()), repoBase);
+
+        final List<String> dirs = Lists.newArrayList();
+        final Map<String, String> files = Maps.newTreeMap();
+        GitUtils.readTree(mirror, GitUtils.getHeadCommit(mirror), ".java", new GitUtils.TreeVisitor() {
+            @Override
+            public void visitDirectory(String path) {
+                dirs.add(path);
+            }
+
+            @Override
+            public void visitFile(String path, String blobId, byte[] content) {
+                assertEquals(GitUtils.getBlobId(content), blobId);
+                files.put(path, new String(content, Charsets.UTF_8));
+            }
+        });
+        assertEquals(ImmutableList.of("/", "/src/", "/src/pkg/", "/src/pkg/sub/"), dirs);
+        assertEquals(ImmutableMap.of("/src/pkg/A.java", "class A {}", "/src/pkg/sub/B.java", "class B {}"), files);
+    }
+
+    @Test
+    public void testGetBlobId() {
+        // Same as "git hash-object".
+        assertEquals("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391", GitUtils.getBlobId(new byte[0]));
+        assertEquals("ce013625030ba8dba906f756967f9e9ca394464a",
+                GitUtils.getBlobId("hello\n".getBytes(Charsets.UTF_8)));
+    }
+
+    @Test
+    public void testGetHeadCommit_empty() throws Exception {
+        File workTree = new File(tempDir, "empty");
+        Git.init().setDirectory(workTree).call();
+        assertNull(GitUtils.getHeadCommit(new Repository("empty", workTree.getPath())));
+    }
+
+    private static void writeFile(File base, String path, String content) throws IOException {
+        File file = new File(base, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,74 @@
+package com.codingstory.polaris.search;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DocIdCollectorTest {
+    private Directory dir;
+    private DirectoryReader reader;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+        // Two segments, where documents 1, 3, 4 and 5 match.
+        for (String value : new String[] {"a", "b", "a"}) {
+            writer.addDocument(createDocument(value));
+        }
+        writer.commit();
+        for (String value : new String[] {"b", "b", "b"}) {
+            writer.addDocument(createDocument(value));
+        }
+        writer.close();
+        reader = DirectoryReader.open(dir);
+        assertEquals(2, reader.leaves().size());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void testCollect() throws IOException {
+        assertArrayEquals(new int[] {1, 3, 4, 5}, collect(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testCollect_limit() throws IOException {
+        assertArrayEquals(new int[] {1, 3}, collect(2));
+        assertArrayEquals(new int[0], collect(0));
+    }
+
+    private int[] collect(int limit) throws IOException {
+        DocIdCollector collector = new DocIdCollector(limit);
+        new IndexSearcher(reader).search(new TermQuery(new Term("field", "b")), collector);
+        return collector.getDocIds();
+    }
+
+    private static Document createDocument(String value) {
+        Document document = new Document();
+        document.add(new StringField("field", value, Field.Store.NO));
+        return document;
+    }
+}
@@ -0,0 +1,146 @@
+package com.codingstory.polaris.search;
+
+import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.google.common.base.Strings;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DocumentCacheTest {
+    private Directory dir;
+    private DirectoryReader reader;
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+        // Two segments of two documents each.
+        for (int i = 0; i < 4; i++) {
+            Document document = new Document();
+            document.add(new StringField("field", String.valueOf(i), Field.Store.NO));
+            writer.addDocument(document);
+            if (i == 1) {
+                writer.commit();
+            }
+        }
+        writer.close();
+        reader = DirectoryReader.open(dir);
+        assertEquals(2, reader.leaves().size());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void testGet() throws IOException {
+        DocumentCache cache = new DocumentCache(1 << 20);
+        assertEquals("/0", cache.get(reader, 0, "kind", loader("/0")).getPath());
+        assertEquals("/3", cache.get(reader, 3, "kind", loader("/3")).getPath());
+        assertEquals("/0", cache.get(reader, 0, "kind", loader("/wrong")).getPath());
+        assertEquals("/3", cache.get(reader, 3, "kind", loader("/wrong")).getPath());
+        assertEquals("/0b", cache.get(reader, 0, "another kind", loader("/0b")).getPath());
+        assertEquals(3, loads.get());
+        assertEquals(2, cache.getStats().hitCount());
+        assertEquals(3, cache.getStats().missCount());
+    }
+
+    @Test
+    public void testGet_sharedByReopenedReader() throws IOException {
+        DocumentCache cache = new DocumentCache(1 << 20);
+        cache.get(reader, 0, "kind", loader("/0"));
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new KeywordAnalyzer()));
+        writer.addDocument(new Document());
+        writer.close();
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+        try {
+            assertEquals("/0", cache.get(newReader, 0, "kind", loader("/wrong")).getPath());
+            assertEquals(1, loads.get());
+        } finally {
+            newReader.close();
+        }
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        String path = "/" + Strings.repeat("x", 1000);
+        DocumentCache cache = new DocumentCache(5000); // about two handles
+        for (int i = 0; i < 4; i++) {
+            cache.get(reader, i, "kind", loader(path));
+        }
+        assertTrue(cache.size() < 4);
+        assertTrue(cache.getStats().evictionCount() > 0);
+    }
+
+    @Test
+    public void testInvalidateOnClose() throws IOException {
+        DocumentCache cache = new DocumentCache(1 << 20);
+        for (int i = 0; i < 4; i++) {
+            cache.get(reader, i, "kind", loader("/" + i));
+        }
+        assertEquals(4, cache.size());
+        reader.close();
+        assertEquals(0, cache.size());
+        reader = DirectoryReader.open(dir);
+    }
+
+    @Test
+    public void testNone() throws IOException {
+        DocumentCache.NONE.get(reader, 0, "kind", loader("/0"));
+        DocumentCache.NONE.get(reader, 0, "kind", loader("/0"));
+        assertEquals(2, loads.get());
+        assertEquals(0, DocumentCache.NONE.size());
+    }
+
+    @Test
+    public void testLoaderThrows() {
+        DocumentCache cache = new DocumentCache(1 << 20);
+        try {
+            cache.get(reader, 0, "kind", new Callable<FileHandle>() {
+                @Override
+                public FileHandle call() throws IOException {
+                    throw new IOException("Expected");
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("Expected", e.getMessage());
+        }
+    }
+
+    private Callable<FileHandle> loader(final String path) {
+        return new Callable<FileHandle>() {
+            @Override
+            public FileHandle call() {
+                loads.incrementAndGet();
+                return FileHandle.newBuilder()
+                        .setId(1L)
+                        .setKind(FileHandle.Kind.NORMAL_FILE)
+                        .setProject("project")
+                        .setPath(path)
+                        .build();
+            }
+        };
+    }
+}
@@ -0,0 +1,52 @@
+package com.codingstory.polaris.search;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IndexSnapshotManagerTest {
+    private TestIndex index;
+
+    @Before
+    public void setUp() {
+        index = new TestIndex();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void testMaybeRefresh() throws IOException {
+        index.writeFile("A.java", "package pkg; class A {}");
+        index.build();
+        IndexSnapshotManager snapshots = new IndexSnapshotManager(index.getIndexDir());
+        assertFalse(snapshots.maybeRefresh());
+        IndexSnapshotManager.Snapshot before = snapshots.acquire();
+
+        index.writeFile("B.java", "package pkg; class B { A a; }");
+        index.build();
+        assertTrue(snapshots.maybeRefresh());
+        IndexSnapshotManager.Snapshot after = snapshots.acquire();
+
+        // The old snapshot stays usable and consistent until released.
+        assertTrue(before.getTypeDb().getTypeByName("pkg.B", null, 2).isEmpty());
+        assertNull(before.getSourceDb().querySourceByPath("project", "/B.java"));
+        snapshots.release(before);
+        assertEquals(1, after.getTypeDb().getTypeByName("pkg.B", null, 2).size());
+        assertNotNull(after.getSourceDb().querySourceByPath("project", "/B.java"));
+        snapshots.release(after);
+
+        assertFalse(snapshots.maybeRefresh());
+        snapshots.close();
+    }
+}
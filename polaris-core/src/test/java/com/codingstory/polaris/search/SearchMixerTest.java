@@ -0,0 +1,124 @@
+package com.codingstory.polaris.search;
+
+import com.codingstory.polaris.indexing.IndexPathUtils;
+import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
+import com.codingstory.polaris.search.SearchProtos.Hit;
+import com.codingstory.polaris.sourcedb.SourceDb;
+import com.codingstory.polaris.sourcedb.SourceDbImpl;
+import com.codingstory.polaris.typedb.TypeDb;
+import com.codingstory.polaris.typedb.TypeDbImpl;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchMixerTest {
+    // Long enough for any leg which is not held back, so that only the gated leg is late.
+    private static final long LATE_LEG_BUDGET_MILLIS = 5000;
+
+    private TestIndex index;
+    private ExecutorService executor;
+    private TypeDb typeDb;
+    private SourceDb sourceDb;
+
+    @Before
+    public void setUp() throws IOException {
+        index = new TestIndex();
+        index.writeFile("Apple.java", "package pkg; class Apple {}");
+        index.writeFile("Banana.java", "package pkg; class Banana { Apple apple; }");
+        index.build();
+        executor = Executors.newCachedThreadPool();
+        sourceDb = new SourceDbImpl(IndexPathUtils.getSourceDbPath(index.getIndexDir()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdown();
+        typeDb.close();
+        sourceDb.close();
+        index.close();
+    }
+
+    @Test
+    public void testSearch() throws IOException {
+        typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(index.getIndexDir()));
+        SearchMixer.Result result = new SearchMixer(typeDb, sourceDb, executor, 10000, null).search("apple", 10, true);
+        assertFalse(result.isPartial());
+        assertTrue(countHits(result.getHits(), Hit.Kind.TYPE) > 0);
+        assertTrue(countHits(result.getHits(), Hit.Kind.FILE) > 0);
+        for (Hit hit : result.getHits()) {
+            if (hit.getKind() == Hit.Kind.TYPE) {
+                assertTrue(hit.getSummary().contains("class Apple"));
+            }
+        }
+    }
+
+    @Test
+    public void testSearch_lateLeg() throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(index.getIndexDir())) {
+            @Override
+            public List<Hit> query(String query, int n) throws IOException {
+                Uninterruptibles.awaitUninterruptibly(done);
+                return super.query(query, n);
+            }
+        };
+        SearchMixer mixer = new SearchMixer(typeDb, sourceDb, executor, LATE_LEG_BUDGET_MILLIS, null);
+        try {
+            SearchMixer.Result result = mixer.search("apple", 10, true);
+            assertTrue(result.isPartial());
+            assertEquals(0, countHits(result.getHits(), Hit.Kind.TYPE));
+            assertTrue(countHits(result.getHits(), Hit.Kind.FILE) > 0);
+        } finally {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void testSearch_lateSummaries() throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        typeDb = new TypeDbImpl(IndexPathUtils.getTypeDbPath(index.getIndexDir()));
+        sourceDb.close();
+        sourceDb = new SourceDbImpl(IndexPathUtils.getSourceDbPath(index.getIndexDir())) {
+            @Override
+            public List<String> querySummaries(List<JumpTarget> jumpTargets) throws IOException {
+                Uninterruptibles.awaitUninterruptibly(done);
+                return super.querySummaries(jumpTargets);
+            }
+        };
+        SearchMixer mixer = new SearchMixer(typeDb, sourceDb, executor, LATE_LEG_BUDGET_MILLIS, null);
+        try {
+            SearchMixer.Result result = mixer.search("apple", 10, true);
+            assertTrue(result.isPartial());
+            assertTrue(countHits(result.getHits(), Hit.Kind.TYPE) > 0);
+            assertTrue(countHits(result.getHits(), Hit.Kind.FILE) > 0);
+            for (Hit hit : result.getHits()) {
+                if (hit.getKind() == Hit.Kind.TYPE) {
+                    assertFalse(hit.hasSummary());
+                }
+            }
+        } finally {
+            done.countDown();
+        }
+    }
+
+    private static int countHits(List<Hit> hits, Hit.Kind kind) {
+        int count = 0;
+        for (Hit hit : hits) {
+            if (hit.getKind() == kind) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,116 @@
+package com.codingstory.polaris.search;
+
+import com.codingstory.polaris.indexing.IndexPathUtils;
+import com.codingstory.polaris.search.SearchProtos.Hit;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SuggesterTest {
+    private TestIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        index = new TestIndex();
+        index.writeFile("InputStreamReader.java", "package pkg; class InputStreamReader {}");
+        index.writeFile("StreamUtils.java", "package pkg; class StreamUtils {}");
+        index.writeFile("Main.java", "package pkg; class Main { StreamUtils a; StreamUtils b; InputStreamReader c; }");
+        index.build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void testLookup() throws IOException {
+        Suggester suggester = load();
+        // Types by use count, and then files.
+        assertEquals(of("pkg.StreamUtils", "pkg.InputStreamReader", "InputStreamReader.java", "StreamUtils.java"),
+                queryHintsOf(suggester.lookup("stream", 10)));
+        assertEquals(of("pkg.InputStreamReader"), queryHintsOf(suggester.lookup("ISR", 10)));
+        assertEquals(of("pkg.InputStreamReader"), queryHintsOf(suggester.lookup("pkg.inp", 10)));
+        assertEquals(of("pkg.StreamUtils"), queryHintsOf(suggester.lookup("stream", 1)));
+        assertTrue(suggester.lookup("nothing", 10).isEmpty());
+
+        Hit hit = suggester.lookup("Reader", 1).get(0);
+        assertEquals(Hit.Kind.TYPE, hit.getKind());
+        assertEquals(1, hit.getClassType().getUseCount());
+        assertEquals("/InputStreamReader.java", hit.getJumpTarget().getFile().getPath());
+        assertEquals(0, hit.getClassType().getFieldsCount());
+    }
+
+    @Test
+    public void testLookup_entryMatchingSeveralKeys() throws IOException {
+        Suggester suggester = load();
+        // "m" matches both "main" and the acronym "m" of Main.
+        List<Hit> hits = suggester.lookup("m", 10);
+        assertEquals(of("pkg.Main", "Main.java"), queryHintsOf(hits));
+    }
+
+    @Test
+    public void testRebuiltOnUpdate() throws IOException {
+        FileUtils.forceDelete(new File(index.getProjectDir(), "StreamUtils.java"));
+        index.build();
+        Suggester suggester = load();
+        assertFalse(queryHintsOf(suggester.lookup("stream", 10)).contains("pkg.StreamUtils"));
+    }
+
+    @Test
+    public void testBuiltOnlyForNewSegments() throws IOException {
+        File typeDbSuggester = new File(IndexPathUtils.getSuggesterPath(index.getIndexDir()), "typedb");
+        List<String> segments = Lists.newArrayList(typeDbSuggester.list());
+        index.writeFile("Other.java", "package pkg; class OtherStream {}");
+        index.build();
+        List<String> newSegments = Lists.newArrayList(typeDbSuggester.list());
+        assertTrue(newSegments.containsAll(segments));
+        assertTrue(newSegments.size() > segments.size());
+        assertTrue(queryHintsOf(load().lookup("stream", 10)).contains("pkg.OtherStream"));
+    }
+
+    @Test
+    public void testLoad_missing() throws IOException {
+        FileUtils.deleteDirectory(IndexPathUtils.getSuggesterPath(index.getIndexDir()));
+        assertNull(load());
+    }
+
+    private Suggester load() throws IOException {
+        File indexDir = index.getIndexDir();
+        DirectoryReader typeReader = DirectoryReader.open(FSDirectory.open(IndexPathUtils.getTypeDbPath(indexDir)));
+        DirectoryReader sourceReader = DirectoryReader.open(
+                FSDirectory.open(IndexPathUtils.getSourceDbPath(indexDir)));
+        try {
+            return Suggester.load(indexDir, typeReader, sourceReader);
+        } finally {
+            IOUtils.closeQuietly(typeReader);
+            IOUtils.closeQuietly(sourceReader);
+        }
+    }
+
+    private static List<String> queryHintsOf(List<Hit> hits) {
+        List<String> queryHints = Lists.newArrayList();
+        for (Hit hit : hits) {
+            queryHints.add(hit.getQueryHint());
+        }
+        return queryHints;
+    }
+
+    private static List<String> of(String... queryHints) {
+        return Lists.newArrayList(queryHints);
+    }
+}
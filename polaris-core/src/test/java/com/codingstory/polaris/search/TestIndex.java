@@ -0,0 +1,43 @@
+package com.codingstory.polaris.search;
+
+import com.codingstory.polaris.pipeline.IncrementalIndexer;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/** A project named "project" and its index, both in temporary directories which are deleted on close. */
+class TestIndex implements Closeable {
+    private final File indexDir = Files.createTempDir();
+    private final File projectDir = new File(Files.createTempDir(), "project");
+
+    public File getIndexDir() {
+        return indexDir;
+    }
+
+    public File getProjectDir() {
+        return projectDir;
+    }
+
+    public void writeFile(String path, String content) throws IOException {
+        File file = new File(projectDir, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+    }
+
+    /** Indexes the project, incrementally if it has been indexed before. */
+    public void build() throws IOException {
+        IncrementalIndexer indexer = new IncrementalIndexer(indexDir, 2);
+        indexer.addProjectDirectory(projectDir);
+        indexer.run();
+    }
+
+    @Override
+    public void close() throws IOException {
+        FileUtils.deleteDirectory(indexDir);
+        FileUtils.deleteDirectory(projectDir.getParentFile());
+    }
+}
@@ -0,0 +1,31 @@
+package com.codingstory.polaris.sourcedb;
+
+import com.codingstory.polaris.sourcedb.SourceDbProtos.LineTable;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LineTablesTest {
+    @Test
+    public void testSlice() {
+        String source = "a\nbb\n\nccc\n";
+        LineTable table = LineTables.of(source);
+        assertEquals(4, table.getOffsetsCount());
+        assertEquals("a\nbb\n", LineTables.slice(source, table, 0, 2));
+        assertEquals("\nccc\n", LineTables.slice(source, table, 2, 10));
+        assertEquals("a\n", LineTables.slice(source, table, -2, 1));
+        assertEquals("", LineTables.slice(source, table, 5, 8));
+        assertEquals("", LineTables.slice("", LineTables.of(""), 0, 5));
+    }
+
+    @Test
+    public void testLineOf() {
+        LineTable table = LineTables.of("a\nbb\n\nccc");
+        assertEquals(0, LineTables.lineOf(table, 0));
+        assertEquals(0, LineTables.lineOf(table, 1));
+        assertEquals(1, LineTables.lineOf(table, 2));
+        assertEquals(2, LineTables.lineOf(table, 5));
+        assertEquals(3, LineTables.lineOf(table, 6));
+        assertEquals(3, LineTables.lineOf(table, 100));
+    }
+}
@@ -3,11 +3,18 @@ package com.codingstory.polaris.sourcedb;
 import com.codingstory.polaris.IdGenerator;
 import com.codingstory.polaris.SimpleIdGenerator;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
+import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
 import com.codingstory.polaris.parser.ParserProtos.SourceFile;
+import com.codingstory.polaris.parser.TypeUtils;
+import com.codingstory.polaris.search.DocumentCache;
 import com.codingstory.polaris.search.SearchProtos.Hit;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -18,6 +25,7 @@ import java.util.List;
 import static com.codingstory.polaris.TestUtils.assertEqualsIgnoreOrder;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -93,6 +101,33 @@ public class SourceDbTest {
         // assertNull(listFiles(r, "/NoSuchDir"));
     }
 
+    @Test
+    public void testListDirectory_sortedAcrossSegments() throws IOException {
+        SourceDbWriter w = new SourceDbWriterImpl(tempDir);
+        try {
+            writeFile(w, "/dir/d", "");
+            writeDirectory(w, "/dir/b/");
+            long deleted = writeFile(w, "/dir/c", "");
+            w.flush();
+            writeFile(w, "/dir/a", "");
+            writeFile(w, "/dir/e", "");
+            w.flush();
+            w.deleteFile(deleted);
+            w.flush();
+        } finally {
+            w.close();
+        }
+
+        SourceDb r = new SourceDbImpl(tempDir);
+        try {
+            assertEquals(ImmutableList.of("/dir/a", "/dir/b/", "/dir/d", "/dir/e"), listFiles(r, "/dir/"));
+            assertEquals(ImmutableList.of("/dir/a", "/dir/b/", "/dir/d", "/dir/e"), listFiles(r, "/dir"));
+            assertEquals(ImmutableList.<String>of(), listFiles(r, "/dir/b/"));
+        } finally {
+            r.close();
+        }
+    }
+
     @Test
     public void testQuery_fileName() throws IOException {
         SourceDbWriter w = new SourceDbWriterImpl(tempDir);
@@ -150,6 +185,80 @@ public class SourceDbTest {
         }
     }
 
+    @Test
+    public void testQuery_subword() throws IOException {
+        SourceDbWriter w = new SourceDbWriterImpl(tempDir);
+        try {
+            writeFile(w, "/1", "InputStream in;");
+            writeFile(w, "/2", "Input input;");
+        } finally {
+            w.close();
+        }
+
+        SourceDb r = new SourceDbImpl(tempDir);
+        try {
+            assertEquals(1, r.query("Stream", 10).size());
+            assertEquals(2, r.query("Input", 10).size());
+            assertEquals(1, r.query("InputStream", 10).size());
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void testQuery_snippet() throws IOException {
+        SourceDbWriter w = new SourceDbWriterImpl(tempDir);
+        try {
+            writeFile(w, "/a", "line0\nline1\nline2\nline3 hello\nline4\nline5 hello world\nline6\nhello");
+        } finally {
+            w.close();
+        }
+
+        SourceDb r = new SourceDbImpl(tempDir);
+        try {
+            Hit hit = Iterables.getOnlyElement(r.query("hello", 10));
+            assertEquals("line1\nline2\nline3 hello\nline4\nline5 hello world\n", hit.getSummary());
+            assertEquals(ImmutableList.of(
+                    TypeUtils.spanOf(TypeUtils.positionOf(3, 6), TypeUtils.positionOf(3, 11)),
+                    TypeUtils.spanOf(TypeUtils.positionOf(5, 6), TypeUtils.positionOf(5, 11))),
+                    hit.getHighlightsList());
+            // Matched by path only.
+            hit = Iterables.getOnlyElement(r.query("a", 10));
+            assertEquals("line0\nline1\nline2\nline3 hello\nline4\n", hit.getSummary());
+            assertEquals(0, hit.getHighlightsCount());
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void testQuerySummaries() throws IOException {
+        SourceDbWriter w = new SourceDbWriterImpl(tempDir);
+        long a;
+        long duplicate;
+        try {
+            a = writeFile(w, "/a", "line0\nline1\nline2\nline3\nline4\nline5");
+            duplicate = ID_GENERATOR.next();
+            w.writeDuplicateFile(FileHandle.newBuilder()
+                    .setKind(FileHandle.Kind.NORMAL_FILE)
+                    .setId(duplicate)
+                    .setProject(TEST_PROJECT)
+                    .setPath("/b")
+                    .build(), a);
+        } finally {
+            w.close();
+        }
+
+        SourceDb r = new SourceDbImpl(tempDir);
+        try {
+            assertEquals(Lists.newArrayList("line0\nline1\nline2\n", "line3\nline4\nline5", null),
+                    r.querySummaries(ImmutableList.of(jumpTargetOf(a, 0), jumpTargetOf(duplicate, 5),
+                            jumpTargetOf(Long.MAX_VALUE, 0))));
+        } finally {
+            r.close();
+        }
+    }
+
     @Test
     public void testGetFileHandle() throws IOException {
         SourceDbWriter w = new SourceDbWriterImpl(tempDir);
@@ -173,6 +282,146 @@ public class SourceDbTest {
         }
     }
 
+    @Test
+    public void testDuplicateFile() throws IOException {
+        SourceDbWriter w = new SourceDbWriterImpl(tempDir);
+        long original;
+        long duplicate;
+        try {
+            original = writeFile(w, "/dir1/a", "hello");
+            duplicate = ID_GENERATOR.next();
+            w.writeDuplicateFile(FileHandle.newBuilder()
+                    .setKind(FileHandle.Kind.NORMAL_FILE)
+                    .setId(duplicate)
+                    .setProject(TEST_PROJECT)
+                    .setPath("/dir2/a")
+                    .build(), original);
+            w.flush();
+        } finally {
+            w.close();
+        }
+
+        SourceDb r = new SourceDbImpl(tempDir);
+        try {
+            SourceFile source = r.querySourceById(duplicate);
+            assertEquals("hello", source.getSource());
+            assertEquals("hello", source.getAnnotatedSource());
+            assertEquals(duplicate, source.getHandle().getId());
+            assertEquals("/dir2/a", source.getHandle().getPath());
+            assertEquals(duplicate, r.querySourceByPath(TEST_PROJECT, "/dir2/a").getHandle().getId());
+            assertEquals(original, r.findOriginalFileId(duplicate));
+            assertEquals(original, r.findOriginalFileId(original));
+            assertEqualsIgnoreOrder(ImmutableList.of("/dir2/a"), listFiles(r, "/dir2/"));
+
+            // Only the original is found by content, but both by path.
+            List<Hit> hits = r.query("hello", 10);
+            assertEquals(1, hits.size());
+            assertEquals(original, hits.get(0).getJumpTarget().getFile().getId());
+            assertEquals(2, r.query("a", 10).size());
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void testQuerySourcesByIds() throws IOException {
+        SourceDbWriter w = new SourceDbWriterImpl(tempDir);
+        long a;
+        long b;
+        long duplicate;
+        try {
+            a = writeFile(w, "/dir/a", "hello");
+            w.flush(); // files in two segments
+            b = writeFile(w, "/dir/b", "world");
+            duplicate = ID_GENERATOR.next();
+            w.writeDuplicateFile(FileHandle.newBuilder()
+                    .setKind(FileHandle.Kind.NORMAL_FILE)
+                    .setId(duplicate)
+                    .setProject(TEST_PROJECT)
+                    .setPath("/dir2/a")
+                    .build(), a);
+            w.flush();
+        } finally {
+            w.close();
+        }
+
+        SourceDb r = new SourceDbImpl(tempDir);
+        try {
+            List<SourceFile> sources = r.querySourcesByIds(ImmutableList.of(b, Long.MAX_VALUE, duplicate, a, b));
+            assertEquals(5, sources.size());
+            assertEquals(r.querySourceById(b), sources.get(0));
+            assertNull(sources.get(1));
+            assertEquals(r.querySourceById(duplicate), sources.get(2));
+            assertEquals(duplicate, sources.get(2).getHandle().getId());
+            assertEquals("hello", sources.get(2).getSource());
+            assertEquals(r.querySourceById(a), sources.get(3));
+            assertEquals(r.querySourceById(b), sources.get(4));
+            assertTrue(r.querySourcesByIds(ImmutableList.<Long>of()).isEmpty());
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void testQuerySource_storedApartFromHandle() throws IOException {
+        SourceDbWriter w = new SourceDbWriterImpl(tempDir);
+        long fileId;
+        try {
+            fileId = writeFile(w, "/dir/a", "class A {}");
+            w.flush();
+        } finally {
+            w.close();
+        }
+
+        DirectoryReader reader = DirectoryReader.open(FSDirectory.open(tempDir));
+        try {
+            Document document = reader.document(0);
+            assertNull(document.get(SourceDbIndexedField.SOURCE_TEXT)); // not stored twice
+            assertNotNull(document.getBinaryValue(SourceDbIndexedField.SOURCE));
+        } finally {
+            reader.close();
+        }
+        SourceDb r = new SourceDbImpl(tempDir);
+        try {
+            SourceFile source = r.querySourceById(fileId);
+            assertEquals("class A {}", source.getSource());
+            assertEquals("class A {}", source.getAnnotatedSource());
+            assertEquals("/dir/a", r.getFileHandle(TEST_PROJECT, "/dir/a").getPath());
+            assertEquals(1, r.query("class", 10).size());
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void testQuerySummaries_leavesAnnotatedSource() throws IOException {
+        SourceDbWriter w = new SourceDbWriterImpl(tempDir);
+        long fileId;
+        try {
+            fileId = writeFile(w, "/a", "line0\nline1");
+        } finally {
+            w.close();
+        }
+
+        DocumentCache cache = new DocumentCache(1 << 20);
+        SourceDb r = new SourceDbImpl(DirectoryReader.open(FSDirectory.open(tempDir)), cache);
+        try {
+            assertEquals(ImmutableList.of("line0\nline1"), r.querySummaries(ImmutableList.of(jumpTargetOf(fileId, 0))));
+            assertEquals(3, cache.size()); // handle record, source and line table
+            assertEquals("line0\nline1", r.querySourceById(fileId).getAnnotatedSource());
+            assertEquals(4, cache.size());
+        } finally {
+            r.close();
+        }
+    }
+
+    private static JumpTarget jumpTargetOf(long fileId, int line) {
+        return JumpTarget.newBuilder()
+                .setFile(FileHandle.newBuilder().setId(fileId))
+                .setSpan(TypeUtils.spanOf(TypeUtils.positionOf(line, 0), TypeUtils.positionOf(line, 0)))
+                .build();
+    }
+
     private long writeFile(SourceDbWriter w, String path, String content) throws IOException {
         long fileId = ID_GENERATOR.next();
         FileHandle f = FileHandle.newBuilder()
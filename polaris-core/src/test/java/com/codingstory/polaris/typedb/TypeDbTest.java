@@ -31,6 +31,7 @@ import static com.codingstory.polaris.parser.TypeUtils.handleOf;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class TypeDbTest {
     private static final IdGenerator ID_GENERATOR = new SimpleIdGenerator();
@@ -125,6 +126,16 @@ public class TypeDbTest {
         doTestCompleteQuery("F", corpus, ImmutableList.of("java.io.FileInputStream", "java.io.FileReader"));
     }
 
+    @Test
+    public void testCompleteQuery_subword() throws IOException {
+        List<String> corpus = ImmutableList.of("java.io.InputStream", "java.io.InputStreamReader",
+                "java.net.HTTPServer", "java.util.List");
+        doTestCompleteQuery("stream", corpus, ImmutableList.of("java.io.InputStream", "java.io.InputStreamReader"));
+        doTestCompleteQuery("StreamR", corpus, ImmutableList.of("java.io.InputStreamReader"));
+        doTestCompleteQuery("Serv", corpus, ImmutableList.of("java.net.HTTPServer"));
+        doTestCompleteQuery("util.Li", corpus, ImmutableList.of("java.util.List"));
+    }
+
     @Test
     public void testQueryInFile() throws IOException {
         TypeDbWriter w = new TypeDbWriterImpl(tempDir);
@@ -205,6 +216,56 @@ public class TypeDbTest {
         r.close();
     }
 
+    @Test
+    public void testGetMethodById_afterUpdate() throws IOException {
+        List<Method> methods = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            methods.add(Iterables.getOnlyElement(createClassWithOneMethod("MyClass", "method" + i).getMethodsList()));
+        }
+        ClassType type = createEmptyClass("MyClass").toBuilder().addAllMethods(methods).build();
+        TypeDbWriter w = new TypeDbWriterImpl(tempDir);
+        w.write(type);
+        w.flush();
+        // Drops method0 and reorders the rest. The new document goes to another segment.
+        ClassType updated = type.toBuilder()
+                .clearMethods()
+                .addMethods(methods.get(2))
+                .addMethods(methods.get(1))
+                .build();
+        w.update(updated);
+        w.close();
+        TypeDb r = new TypeDbImpl(tempDir);
+        assertEquals(updated, r.getTypeById(type.getHandle().getId()));
+        assertNull(r.getMethodById(methods.get(0).getHandle().getId()));
+        assertEquals(methods.get(1), r.getMethodById(methods.get(1).getHandle().getId()));
+        assertEquals(methods.get(2), r.getMethodById(methods.get(2).getHandle().getId()));
+        r.close();
+    }
+
+    @Test
+    public void testGetByIds() throws IOException {
+        ClassType withField = createClassWithOneField("MyClass0", "myField");
+        ClassType withMethod = createClassWithOneMethod("MyClass1", "myMethod");
+        TypeDbWriter w = new TypeDbWriterImpl(tempDir);
+        w.write(withField);
+        w.flush(); // types in two segments
+        w.write(withMethod);
+        w.close();
+        long fieldId = Iterables.getOnlyElement(withField.getFieldsList()).getHandle().getId();
+        long methodId = Iterables.getOnlyElement(withMethod.getMethodsList()).getHandle().getId();
+        TypeDb r = new TypeDbImpl(tempDir);
+        List<ClassType> types = r.getTypesByIds(ImmutableList.of(
+                withMethod.getHandle().getId(), Long.MAX_VALUE, withField.getHandle().getId(),
+                withMethod.getHandle().getId()));
+        assertEquals(Lists.newArrayList(withMethod, null, withField, withMethod), types);
+        assertEquals(Lists.newArrayList(null, r.getFieldById(fieldId)),
+                r.getFieldsByIds(ImmutableList.of(methodId, fieldId)));
+        assertEquals(Lists.newArrayList(r.getMethodById(methodId), null),
+                r.getMethodsByIds(ImmutableList.of(methodId, fieldId)));
+        assertTrue(r.getTypesByIds(ImmutableList.<Long>of()).isEmpty());
+        r.close();
+    }
+
     private static List<String> getFullTypeNames(List<ClassType> classTypes) {
         List<String> result = Lists.newArrayList();
         for (ClassType classType : classTypes) {
@@ -1,13 +1,21 @@
 package com.codingstory.polaris.usagedb;
 
+import com.codingstory.polaris.BlobCodecs;
+import com.codingstory.polaris.indexing.IndexWriterOptions;
 import com.codingstory.polaris.parser.ParserProtos.ClassTypeHandle;
 import com.codingstory.polaris.parser.ParserProtos.FileHandle;
 import com.codingstory.polaris.parser.ParserProtos.JumpTarget;
+import com.codingstory.polaris.parser.ParserProtos.MethodHandle;
+import com.codingstory.polaris.parser.ParserProtos.MethodUsage;
 import com.codingstory.polaris.parser.ParserProtos.TypeUsage;
 import com.codingstory.polaris.parser.ParserProtos.Usage;
 import com.codingstory.polaris.parser.TypeUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -22,6 +30,7 @@ import static com.codingstory.polaris.parser.TypeUtils.positionOf;
 import static com.codingstory.polaris.parser.TypeUtils.spanOf;
 import static com.codingstory.polaris.parser.TypeUtils.usageOf;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class UsageDbTest {
     private static final String TEST_PROJECT = "TestProject";
@@ -83,4 +92,205 @@ public class UsageDbTest {
         assertEquals(usage2.getJumpTarget(), usages.get(1).getJumpTarget());
         r.close();
     }
+
+    @Test
+    public void testAddIndexes() throws IOException {
+        long typeId = 100L;
+        File shard1 = new File(tempDir, "shard1");
+        File shard2 = new File(tempDir, "shard2");
+        File index = new File(tempDir, "index");
+        UsageDbWriter w = new UsageDbWriterImpl(shard1);
+        w.write(createTypeUsage(typeId, 10));
+        w.close();
+        w = new UsageDbWriterImpl(shard2);
+        w.write(createTypeUsage(typeId, 20));
+        w.write(createTypeUsage(typeId + 1, 30));
+        w.close();
+
+        w = new UsageDbWriterImpl(index);
+        w.addIndexes(ImmutableList.of(shard1, shard2));
+        w.flush();
+        w.close();
+        UsageDb r = new UsageDbImpl(index);
+        assertEquals(2, r.query(Usage.Kind.TYPE, typeId).size());
+        assertEquals(1, r.query(Usage.Kind.TYPE, typeId + 1).size());
+        r.close();
+    }
+
+    @Test
+    public void testAddIndexes_mixedCodecs() throws IOException {
+        long typeId = 100L;
+        File shard1 = new File(tempDir, "shard1");
+        File shard2 = new File(tempDir, "shard2");
+        File index = new File(tempDir, "index");
+        UsageDbWriter w = new UsageDbWriterImpl(shard1);
+        w.write(createTypeUsage(typeId, 10));
+        w.close();
+        w = new UsageDbWriterImpl(shard2, new IndexWriterOptions().setUsageBlobCodec(BlobCodecs.DEFLATE_USAGE));
+        w.write(createTypeUsage(typeId, 20));
+        w.close();
+
+        w = new UsageDbWriterImpl(index, new IndexWriterOptions().setUsageBlobCodec(BlobCodecs.NONE));
+        w.addIndexes(ImmutableList.of(shard1, shard2));
+        w.write(createTypeUsage(typeId, 30));
+        w.flush();
+        w.close();
+        UsageDb r = new UsageDbImpl(index);
+        List<Usage> usages = r.query(Usage.Kind.TYPE, typeId);
+        assertEquals(3, usages.size());
+        for (int i = 0; i < usages.size(); i++) {
+            assertEquals(createTypeUsage(typeId, (i + 1) * 10), usages.get(i));
+        }
+        r.close();
+    }
+
+    @Test
+    public void testFlush_backgroundMerge() throws IOException {
+        long typeId = 100L;
+        IndexWriterOptions options = new IndexWriterOptions()
+                .setMaxSegmentCount(2)
+                .setBackgroundMerge(true);
+        UsageDbWriterImpl w = new UsageDbWriterImpl(tempDir, options);
+        for (int i = 0; i < 5; i++) {
+            w.write(createTypeUsage(typeId, i * 10));
+            w.flush();
+        }
+        w.close(); // commits the last merge
+        DirectoryReader reader = DirectoryReader.open(FSDirectory.open(tempDir));
+        assertEquals(2, reader.leaves().size());
+        reader.close();
+        UsageDb r = new UsageDbImpl(tempDir);
+        assertEquals(5, r.query(Usage.Kind.TYPE, typeId).size());
+        r.close();
+    }
+
+    @Test
+    public void testFlush_backgroundMergeCommitsNothingUnflushed() throws IOException {
+        long typeId = 100L;
+        IndexWriterOptions options = new IndexWriterOptions()
+                .setMaxSegmentCount(1)
+                .setBackgroundMerge(true);
+        UsageDbWriterImpl w = new UsageDbWriterImpl(tempDir, options);
+        w.write(createTypeUsage(typeId, 10));
+        w.flush();
+        w.write(createTypeUsage(typeId, 20));
+        w.flush(); // merges two segments in background
+        w.write(createTypeUsage(typeId, 30));
+        w.waitForPendingMerge();
+        UsageDb r = new UsageDbImpl(tempDir);
+        assertEquals(2, r.query(Usage.Kind.TYPE, typeId).size());
+        r.close();
+
+        w.flush();
+        r = new UsageDbImpl(tempDir);
+        assertEquals(3, r.query(Usage.Kind.TYPE, typeId).size());
+        r.close();
+        w.close();
+    }
+
+    @Test
+    public void testQuery_acrossSegmentsWithDeletions() throws IOException {
+        long id = 100L;
+        UsageDbWriter w = new UsageDbWriterImpl(tempDir);
+        Usage usage30 = createTypeUsage(id, 30);
+        w.write(usage30);
+        w.flush();
+        Usage usage10 = createTypeUsage(id, 10);
+        w.write(usage10);
+        Usage usage20 = createTypeUsage(id, 20);
+        FileHandle deletedFile = FileHandle.newBuilder()
+                .setKind(FileHandle.Kind.NORMAL_FILE)
+                .setId(300L)
+                .setProject(TEST_PROJECT)
+                .setPath("/deleted")
+                .build();
+        w.write(usage20.toBuilder()
+                .setJumpTarget(usage20.getJumpTarget().toBuilder().setFile(deletedFile))
+                .build());
+        JumpTarget methodCall = usage10.getJumpTarget();
+        w.write(usageOf(MethodUsage.newBuilder()
+                .setMethod(MethodHandle.newBuilder().setId(id).setName("MyClass.method"))
+                .setKind(MethodUsage.Kind.METHOD_CALL)
+                .build(), methodCall, methodCall, "snippet"));
+        w.flush();
+        w.deleteFile(300L);
+        w.close();
+        UsageDb r = new UsageDbImpl(tempDir);
+        assertEquals(ImmutableList.of(usage10, usage30), r.query(Usage.Kind.TYPE, id));
+        assertEquals(1, r.query(Usage.Kind.METHOD, id).size());
+        assertEquals(0, r.query(Usage.Kind.VARIABLE, id).size());
+        assertEquals(3, r.findUsagesInFile(200L).size());
+        assertEquals(0, r.findUsagesInFile(300L).size());
+        List<List<Usage>> usagesInFiles = r.findUsagesInFiles(ImmutableList.of(300L, 200L, 999L));
+        assertEquals(3, usagesInFiles.size());
+        assertEquals(0, usagesInFiles.get(0).size());
+        assertEquals(r.findUsagesInFile(200L), usagesInFiles.get(1));
+        assertEquals(0, usagesInFiles.get(2).size());
+        r.close();
+    }
+
+    @Test
+    public void testQuery_paged() throws IOException {
+        long id = 100L;
+        List<Usage> expected = Lists.newArrayList();
+        Usage inOtherProject = createTypeUsage(id, 0);
+        inOtherProject = inOtherProject.toBuilder()
+                .setJumpTarget(inOtherProject.getJumpTarget().toBuilder()
+                        .setFile(inOtherProject.getJumpTarget().getFile().toBuilder()
+                                .setId(50L)
+                                .setProject("OtherProject")))
+                .build();
+        expected.add(inOtherProject);
+        for (int i = 0; i < 5; i++) {
+            expected.add(createTypeUsage(id, i * 7));
+        }
+        UsageDbWriter w = new UsageDbWriterImpl(tempDir);
+        for (Usage usage : Lists.reverse(expected)) {
+            w.write(usage);
+            w.write(createTypeUsage(id + 1, 0));
+            w.flush();
+        }
+        w.close();
+
+        UsageDb r = new UsageDbImpl(tempDir);
+        List<Usage> actual = Lists.newArrayList();
+        String cursor = null;
+        int pages = 0;
+        do {
+            UsagePage page = r.query(Usage.Kind.TYPE, id, cursor, 2);
+            assertTrue(page.getUsages().size() <= 2);
+            actual.addAll(page.getUsages());
+            cursor = page.getNextCursor();
+            pages++;
+        } while (cursor != null);
+        assertEquals(expected, actual);
+        assertEquals(3, pages);
+        assertEquals(ImmutableMap.of("OtherProject", 1L, TEST_PROJECT, 5L),
+                r.countUsagesByProject(Usage.Kind.TYPE, id));
+        assertEquals(5, r.countUsagesInFile(Usage.Kind.TYPE, id, 200L));
+        assertEquals(0, r.countUsagesInFile(Usage.Kind.METHOD, id, 200L));
+        r.close();
+    }
+
+    private static Usage createTypeUsage(long typeId, int column) {
+        FileHandle file = FileHandle.newBuilder()
+                .setKind(FileHandle.Kind.NORMAL_FILE)
+                .setId(200L)
+                .setProject(TEST_PROJECT)
+                .setPath("/filename")
+                .build();
+        ClassTypeHandle clazz = ClassTypeHandle.newBuilder()
+                .setId(typeId)
+                .setName("MyClass")
+                .setResolved(true)
+                .build();
+        JumpTarget jumpTarget = JumpTarget.newBuilder()
+                .setFile(file)
+                .setSpan(spanOf(positionOf(0, column), positionOf(0, column + 10)))
+                .build();
+        return usageOf(TypeUsage.newBuilder()
+                .setType(handleOf(clazz))
+                .setKind(TypeUsage.Kind.METHOD_SIGNATURE)
+                .build(), jumpTarget, jumpTarget, "snippet");
+    }
 }
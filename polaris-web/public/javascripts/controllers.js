@@ -66,12 +66,21 @@ function SourceCtrl($scope, $routeParams, CodeSearch, Utils, Protos) {
     showFile(resp.fileHandle, line);
   });
 
-  var loadXrefs = function(kind, id) {
+  var loadXrefs = function(kind, id, cursor) {
     $scope.loadingXrefs = true;
-    $scope.xrefs = undefined;
-    CodeSearch.listUsages(kind, id, function(resp) {
+    if (!cursor) {
+      $scope.xrefs = undefined;
+    }
+    CodeSearch.listUsages(kind, id, cursor, function(resp) {
       $scope.loadingXrefs = false;
-      $scope.xrefs = resp.usages;
+      // Makes a new array, so that xref-box sees the change.
+      $scope.xrefs = ($scope.xrefs || []).concat(resp.usages);
+      if (!cursor) {
+        $scope.xrefCount = resp.count; // only on the first page
+      }
+      $scope.loadMoreXrefs = resp.nextCursor ? function() {
+        loadXrefs(kind, id, resp.nextCursor);
+      } : undefined;
     });
   };
 
@@ -128,10 +128,11 @@ angular.module('polarisServices', [])
         req.methodId = methodId;
         execute2('getMethod', req, Protos.GetMethodResponse, callback);
       },
-      listUsages: function(kind, id, callback) {
+      listUsages: function(kind, id, cursor, callback) {
         var req = new Protos.ListUsagesRequest();
         req.kind = kind;
         req.id = id;
+        req.cursor = cursor;
         execute2('listUsages', req, Protos.ListUsagesResponse, callback);
       },
       listTypesInFile: function(fileId, callback) {